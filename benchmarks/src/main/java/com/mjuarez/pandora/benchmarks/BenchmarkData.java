@@ -0,0 +1,73 @@
+package com.mjuarez.pandora.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shared setup for the benchmarks: the generated input file, and the query keys.
+ */
+final class BenchmarkData {
+    // Where DiskIndex keeps its catalog: the same property, with the same default.
+    static final File INDEX_DIRECTORY = new File(System.getProperty("pandora.indexDir", "/tmp/index"));
+
+    // Power of two, so the benchmarks can cycle through the keys with a mask.
+    static final int QUERY_KEYS = 1 << 12;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Generates the input file for the given size and seed in the temp directory.  It's
+     * always written again, it's quicker than checking it's still the same.
+     */
+    static DatasetGenerator.Dataset dataset(int bands, long seed) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "pandora-bench-" + bands + "-" + seed + ".tsv");
+        return DatasetGenerator.generate(file, bands, seed);
+    }
+
+    /**
+     * Band names picked at random out of the dataset (so, all hits).
+     */
+    static String[] hits(DatasetGenerator.Dataset dataset, long seed) {
+        List<String> names = dataset.getNames();
+        Random random = new Random(seed);
+        String[] keys = new String[QUERY_KEYS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = names.get(random.nextInt(names.size()));
+        }
+        return keys;
+    }
+
+    /**
+     * Indexes into a set of keys, skewed like real queries are (roughly Zipfian: the first
+     * few keys get most of the hits, and there's a long tail).
+     */
+    static int[] skewedAccesses(int keys, int count, long seed) {
+        Random random = new Random(seed);
+        int[] accesses = new int[count];
+        for (int i = 0; i < count; i++) {
+            accesses[i] = (int) Math.pow(keys, random.nextDouble()) - 1;
+        }
+        return accesses;
+    }
+
+    static void deleteIndex() {
+        File[] files = INDEX_DIRECTORY.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        child.delete();
+                    }
+                }
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.mjuarez.pandora.benchmarks;
+
+import com.mjuarez.pandora.utils.BloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BloomFilter lookups from several threads at once, which is how the DiskIndex uses it:
+ * lookups never lock.  The readWrite group adds keys from one thread while the others
+ * look up, like a server that's taking new bands (the DiskIndex serializes the adds).
+ * Run with -t to try other thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BloomFilterBenchmark {
+    @Param({"1000000"})
+    public int keys;
+
+    @Param({"0.01"})
+    public double falsePositiveRate;
+
+    private BloomFilter bloomFilter;
+    private String[] present;
+    private String[] absent;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bloomFilter = new BloomFilter(keys, falsePositiveRate);
+        for (int i = 0; i < keys; i++) {
+            bloomFilter.add("Band " + i);
+        }
+        present = new String[BenchmarkData.QUERY_KEYS];
+        absent = new String[BenchmarkData.QUERY_KEYS];
+        for (int i = 0; i < present.length; i++) {
+            present[i] = "Band " + (long) i * keys / present.length;
+            absent[i] = "Missing band " + i;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean maybeContainsPresent(Cursor cursor) {
+        return bloomFilter.maybeContains(present[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean maybeContainsAbsent(Cursor cursor) {
+        return bloomFilter.maybeContains(absent[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public boolean lookupWhileAdding(Cursor cursor) {
+        return bloomFilter.maybeContains(absent[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void add(Cursor cursor) {
+        bloomFilter.add(present[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+}
@@ -0,0 +1,77 @@
+package com.mjuarez.pandora.benchmarks;
+
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.Cache;
+import com.mjuarez.pandora.utils.LRUCache;
+import com.mjuarez.pandora.utils.TinyLfuCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result caches under several threads, used the way the DiskIndex does: get, and put
+ * on a miss.  Keys are skewed (see BenchmarkData.skewedAccesses) over 10x more keys than
+ * the cache holds, so there's eviction going on all the time, and the hit rate matters as
+ * much as the cost per call.  Run with -t to try other thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+    private static final int ACCESSES = 1 << 20;
+
+    @Param({"lru", "tinylfu"})
+    public String type;
+
+    @Param({"10000"})
+    public int maxEntries;
+
+    private Cache<String, BandIds> cache;
+    private String[] keys;
+    private int[] accesses;
+    private final BandIds value = BandIds.of("/m/0abc");
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = "lru".equals(type)
+                ? new LRUCache<String, BandIds>(maxEntries)
+                : new TinyLfuCache<String, BandIds>(maxEntries);
+        keys = new String[maxEntries * 10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "Band " + i;
+        }
+        accesses = BenchmarkData.skewedAccesses(keys.length, ACCESSES, 42);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BandIds getOrPut(Cursor cursor) {
+        String key = keys[accesses[cursor.next++ & (ACCESSES - 1)]];
+        BandIds cached = cache.get(key);
+        if (cached == null) {
+            cache.put(key, value);
+            return value;
+        }
+        return cached;
+    }
+}
@@ -0,0 +1,193 @@
+package com.mjuarez.pandora.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes a synthetic band/ID input file that looks like the real one, as far as what was
+ * observed in it (see the README):
+ *
+ * - band names have a median length of ~25 characters, with a long tail up to 299,
+ * - IDs are "/m/0" followed by 2 to 6 characters out of underscore, digits and lowercase
+ *   consonants (no vowels), so 10 characters at most,
+ * - ~3.5% of the bands have more than one ID, one line per ID, but no duplicate lines,
+ * - ~15% of the names aren't plain ASCII: accents, Cyrillic, Greek, CJK, Hangul, Hebrew and
+ *   Arabic (right-to-left), and the odd emoji outside the BMP,
+ * - and the odd invalid line, with no band name.
+ *
+ * The same seed always gives the same file, byte for byte, so benchmark results from
+ * different releases can be compared.
+ *
+ * Usage: DatasetGenerator output.tsv bands [seed]
+ */
+public class DatasetGenerator {
+    public static final long DEFAULT_SEED = 42;
+
+    private static final String ID_PREFIX = "/m/0";
+    private static final String ID_ALPHABET = "_0123456789bcdfghjklmnpqrstvwxyz";
+    private static final double MULTI_ID_RATE = 0.035;
+    private static final double UNICODE_RATE = 0.15;
+    private static final double INVALID_LINE_RATE = 0.0001;
+    private static final int MEDIAN_NAME_LENGTH = 25;
+    private static final int MAX_NAME_LENGTH = 299;
+
+    private static final String ASCII_LETTERS = "abcdefghijklmnopqrstuvwxyz";
+    private static final String ACCENTED = "áéíóúàèäëïöüñçåøßœ";
+    // Code point ranges of the non-Latin scripts, first and last.
+    private static final int[][] SCRIPTS = {
+            {0x0410, 0x044F},   // Cyrillic
+            {0x03B1, 0x03C9},   // Greek
+            {0x4E00, 0x9FFF},   // CJK
+            {0xAC00, 0xD7A3},   // Hangul
+            {0x05D0, 0x05EA},   // Hebrew
+            {0x0627, 0x064A},   // Arabic
+            {0x1F300, 0x1F5FF}, // Emoji, two chars each
+    };
+
+    private final Random random;
+
+    private DatasetGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * What was written: the distinct band names, in the order they were generated, and
+     * the number of lines (valid or not).
+     */
+    public static class Dataset {
+        private final File file;
+        private final List<String> names;
+        private final long lines;
+
+        Dataset(File file, List<String> names, long lines) {
+            this.file = file;
+            this.names = names;
+            this.lines = lines;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+    }
+
+    public static Dataset generate(File output, int bands, long seed) throws IOException {
+        return new DatasetGenerator(seed).write(output, bands);
+    }
+
+    private Dataset write(File output, int bands) throws IOException {
+        List<String> names = new ArrayList<String>(bands);
+        Set<String> seen = new HashSet<String>(bands * 2);
+        long lines = 0;
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            while (names.size() < bands) {
+                if (random.nextDouble() < INVALID_LINE_RATE) {
+                    out.write('\t');
+                    out.write(nextId());
+                    out.write('\n');
+                    lines++;
+                    continue;
+                }
+
+                String name = nextName();
+                if (!seen.add(name)) {
+                    continue;
+                }
+                names.add(name);
+
+                int ids = random.nextDouble() < MULTI_ID_RATE ? 2 + (random.nextInt(4) == 0 ? 1 : 0) : 1;
+                Set<String> bandIds = new HashSet<String>();
+                while (bandIds.size() < ids) {
+                    String id = nextId();
+                    if (bandIds.add(id)) {
+                        out.write(name);
+                        out.write('\t');
+                        out.write(id);
+                        out.write('\n');
+                        lines++;
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return new Dataset(output, names, lines);
+    }
+
+    private String nextId() {
+        StringBuilder id = new StringBuilder(ID_PREFIX);
+        int length = 2 + random.nextInt(5);
+        for (int i = 0; i < length; i++) {
+            id.append(ID_ALPHABET.charAt(random.nextInt(ID_ALPHABET.length())));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Words of random letters up to a log-normal length (in code points), so most names are
+     * around the median but some are a lot longer.
+     */
+    private String nextName() {
+        int length = (int) Math.round(Math.exp(Math.log(MEDIAN_NAME_LENGTH) + 0.6 * random.nextGaussian()));
+        length = Math.max(1, Math.min(MAX_NAME_LENGTH, length));
+        boolean unicode = random.nextDouble() < UNICODE_RATE;
+        int[] script = unicode ? SCRIPTS[random.nextInt(SCRIPTS.length)] : null;
+        boolean accents = unicode && random.nextInt(SCRIPTS.length + 1) == 0;
+
+        StringBuilder name = new StringBuilder(length + 8);
+        int codePoints = 0;
+        while (codePoints < length) {
+            if (codePoints > 0) {
+                name.append(' ');
+                codePoints++;
+            }
+            int wordLength = 2 + random.nextInt(8);
+            for (int i = 0; i < wordLength && codePoints < length; i++) {
+                int codePoint;
+                if (script != null && !accents && random.nextInt(4) != 0) {
+                    codePoint = script[0] + random.nextInt(script[1] - script[0] + 1);
+                } else if (accents && random.nextInt(3) == 0) {
+                    codePoint = ACCENTED.charAt(random.nextInt(ACCENTED.length()));
+                } else {
+                    codePoint = ASCII_LETTERS.charAt(random.nextInt(ASCII_LETTERS.length()));
+                    if (i == 0) {
+                        codePoint = Character.toUpperCase(codePoint);
+                    }
+                }
+                name.appendCodePoint(codePoint);
+                codePoints++;
+            }
+        }
+        return name.toString().trim();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DatasetGenerator output.tsv bands [seed]");
+            System.exit(1);
+        }
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        Dataset dataset = generate(new File(args[0]), Integer.parseInt(args[1]), seed);
+        System.out.println("Wrote " + dataset.getNames().size() + " bands (" + dataset.getLines() + " lines) to "
+                + dataset.getFile() + ", seed " + seed);
+    }
+}
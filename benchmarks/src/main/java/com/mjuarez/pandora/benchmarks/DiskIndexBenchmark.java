@@ -0,0 +1,189 @@
+package com.mjuarez.pandora.benchmarks;
+
+import com.mjuarez.pandora.BulkLoader;
+import com.mjuarez.pandora.DiskIndex;
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.BloomFilter;
+import com.mjuarez.pandora.utils.Cache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DiskIndex.search() for each of the ways a lookup can go:
+ *
+ * - hit: an existing band, read from its segment (or from the cache, with cache=tinylfu),
+ * - miss: a band that isn't there, rejected by the bloom filter,
+ * - bloomFalsePositive: one that isn't there but gets past the bloom filter, so it costs a
+ *   header lookup (and with cache=tinylfu, it's cached as a miss after the first time).
+ *
+ * And hitAsync, ASYNC_BATCH hits at a time through searchAsync(), all started before waiting
+ * for any of them, which is how a server with lots of queries in flight would use it (the
+ * score is per lookup).
+ *
+ * And prefix, searchPrefix() for the first 10 completions of the first 1 to 4 characters
+ * of existing bands, like a type-ahead box would send (the cache doesn't apply to it).
+ *
+ * With cache=none every hit goes down to the segment, which is the number to watch for
+ * the disk format; the page cache is warm either way, this isn't measuring the device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskIndexBenchmark {
+    private static final int ASYNC_BATCH = 64;
+
+    @Param({"100000"})
+    public int bands;
+
+    @Param({"42"})
+    public long seed;
+
+    @Param({"none", "tinylfu"})
+    public String cache;
+
+    private DiskIndex index;
+    private String[] hits;
+    private String[] misses;
+    private String[] falsePositives;
+    private String[] prefixes;
+    private String[] typos;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DatasetGenerator.Dataset dataset = BenchmarkData.dataset(bands, seed);
+        index = new DiskIndex(dataset.getFile(), "none".equals(cache) ? new NoCache() : null);
+        if (!index.isCatalogLoaded()) {
+            new BulkLoader(index, dataset.getFile()).load();
+            index.flush();
+        }
+        hits = BenchmarkData.hits(dataset, seed);
+        prefixes = new String[hits.length];
+        typos = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            int codePoints = 1 + i % 4;
+            prefixes[i] = hits[i].substring(0, hits[i].offsetByCodePoints(0,
+                    Math.min(codePoints, hits[i].codePointCount(0, hits[i].length()))));
+            // Two chars swapped in the middle, the most common typo.
+            char[] chars = hits[i].toCharArray();
+            int middle = chars.length / 2;
+            if (middle > 0 && !Character.isSurrogate(chars[middle - 1]) && !Character.isSurrogate(chars[middle])) {
+                char swap = chars[middle - 1];
+                chars[middle - 1] = chars[middle];
+                chars[middle] = swap;
+            }
+            typos[i] = new String(chars);
+        }
+
+        // The flushed bloom filter tells which of the missing keys get past it.
+        BloomFilter bloomFilter = BloomFilter.load(new File(BenchmarkData.INDEX_DIRECTORY, "bloom.bin"));
+        Set<String> names = new HashSet<String>(dataset.getNames());
+        List<String> rejected = new ArrayList<String>();
+        List<String> passed = new ArrayList<String>();
+        for (long i = 0; rejected.size() < BenchmarkData.QUERY_KEYS || passed.size() < BenchmarkData.QUERY_KEYS; i++) {
+            String key = "Missing band " + i;
+            if (names.contains(key)) {
+                continue;
+            }
+            List<String> target = bloomFilter.maybeContains(key) ? passed : rejected;
+            if (target.size() < BenchmarkData.QUERY_KEYS) {
+                target.add(key);
+            }
+        }
+        misses = rejected.toArray(new String[0]);
+        falsePositives = passed.toArray(new String[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index.onShutdown();
+    }
+
+    @Benchmark
+    public BandIds hit(Cursor cursor) {
+        return index.search(hits[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ASYNC_BATCH)
+    public BandIds hitAsync(Cursor cursor) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[ASYNC_BATCH];
+        for (int i = 0; i < ASYNC_BATCH; i++) {
+            futures[i] = index.searchAsync(hits[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+        }
+        CompletableFuture.allOf(futures).join();
+        return (BandIds) futures[ASYNC_BATCH - 1].join();
+    }
+
+    @Benchmark
+    public BandIds miss(Cursor cursor) {
+        return index.search(misses[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public BandIds bloomFalsePositive(Cursor cursor) {
+        return index.search(falsePositives[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public List<String> prefix(Cursor cursor) {
+        return index.searchPrefix(prefixes[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)], 10);
+    }
+
+    @Benchmark
+    public BandIds fuzzy(Cursor cursor) {
+        return index.searchFuzzy(typos[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    /**
+     * Keeps the result cache out of the way, so every lookup that passes the bloom filter
+     * goes down to the segments.
+     */
+    private static class NoCache implements Cache<String, BandIds> {
+        @Override
+        public BandIds get(String key) {
+            return null;
+        }
+
+        @Override
+        public boolean put(String key, BandIds value) {
+            return false;
+        }
+
+        @Override
+        public void remove(String key) {
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
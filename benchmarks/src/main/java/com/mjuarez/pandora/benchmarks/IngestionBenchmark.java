@@ -0,0 +1,84 @@
+package com.mjuarez.pandora.benchmarks;
+
+import com.mjuarez.pandora.BulkLoader;
+import com.mjuarez.pandora.DiskIndex;
+import com.mjuarez.pandora.InMemorySearcher;
+import com.mjuarez.pandora.SortedSegmentBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to build the index from scratch: the DiskIndex catalog with each of the
+ * builders (including the flush, since the catalog isn't usable before that), and the
+ * InMemorySearcher for comparison.  Each invocation is a whole build, so it's single-shot;
+ * divide the line count printed by the generator by the time for lines per second.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestionBenchmark {
+    @Param({"100000"})
+    public int bands;
+
+    @Param({"42"})
+    public long seed;
+
+    private File input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        input = BenchmarkData.dataset(bands, seed).getFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteIndex() {
+        BenchmarkData.deleteIndex();
+    }
+
+    @Benchmark
+    public long bulkLoad() throws IOException {
+        DiskIndex index = new DiskIndex(input);
+        try {
+            long records = new BulkLoader(index, input).load();
+            index.flush();
+            return records;
+        } finally {
+            index.onShutdown();
+        }
+    }
+
+    @Benchmark
+    public long sortedBuild() throws IOException {
+        DiskIndex index = new DiskIndex(input);
+        try {
+            File tempDirectory = new File(System.getProperty("java.io.tmpdir"), "pandora-bench-sort");
+            long records = new SortedSegmentBuilder(index, input, 256L << 20, tempDirectory).build();
+            index.flush();
+            return records;
+        } finally {
+            index.onShutdown();
+        }
+    }
+
+    @Benchmark
+    public InMemorySearcher inMemory() {
+        return new InMemorySearcher(input.getPath());
+    }
+}
@@ -0,0 +1,81 @@
+package com.mjuarez.pandora.benchmarks;
+
+import com.mjuarez.pandora.InMemorySearcher;
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups on the InMemorySearcher, the baseline everything else is compared to: hit and
+ * miss through search(), and hitIntoBuffer through search(String, BandIdBuffer), which
+ * should show no allocations at all with -prof gc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearcherBenchmark {
+    @Param({"100000"})
+    public int bands;
+
+    @Param({"42"})
+    public long seed;
+
+    private InMemorySearcher searcher;
+    private String[] hits;
+    private String[] misses;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        final BandIdBuffer results = new BandIdBuffer();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DatasetGenerator.Dataset dataset = BenchmarkData.dataset(bands, seed);
+        searcher = new InMemorySearcher(dataset.getFile().getPath());
+        hits = BenchmarkData.hits(dataset, seed);
+        misses = new String[BenchmarkData.QUERY_KEYS];
+        for (int i = 0; i < misses.length; i++) {
+            misses[i] = hits[i] + " (missing)";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        searcher.onShutdown();
+    }
+
+    @Benchmark
+    public List<String> hit(Cursor cursor) {
+        return searcher.search(hits[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public int hitIntoBuffer(Cursor cursor) {
+        return searcher.search(hits[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)], cursor.results);
+    }
+
+    @Benchmark
+    public List<String> miss(Cursor cursor) {
+        return searcher.search(misses[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+}
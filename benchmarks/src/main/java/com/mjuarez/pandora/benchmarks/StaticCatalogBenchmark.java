@@ -0,0 +1,75 @@
+package com.mjuarez.pandora.benchmarks;
+
+import com.mjuarez.pandora.Shard;
+import com.mjuarez.pandora.StaticCatalog;
+import com.mjuarez.pandora.utils.BandIds;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StaticCatalog.get() for existing bands (perfect hash, slot, and the record compared in
+ * place) and for missing ones (turned away by the fingerprint in the slot), to compare with
+ * DiskIndexBenchmark with cache=none.  The catalog is rebuilt for every trial, since the
+ * dataset is written again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StaticCatalogBenchmark {
+    private static final File CATALOG_DIRECTORY = new File(System.getProperty("java.io.tmpdir"),
+            "pandora-bench-static");
+
+    @Param({"100000"})
+    public int bands;
+
+    @Param({"42"})
+    public long seed;
+
+    private StaticCatalog catalog;
+    private String[] hits;
+    private String[] misses;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DatasetGenerator.Dataset dataset = BenchmarkData.dataset(bands, seed);
+        catalog = StaticCatalog.build(CATALOG_DIRECTORY, dataset.getFile(), Shard.ALL, 256 << 20,
+                new File(System.getProperty("java.io.tmpdir"), "pandora-sort"));
+        hits = BenchmarkData.hits(dataset, seed);
+        misses = new String[BenchmarkData.QUERY_KEYS];
+        for (int i = 0; i < misses.length; i++) {
+            misses[i] = hits[i] + " (missing)";
+        }
+    }
+
+    @Benchmark
+    public BandIds hit(Cursor cursor) throws IOException {
+        return catalog.get(hits[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public BandIds miss(Cursor cursor) throws IOException {
+        return catalog.get(misses[cursor.next++ & (BenchmarkData.QUERY_KEYS - 1)]);
+    }
+}
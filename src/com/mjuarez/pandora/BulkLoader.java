@@ -0,0 +1,145 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Parallel bulk loader for the DiskIndex.
+ *
+ * The input file is split into chunks that end on a line boundary, and a pool of worker
+ * threads parses the chunks directly as bytes with the TsvParser.  Each worker encodes
+ * the records into one RecordBlock per segment, and only hands a block over to the
+ * DiskIndex once it's full, so every Segment write is a large sequential append instead
+ * of one syscall (and one file open) per record.
+ *
+ * Records for the same band can end up in a different order than in the input, since
+ * chunks are processed in parallel, but they always end up in the same segment.
+ */
+public class BulkLoader {
+    private static final int CHUNK_BYTES = 16 << 20;
+    private static final int MIN_BLOCK_BYTES = 4 << 10;
+    private static final int MAX_BLOCK_BYTES = 256 << 10;
+
+    private final DiskIndex index;
+    private final File inputFile;
+    private final TsvParser parser;
+    private final int threads;
+    private final int blockBytes;
+
+    private final AtomicLong recordsLoaded = new AtomicLong();
+
+    public BulkLoader(DiskIndex index, File inputFile) {
+        this(index, inputFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BulkLoader(DiskIndex index, File inputFile, int threads) {
+        this.index = index;
+        this.inputFile = inputFile;
+        this.parser = new TsvParser(inputFile, index.getShard());
+        this.threads = Math.max(1, threads);
+
+        // Every worker keeps a block per segment, so keep all of them within about a
+        // quarter of the heap.
+        long perBlock = Runtime.getRuntime().maxMemory() / 4 / ((long) this.threads * index.getSegmentCount());
+        this.blockBytes = (int) Math.max(MIN_BLOCK_BYTES, Math.min(MAX_BLOCK_BYTES, perBlock));
+    }
+
+    /**
+     * Loads the whole input file into the index, and returns the number of records added.
+     */
+    public long load() throws IOException {
+        long start = System.currentTimeMillis();
+        final List<long[]> chunks = parser.splitIntoChunks(CHUNK_BYTES);
+        final AtomicInteger nextChunk = new AtomicInteger();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        loadChunks(chunks, nextChunk);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (Exception e) {
+            throw new IOException("Bulk load of " + inputFile + " failed", e);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        log("Loaded " + recordsLoaded.get() + " records from " + inputFile + " in "
+                + (System.currentTimeMillis() - start) + "ms using " + threads + " threads, skipped "
+                + parser.getInvalidLines() + " invalid lines and " + parser.getOtherShardRecords()
+                + " records of other shards");
+        return recordsLoaded.get();
+    }
+
+    private void loadChunks(List<long[]> chunks, AtomicInteger nextChunk) throws IOException {
+        final RecordBlock[] blocks = new RecordBlock[index.getSegmentCount()];
+        TsvParser.RecordHandler handler = new TsvParser.RecordHandler() {
+            @Override
+            public void onRecord(String key, String value) throws IOException {
+                addRecord(key, value, blocks);
+            }
+        };
+
+        FileChannel channel = new RandomAccessFile(inputFile, "r").getChannel();
+        try {
+            byte[] buffer = null;
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks.size()) {
+                long[] range = chunks.get(chunk);
+                buffer = TsvParser.readChunk(channel, range, buffer);
+                parser.parse(buffer, (int) (range[1] - range[0]), range[0], handler);
+            }
+
+            for (int segment = 0; segment < blocks.length; segment++) {
+                if (blocks[segment] != null && blocks[segment].getRecordCount() > 0) {
+                    flushBlock(segment, blocks[segment]);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void addRecord(String key, String value, RecordBlock[] blocks) throws IOException {
+        int segment = index.getSegmentNumber(key);
+        RecordBlock block = blocks[segment];
+        if (block == null) {
+            block = new RecordBlock(Math.min(blockBytes, 1 << 10));
+            blocks[segment] = block;
+        }
+        block.add(key, BandIds.of(value));
+
+        if (block.getByteCount() >= blockBytes) {
+            flushBlock(segment, block);
+        }
+    }
+
+    private void flushBlock(int segment, RecordBlock block) throws IOException {
+        index.addRecords(segment, block);
+        recordsLoaded.addAndGet(block.getRecordCount());
+        block.reset();
+    }
+}
@@ -0,0 +1,231 @@
+package com.mjuarez.pandora;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Describes a complete, valid index catalog on disk: how it was built (format version,
+ * number of segments, hash function), which input file (and which Shard of it) it was
+ * built from, and the size,
+ * record count and CRC32 checksum of every segment and header file, plus the persisted
+ * bloom filter bits.
+ *
+ * The manifest is the last thing written when building the catalog, and the first thing
+ * deleted when starting a rebuild, so if it exists and its own checksum matches, the
+ * files it describes are complete.  It's written to a temp file and renamed into place
+ * so a crash never leaves a half-written manifest behind.
+ */
+public class CatalogManifest {
+    private static final int MAGIC = 0x504d414e;  // "PMAN"
+    public static final int FORMAT_VERSION = 4;
+
+    private final String hashFunction;
+    private final String shard;
+    private final String sourcePath;
+    private final long sourceLength;
+    private final long sourceLastModified;
+    private final boolean sortedSegments;
+
+    private final int[] recordCounts;
+    private final long[] segmentLengths;
+    private final long[] segmentChecksums;
+    private final long[] headerChecksums;
+
+    private final long bloomFilterLength;
+    private final long bloomFilterChecksum;
+
+    public CatalogManifest(String hashFunction, Shard shard, File source, boolean sortedSegments, int[] recordCounts,
+                           long[] segmentLengths, long[] segmentChecksums, long[] headerChecksums,
+                           long bloomFilterLength, long bloomFilterChecksum) {
+        this(hashFunction, shard.toString(), source.getAbsolutePath(), source.length(), source.lastModified(),
+                sortedSegments, recordCounts, segmentLengths, segmentChecksums, headerChecksums,
+                bloomFilterLength, bloomFilterChecksum);
+    }
+
+    private CatalogManifest(String hashFunction, String shard, String sourcePath, long sourceLength,
+                            long sourceLastModified, boolean sortedSegments, int[] recordCounts,
+                            long[] segmentLengths, long[] segmentChecksums, long[] headerChecksums,
+                            long bloomFilterLength, long bloomFilterChecksum) {
+        this.hashFunction = hashFunction;
+        this.shard = shard;
+        this.sourcePath = sourcePath;
+        this.sourceLength = sourceLength;
+        this.sourceLastModified = sourceLastModified;
+        this.sortedSegments = sortedSegments;
+        this.recordCounts = recordCounts;
+        this.segmentLengths = segmentLengths;
+        this.segmentChecksums = segmentChecksums;
+        this.headerChecksums = headerChecksums;
+        this.bloomFilterLength = bloomFilterLength;
+        this.bloomFilterChecksum = bloomFilterChecksum;
+    }
+
+    public String getHashFunction() {
+        return hashFunction;
+    }
+
+    /**
+     * True if the catalog holds the given shard of the input (0/1 for all of it).
+     */
+    public boolean isShard(Shard shard) {
+        return this.shard.equals(shard.toString());
+    }
+
+    /**
+     * True if every segment holds its records sorted by key, with one record per key.
+     */
+    public boolean hasSortedSegments() {
+        return sortedSegments;
+    }
+
+    public int getSegmentCount() {
+        return recordCounts.length;
+    }
+
+    public int getRecordCount(int segment) {
+        return recordCounts[segment];
+    }
+
+    public long getSegmentLength(int segment) {
+        return segmentLengths[segment];
+    }
+
+    public long getSegmentChecksum(int segment) {
+        return segmentChecksums[segment];
+    }
+
+    public long getHeaderChecksum(int segment) {
+        return headerChecksums[segment];
+    }
+
+    public long getBloomFilterLength() {
+        return bloomFilterLength;
+    }
+
+    public long getBloomFilterChecksum() {
+        return bloomFilterChecksum;
+    }
+
+    /**
+     * True if the source file is the same one (same path, size and modification time)
+     * the catalog was built from.
+     */
+    public boolean isBuiltFrom(File source) {
+        return sourcePath.equals(source.getAbsolutePath())
+                && sourceLength == source.length()
+                && sourceLastModified == source.lastModified();
+    }
+
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(hashFunction);
+        out.writeUTF(shard);
+        out.writeUTF(sourcePath);
+        out.writeLong(sourceLength);
+        out.writeLong(sourceLastModified);
+        out.writeBoolean(sortedSegments);
+        out.writeInt(recordCounts.length);
+        for (int i = 0; i < recordCounts.length; i++) {
+            out.writeInt(recordCounts[i]);
+            out.writeLong(segmentLengths[i]);
+            out.writeLong(segmentChecksums[i]);
+            out.writeLong(headerChecksums[i]);
+        }
+        out.writeLong(bloomFilterLength);
+        out.writeLong(bloomFilterChecksum);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes.toByteArray());
+        out.writeLong(crc32.getValue());
+        out.flush();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(fileOut);
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the manifest from disk.  Returns null if there is no manifest, and throws an
+     * IOException if there is one but it's from a different format version or corrupt.
+     */
+    public static CatalogManifest read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < 8) {
+            throw new IOException("Manifest " + file + " is truncated");
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 8);
+        if (in.readLong() != crc32.getValue()) {
+            throw new IOException("Manifest " + file + " is corrupt, checksum doesn't match");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a catalog manifest: " + file);
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Manifest " + file + " has format version " + version + ", expected " + FORMAT_VERSION);
+        }
+
+        String hashFunction = in.readUTF();
+        String shard = in.readUTF();
+        String sourcePath = in.readUTF();
+        long sourceLength = in.readLong();
+        long sourceLastModified = in.readLong();
+        boolean sortedSegments = in.readBoolean();
+        int segmentCount = in.readInt();
+        int[] recordCounts = new int[segmentCount];
+        long[] segmentLengths = new long[segmentCount];
+        long[] segmentChecksums = new long[segmentCount];
+        long[] headerChecksums = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            recordCounts[i] = in.readInt();
+            segmentLengths[i] = in.readLong();
+            segmentChecksums[i] = in.readLong();
+            headerChecksums[i] = in.readLong();
+        }
+        long bloomFilterLength = in.readLong();
+        long bloomFilterChecksum = in.readLong();
+
+        return new CatalogManifest(hashFunction, shard, sourcePath, sourceLength, sourceLastModified, sortedSegments, recordCounts,
+                segmentLengths, segmentChecksums, headerChecksums, bloomFilterLength, bloomFilterChecksum);
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogManifest{" +
+                "hashFunction='" + hashFunction + '\'' +
+                ", shard=" + shard +
+                ", sourcePath='" + sourcePath + '\'' +
+                ", sourceLength=" + sourceLength +
+                ", sortedSegments=" + sortedSegments +
+                ", segments=" + recordCounts.length +
+                ", records=" + Arrays.stream(recordCounts).asLongStream().sum() +
+                '}';
+    }
+}
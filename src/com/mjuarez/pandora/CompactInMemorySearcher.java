@@ -0,0 +1,207 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.NameNormalizer;
+import com.mjuarez.pandora.utils.TrigramIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Same idea as the InMemorySearcher, everything is loaded into RAM, but backed by the
+ * CompactMemoryIndex instead of a HashMap of Strings, so it holds several times more
+ * bands per GB of heap and GC pauses don't grow with the number of bands.
+ *
+ * Once built, the index is saved to a snapshot (-Dpandora.snapshot, pandora-compact.snapshot
+ * in the temp directory by default), and the next start loads that instead of going through
+ * the input again, if it was built from the same input.  A snapshot can also be given in
+ * place of the input file, and then it's loaded whatever it was built from, so new replicas
+ * can start from one that was built somewhere else.
+ */
+public class CompactInMemorySearcher implements Searcher {
+    private static final int CHUNK_BYTES = 16 << 20;
+
+    // Rough size of an input line, only used to size the hash table up front.
+    private static final int ESTIMATED_LINE_BYTES = 40;
+
+    private final File snapshotFile = new File(System.getProperty("pandora.snapshot",
+            System.getProperty("java.io.tmpdir") + File.separator + "pandora-compact.snapshot"));
+
+    private final String filePath;
+    private final CompactMemoryIndex index;
+
+    // For searchPrefix(), built the first time it's needed.
+    private String[] sortedNames;
+    // For searchFuzzy(), same, over the sorted names.
+    private TrigramIndex trigramIndex;
+    private final int fuzzyMaxDistance = Integer.getInteger("pandora.fuzzyMaxDistance", 2);
+    private final long fuzzyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("pandora.fuzzyBudgetMs", 10));
+
+    public CompactInMemorySearcher(String filePath) {
+        this.filePath = filePath;
+        CompactMemoryIndex loaded = loadSnapshot();
+        if (loaded != null) {
+            this.index = loaded;
+        } else {
+            this.index = new CompactMemoryIndex((int) Math.min(Integer.MAX_VALUE / 2,
+                    new File(filePath).length() / ESTIMATED_LINE_BYTES));
+            initializeIndex();
+            saveSnapshot();
+        }
+    }
+
+    public List<String> search(String query) {
+        BandIds ids = index.get(query);
+        if (ids != null) {
+            return ids.asList();
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int search(String query, BandIdBuffer results) {
+        results.clear();
+        index.get(query, results);
+        return results.size();
+    }
+
+    @Override
+    public List<String> searchPrefix(String prefix, int limit) {
+        return PrefixIndex.search(getSortedNames(), prefix, limit);
+    }
+
+    private synchronized String[] getSortedNames() {
+        if (sortedNames == null) {
+            String[] names = index.keys();
+            Arrays.sort(names, PrefixIndex.KEY_ORDER);
+            sortedNames = names;
+        }
+        return sortedNames;
+    }
+
+    @Override
+    public List<String> searchFuzzy(String query) {
+        List<String> exact = search(query);
+        if (!exact.isEmpty()) {
+            return exact;
+        }
+        int maxDistance = TrigramIndex.maxDistance(NameNormalizer.normalize(query), fuzzyMaxDistance);
+        List<TrigramIndex.Match> matches = getTrigramIndex().find(query, 1, maxDistance, System.nanoTime() + fuzzyBudgetNanos);
+        return matches.isEmpty() ? Collections.<String>emptyList() : search(matches.get(0).getName());
+    }
+
+    private synchronized TrigramIndex getTrigramIndex() {
+        if (trigramIndex == null) {
+            final List<String> names = Arrays.asList(getSortedNames());
+            trigramIndex = TrigramIndex.build(new TrigramIndex.Names() {
+                @Override
+                public int size() {
+                    return names.size();
+                }
+
+                @Override
+                public String get(int ordinal) {
+                    return names.get(ordinal);
+                }
+
+                @Override
+                public Iterator<String> iterator() {
+                    return names.iterator();
+                }
+            });
+        }
+        return trigramIndex;
+    }
+
+    @Override
+    public void onShutdown() {
+        log("Shutting down CompactInMemorySearcher...");
+        index.clear();
+    }
+
+    public static void main(String[] args) {
+        if (args == null || args.length != 1) {
+            System.err.println("Invalid input arguments: " + (args == null ? args : Arrays.asList(args)));
+            System.exit(1);
+        }
+
+        // Server mode if -Dpandora.tcpPort or -Dpandora.httpPort are set, console otherwise.
+        QueryServer.serve(new CompactInMemorySearcher(args[0]));
+    }
+
+    /**
+     * The index from the snapshot given as the input, or from the snapshot file if it was
+     * built from the input, otherwise null.  An input that starts like a snapshot but can't
+     * be loaded as one is parsed as a TSV, like any other input.
+     */
+    private CompactMemoryIndex loadSnapshot() {
+        long start = System.currentTimeMillis();
+        File input = new File(filePath);
+        File file = snapshotFile;
+        CompactMemoryIndex loaded = null;
+        try {
+            if (CompactMemoryIndex.isSnapshot(input)) {
+                file = input;
+                loaded = CompactMemoryIndex.load(input, null);
+            } else {
+                loaded = CompactMemoryIndex.load(snapshotFile, input);
+            }
+        } catch (IOException e) {
+            log("Unable to load snapshot " + file + (file == input ? ", reading it as a TSV" : ""), e);
+        }
+        if (loaded != null) {
+            log("Loaded " + loaded.size() + " bands from snapshot " + file + " in "
+                    + (System.currentTimeMillis() - start) + "ms, using " + (loaded.getMemoryBytes() >> 20) + "MB");
+        }
+        return loaded;
+    }
+
+    private void saveSnapshot() {
+        long start = System.currentTimeMillis();
+        try {
+            index.save(snapshotFile, new File(filePath));
+            log("Saved snapshot " + snapshotFile + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException e) {
+            log("Unable to save snapshot " + snapshotFile, e);
+        }
+    }
+
+    private void initializeIndex() {
+        long start = System.currentTimeMillis();
+        TsvParser parser = new TsvParser(new File(filePath));
+        TsvParser.RecordHandler handler = new TsvParser.RecordHandler() {
+            @Override
+            public void onRecord(String key, String value) {
+                index.add(key, value);
+            }
+        };
+
+        try {
+            FileChannel channel = new RandomAccessFile(filePath, "r").getChannel();
+            try {
+                byte[] buffer = null;
+                for (long[] chunk : parser.splitIntoChunks(CHUNK_BYTES)) {
+                    buffer = TsvParser.readChunk(channel, chunk, buffer);
+                    parser.parse(buffer, (int) (chunk[1] - chunk[0]), chunk[0], handler);
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log("Exception while loading file " + filePath, e);
+        }
+
+        log("Loaded " + index.size() + " bands in " + (System.currentTimeMillis() - start) + "ms, using "
+                + (index.getMemoryBytes() >> 20) + "MB (" + (index.getGarbageBytes() >> 10) + "KB replaced entries)");
+    }
+}
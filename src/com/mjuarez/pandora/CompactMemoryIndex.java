@@ -0,0 +1,517 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIdCodec;
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact in-memory band index, for when a HashMap of Strings uses too much RAM.
+ *
+ * Keys and IDs are stored back to back in a few large byte[] pages (the "arena"):
+ * each entry is the key length (2 bytes), the UTF-8 key bytes, the ID count (2 bytes) and
+ * the packed IDs (4 bytes each).  The hash table is a single long[] with open addressing
+ * and linear probing, where each slot holds the entry's arena address plus 16 bits of the
+ * key's hash, so most probes for other keys are rejected without touching the arena.
+ *
+ * There are no per-entry objects at all, so a band costs roughly its UTF-8 name plus 4
+ * bytes per ID and 8-16 bytes of table, and the GC only ever sees a handful of big
+ * primitive arrays it doesn't have to scan, no matter how many bands are loaded.
+ *
+ * Adding an ID to an existing band appends a new, longer copy of the entry and repoints
+ * the slot; the old copy is left as garbage.  Only ~4% of bands have multiple IDs, so that's
+ * cheaper than leaving room in every entry.  IDs that can't be packed are kept in a side
+ * list, and referenced from the entry as -(position + 1).
+ *
+ * Not thread-safe for writes: it's loaded once and then only read.
+ *
+ * Since it's all in a few big arrays, it can be saved to a snapshot file and loaded back
+ * with a handful of bulk reads, instead of parsing and hashing every band again, see
+ * save() and load().
+ */
+public class CompactMemoryIndex {
+    private static final int PAGE_BITS = 24;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;  // 16MB
+    private static final long ADDRESS_MASK = (1L << 48) - 1;
+    private static final float MAX_LOAD = 0.7f;
+    // The biggest power of two an array can hold, so about 750M bands at MAX_LOAD.
+    private static final int MAX_SLOTS = 1 << 30;
+
+    // "\x89PCM": like PNG's, the first byte is never the start of a line of text (not ASCII,
+    // and not a UTF-8 lead byte either), so an input file can't be taken for a snapshot.
+    private static final int SNAPSHOT_MAGIC = 0x8950434d;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_CHUNK_BYTES = 1 << 20;
+
+    private byte[][] pages = new byte[0][];
+    private int pageCount = 0;
+    private int pagePosition = PAGE_SIZE;
+
+    private long[] slots;
+    private int size = 0;
+    private long garbageBytes = 0;
+
+    private final List<String> escapedIds = new ArrayList<String>();
+
+    public CompactMemoryIndex(int expectedKeys) {
+        // In longs, for more than ~750M keys the next power of two wouldn't fit in an int.
+        long wanted = Math.max(16, (long) (expectedKeys / MAX_LOAD));
+        this.slots = new long[(int) Math.min(MAX_SLOTS, Long.highestOneBit(wanted - 1) << 1)];
+    }
+
+    private CompactMemoryIndex(long[] slots) {
+        this.slots = slots;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bytes used by the arena pages and the hash table.
+     */
+    public long getMemoryBytes() {
+        return (long) pageCount * PAGE_SIZE + 8L * slots.length;
+    }
+
+    /**
+     * Bytes in the arena taken up by entries that were replaced when an ID was added.
+     */
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    public void add(String key, String id) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Key is too long: " + keyBytes.length + " bytes");
+        }
+        int packed = BandIdCodec.encode(id);
+        if (packed == BandIdCodec.NOT_PACKABLE) {
+            escapedIds.add(id);
+            packed = -escapedIds.size();
+        }
+
+        long hash = Utils.hash64(keyBytes);
+        int slot = findSlot(keyBytes, hash);
+        if (slots[slot] == 0) {
+            // Grown before the new key goes in, so a full index rejects it instead of taking it.
+            if (size + 1 > slots.length * MAX_LOAD) {
+                resize();
+                slot = findSlot(keyBytes, hash);
+            }
+            long address = appendEntry(keyBytes, null, 0, packed);
+            slots[slot] = slotValue(hash, address);
+            size++;
+        } else {
+            long oldAddress = (slots[slot] & ADDRESS_MASK) - 1;
+            long address = appendEntry(keyBytes, pages[page(oldAddress)], offset(oldAddress), packed);
+            slots[slot] = slotValue(hash, address);
+        }
+    }
+
+    /**
+     * Returns the IDs for the key, or null if it's not in the index.
+     */
+    public BandIds get(String key) {
+        long address = find(key);
+        if (address < 0) {
+            return null;
+        }
+        byte[] page = pages[page(address)];
+        int position = offset(address);
+        position += 2 + readShort(page, position);
+        int count = readShort(page, position);
+        position += 2;
+
+        int[] ids = new int[count];
+        boolean escaped = false;
+        for (int i = 0; i < count; i++) {
+            ids[i] = readInt(page, position + 4 * i);
+            escaped |= ids[i] < 0;
+        }
+        if (!escaped) {
+            return BandIds.ofPacked(ids);
+        }
+        BandIds result = BandIds.EMPTY;
+        for (int id : ids) {
+            result = result.with(id >= 0 ? BandIdCodec.decode(id) : escapedIds.get(-id - 1));
+        }
+        return result;
+    }
+
+    /**
+     * Adds the IDs for the key to the results, straight from the arena, without a BandIds
+     * in between.  Returns false if it's not in the index.
+     */
+    public boolean get(String key, BandIdBuffer results) {
+        long address = find(key);
+        if (address < 0) {
+            return false;
+        }
+        byte[] page = pages[page(address)];
+        int position = offset(address);
+        position += 2 + readShort(page, position);
+        int count = readShort(page, position);
+        position += 2;
+        for (int i = 0; i < count; i++) {
+            int id = readInt(page, position + 4 * i);
+            if (id >= 0) {
+                results.addPacked(id);
+            } else {
+                results.add(escapedIds.get(-id - 1));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * All the keys in the index, in no particular order.  Decodes every single one, so it's
+     * only for building something else out of them, like a sorted dictionary.
+     */
+    public String[] keys() {
+        String[] keys = new String[size];
+        int count = 0;
+        for (long value : slots) {
+            if (value != 0) {
+                long address = (value & ADDRESS_MASK) - 1;
+                byte[] page = pages[page(address)];
+                int position = offset(address);
+                keys[count++] = new String(page, position + 2, readShort(page, position), StandardCharsets.UTF_8);
+            }
+        }
+        return keys;
+    }
+
+    // Arena address of the key's entry, or -1.
+    private long find(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(keyBytes, Utils.hash64(keyBytes));
+        return slots[slot] == 0 ? -1 : (slots[slot] & ADDRESS_MASK) - 1;
+    }
+
+    public void clear() {
+        pages = new byte[0][];
+        pageCount = 0;
+        pagePosition = PAGE_SIZE;
+        Arrays.fill(slots, 0);
+        size = 0;
+        garbageBytes = 0;
+        escapedIds.clear();
+    }
+
+    /**
+     * Writes the index to the snapshot file: a header (with the source it was built from,
+     * and the IDs that couldn't be packed), then the arena pages and the hash table exactly
+     * as they are in memory.  Written to a temp file and renamed into place, so there's never
+     * a half-written snapshot.
+     */
+    public void save(File file, File source) throws IOException {
+        int lastPageBytes = pageCount == 0 ? 0 : pagePosition;
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeUTF(source.getAbsolutePath());
+        header.writeLong(source.length());
+        header.writeLong(source.lastModified());
+        header.writeInt(size);
+        header.writeLong(garbageBytes);
+        header.writeInt(pageCount);
+        header.writeInt(lastPageBytes);
+        header.writeInt(slots.length);
+        header.writeInt(escapedIds.size());
+        for (String id : escapedIds) {
+            header.writeUTF(id);
+        }
+        header.flush();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile output = new RandomAccessFile(tempFile, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            ByteBuffer prefix = ByteBuffer.allocate(12);
+            prefix.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(headerBytes.size()).flip();
+            writeFully(channel, prefix);
+            writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+            for (int i = 0; i < pageCount; i++) {
+                writeFully(channel, ByteBuffer.wrap(pages[i], 0, i == pageCount - 1 ? lastPageBytes : PAGE_SIZE));
+            }
+            ByteBuffer chunk = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < slots.length; i += SNAPSHOT_CHUNK_BYTES / 8) {
+                int count = Math.min(SNAPSHOT_CHUNK_BYTES / 8, slots.length - i);
+                chunk.clear();
+                chunk.asLongBuffer().put(slots, i, count);
+                chunk.limit(8 * count);
+                writeFully(channel, chunk);
+            }
+            channel.force(false);
+        } finally {
+            output.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the index saved in the snapshot file, or returns null if there's no such file,
+     * or it was built from something other than the source.  With a null source, it's
+     * loaded whatever it was built from, e.g. a snapshot built somewhere else and copied
+     * over.  Throws an IOException if it's not a snapshot, or it's truncated.
+     */
+    public static CompactMemoryIndex load(File file, File source) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer prefix = ByteBuffer.allocate(12);
+            readFully(channel, prefix);
+            prefix.flip();
+            if (prefix.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a compact index snapshot: " + file);
+            }
+            int version = prefix.getInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Snapshot " + file + " has format version " + version + ", expected "
+                        + SNAPSHOT_VERSION);
+            }
+            ByteBuffer headerBytes = ByteBuffer.allocate(prefix.getInt());
+            readFully(channel, headerBytes);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes.array()));
+            String sourcePath = header.readUTF();
+            long sourceLength = header.readLong();
+            long sourceLastModified = header.readLong();
+            if (source != null && (!sourcePath.equals(source.getAbsolutePath()) || sourceLength != source.length()
+                    || sourceLastModified != source.lastModified())) {
+                Utils.log("Snapshot " + file + " was built from a different input than " + source);
+                return null;
+            }
+            int size = header.readInt();
+            long garbageBytes = header.readLong();
+            int pageCount = header.readInt();
+            int lastPageBytes = header.readInt();
+            int slotCount = header.readInt();
+            int escapedCount = header.readInt();
+            if (size < 0 || pageCount < 0 || lastPageBytes < 0 || lastPageBytes > PAGE_SIZE || slotCount < 16 || slotCount > MAX_SLOTS
+                    || Integer.bitCount(slotCount) != 1 || size > slotCount * MAX_LOAD || escapedCount < 0) {
+                throw new IOException("Snapshot " + file + " is corrupt");
+            }
+            long pageBytes = pageCount == 0 ? 0 : (long) (pageCount - 1) * PAGE_SIZE + lastPageBytes;
+            if (channel.size() != 12 + headerBytes.capacity() + pageBytes + 8L * slotCount) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+
+            CompactMemoryIndex index = new CompactMemoryIndex(new long[slotCount]);
+            for (int i = 0; i < escapedCount; i++) {
+                index.escapedIds.add(header.readUTF());
+            }
+            index.pages = new byte[Math.max(4, pageCount)][];
+            for (int i = 0; i < pageCount; i++) {
+                index.pages[i] = new byte[PAGE_SIZE];
+                readFully(channel, ByteBuffer.wrap(index.pages[i], 0, i == pageCount - 1 ? lastPageBytes : PAGE_SIZE));
+            }
+            index.pageCount = pageCount;
+            index.pagePosition = pageCount == 0 ? PAGE_SIZE : lastPageBytes;
+            ByteBuffer chunk = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < slotCount; i += SNAPSHOT_CHUNK_BYTES / 8) {
+                int count = Math.min(SNAPSHOT_CHUNK_BYTES / 8, slotCount - i);
+                chunk.clear();
+                chunk.limit(8 * count);
+                readFully(channel, chunk);
+                chunk.flip();
+                chunk.asLongBuffer().get(index.slots, i, count);
+            }
+            index.size = size;
+            index.garbageBytes = garbageBytes;
+            return index;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * True if the file is a snapshot written by save(), rather than an input file.
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        if (file.length() < 4) {
+            return false;
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.readInt() == SNAPSHOT_MAGIC;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Snapshot ended early");
+            }
+        }
+    }
+
+    /**
+     * Linear probing; returns the slot holding the key, or the empty slot where it would go.
+     */
+    private int findSlot(byte[] keyBytes, long hash) {
+        int mask = slots.length - 1;
+        long tag = hash >>> 48;
+        int slot = (int) hash & mask;
+        while (true) {
+            long value = slots[slot];
+            if (value == 0) {
+                return slot;
+            }
+            if ((value >>> 48) == tag && keyEquals((value & ADDRESS_MASK) - 1, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        byte[] page = pages[page(address)];
+        int position = offset(address);
+        if (readShort(page, position) != keyBytes.length) {
+            return false;
+        }
+        position += 2;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (page[position + i] != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends an entry for the key with the IDs of the previous entry (if any) plus the new
+     * one, and returns its address.
+     */
+    private long appendEntry(byte[] keyBytes, byte[] previousPage, int previousOffset, int packed) {
+        int previousCount = 0;
+        int previousIds = 0;
+        if (previousPage != null) {
+            previousIds = previousOffset + 2 + keyBytes.length;
+            previousCount = readShort(previousPage, previousIds);
+            previousIds += 2;
+            if (previousCount == 0xffff) {
+                throw new IllegalStateException("Too many IDs for a single band");
+            }
+            garbageBytes += 4 + keyBytes.length + 4 * previousCount;
+        }
+
+        int entryBytes = 4 + keyBytes.length + 4 * (previousCount + 1);
+        if (pagePosition + entryBytes > PAGE_SIZE) {
+            addPage();
+        }
+        byte[] page = pages[pageCount - 1];
+        long address = ((long) (pageCount - 1) << PAGE_BITS) | pagePosition;
+
+        int position = pagePosition;
+        writeShort(page, position, keyBytes.length);
+        System.arraycopy(keyBytes, 0, page, position + 2, keyBytes.length);
+        position += 2 + keyBytes.length;
+        writeShort(page, position, previousCount + 1);
+        position += 2;
+        if (previousCount > 0) {
+            System.arraycopy(previousPage, previousIds, page, position, 4 * previousCount);
+            position += 4 * previousCount;
+        }
+        writeInt(page, position, packed);
+
+        pagePosition += entryBytes;
+        return address;
+    }
+
+    private void addPage() {
+        if (pageCount == pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(4, pageCount * 2));
+        }
+        pages[pageCount++] = new byte[PAGE_SIZE];
+        pagePosition = 0;
+    }
+
+    private void resize() {
+        if (slots.length >= MAX_SLOTS) {
+            throw new IllegalStateException("Compact index is full, it can't hold more than " + size
+                    + " bands, use the DiskIndexSearcher for bigger inputs");
+        }
+        long[] oldSlots = slots;
+        slots = new long[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (long value : oldSlots) {
+            if (value == 0) {
+                continue;
+            }
+            long address = (value & ADDRESS_MASK) - 1;
+            byte[] page = pages[page(address)];
+            int position = offset(address);
+            long hash = Utils.hash64(Arrays.copyOfRange(page, position + 2, position + 2 + readShort(page, position)));
+            int slot = (int) hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = value;
+        }
+    }
+
+    private static long slotValue(long hash, long address) {
+        return (hash >>> 48) << 48 | (address + 1);
+    }
+
+    private static int page(long address) {
+        return (int) (address >>> PAGE_BITS);
+    }
+
+    private static int offset(long address) {
+        return (int) (address & (PAGE_SIZE - 1));
+    }
+
+    private static int readShort(byte[] page, int position) {
+        return ((page[position] & 0xff) << 8) | (page[position + 1] & 0xff);
+    }
+
+    private static void writeShort(byte[] page, int position, int value) {
+        page[position] = (byte) (value >>> 8);
+        page[position + 1] = (byte) value;
+    }
+
+    private static int readInt(byte[] page, int position) {
+        return ((page[position] & 0xff) << 24) | ((page[position + 1] & 0xff) << 16)
+                | ((page[position + 2] & 0xff) << 8) | (page[position + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] page, int position, int value) {
+        page[position] = (byte) (value >>> 24);
+        page[position + 1] = (byte) (value >>> 16);
+        page[position + 2] = (byte) (value >>> 8);
+        page[position + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,490 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * The LSM part of the DiskIndex: updates and deletes that haven't been merged into the
+ * segments yet.
+ *
+ * Every change replaces the whole value of a band, and a delete is just a change to
+ * BandIds.EMPTY (a tombstone), so replaying them is idempotent.  A change is first
+ * appended to the write-ahead log, and then put in the memtable, a sorted concurrent map
+ * that lookups check before going anywhere else.  When the memtable gets big enough it's
+ * frozen and written out as a sorted "run" file, and a new log is started, so the old
+ * one can go.  Runs are kept in memory too (deltas are small compared to the catalog)
+ * until a compaction merges them into the segments and drops them.
+ *
+ * On startup the runs are loaded and the logs replayed into the memtable, stopping at the
+ * first torn or corrupt record in each log.  That can only be the last one in the log: an
+ * append that fails halfway is cut back out of the log before the next one goes in, or if
+ * even that fails, the log is left behind it and a new one is started.
+ *
+ * Writes are serialized, lookups never lock.  Syncing the log is done outside of the
+ * lock though, and one fsync covers everything written before it, so writers that arrive
+ * while a sync is in flight share the next one (group commit) instead of queueing up
+ * one fsync each.
+ */
+public class DeltaStore {
+    private static final int RUN_MAGIC = 0x5052554e;  // "PRUN"
+    private static final int WAL_BUFFER_BYTES = 1 << 12;
+
+    // Rough size of a memtable entry besides the key chars and the IDs.
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final File directory;
+    private final long memtableMaxBytes;
+    private final boolean syncWal;
+
+    private volatile ConcurrentSkipListMap<String, BandIds> memtable = new ConcurrentSkipListMap<String, BandIds>();
+    private long memtableBytes = 0;
+
+    // Newest first, replaced as a whole (copy on write).
+    private volatile List<Run> runs = Collections.emptyList();
+    private volatile boolean empty = true;
+
+    private FileChannel wal;
+    private File walFile;
+    private long nextFileNumber = 0;
+
+    // Log records written so far, and how many of those are known to be on disk.
+    private long writtenSequence = 0;
+    private volatile long syncedSequence = 0;
+    private final Object syncLock = new Object();
+
+    public DeltaStore(File directory, long memtableMaxBytes, boolean syncWal) throws IOException {
+        this.directory = directory;
+        this.memtableMaxBytes = memtableMaxBytes;
+        this.syncWal = syncWal;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        recover();
+    }
+
+    /**
+     * Returns the latest value written for the key (EMPTY if it was deleted), or null if
+     * there's no pending change for it and the segments have the answer.
+     */
+    public BandIds get(String key) {
+        if (empty) {
+            return null;
+        }
+        BandIds ids = memtable.get(key);
+        if (ids != null) {
+            return ids;
+        }
+        for (Run run : runs) {
+            ids = run.entries.get(key);
+            if (ids != null) {
+                return ids;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * All the keys with a pending change, deleted ones too.
+     */
+    public Set<String> getKeys() {
+        Set<String> keys = new HashSet<String>(memtable.keySet());
+        for (Run run : runs) {
+            keys.addAll(run.entries.keySet());
+        }
+        return keys;
+    }
+
+    /**
+     * Logs the change and applies it to the memtable.  Use BandIds.EMPTY to delete the key.
+     * Returns true if the memtable was flushed into a new run because of it.  When the log
+     * is synced, this only returns once the change is on disk.
+     */
+    public boolean put(String key, final BandIds ids) throws IOException {
+        return merge(key, new Function<BandIds, BandIds>() {
+            @Override
+            public BandIds apply(BandIds pending) {
+                return ids;
+            }
+        });
+    }
+
+    /**
+     * Same as put(), with the new value worked out from the pending one (null if there's
+     * none) under the store's lock, so a change to the key from another thread can't land
+     * between the read and the write and get lost.  If the function returns null, nothing
+     * is written (and it returns false).
+     */
+    public boolean merge(String key, Function<BandIds, BandIds> function) throws IOException {
+        long sequence;
+        boolean flushed = false;
+        synchronized (this) {
+            BandIds ids = function.apply(get(key));
+            if (ids == null) {
+                return false;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key);
+            ids.writeTo(out);
+            appendToWal(bytes.toByteArray());
+            sequence = ++writtenSequence;
+
+            BandIds previous = memtable.put(key, ids);
+            memtableBytes += entryBytes(key, ids) - (previous != null ? entryBytes(key, previous) : 0);
+            empty = false;
+
+            if (memtableBytes >= memtableMaxBytes) {
+                flushMemtable();
+                flushed = true;
+            }
+        }
+
+        if (syncWal) {
+            syncUpTo(sequence);
+        }
+        return flushed;
+    }
+
+    /**
+     * Makes sure the log is on disk at least up to the given record.  Whoever gets the
+     * sync lock syncs everything written so far, so the ones waiting behind it usually
+     * find their record already synced and return right away.
+     */
+    private void syncUpTo(long sequence) throws IOException {
+        synchronized (syncLock) {
+            while (syncedSequence < sequence) {
+                long target;
+                FileChannel channel;
+                synchronized (this) {
+                    target = writtenSequence;
+                    channel = wal;
+                }
+                if (channel == null) {
+                    throw new IOException("Write-ahead log is closed");
+                }
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // Rotated (and forced) by a memtable flush, check again.
+                    continue;
+                }
+                if (syncedSequence < target) {
+                    syncedSequence = target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Freezes the memtable into a new run (file and in-memory), and starts a new log.
+     */
+    public synchronized void flushMemtable() throws IOException {
+        if (memtable.isEmpty()) {
+            return;
+        }
+        ConcurrentSkipListMap<String, BandIds> frozen = memtable;
+        File runFile = new File(directory, String.format("run%06d.dat", nextFileNumber++));
+        writeRun(runFile, frozen);
+
+        // The run becomes visible before the memtable is replaced, so lookups never miss it.
+        List<Run> newRuns = new ArrayList<Run>(runs.size() + 1);
+        newRuns.add(new Run(runFile, Collections.unmodifiableNavigableMap(frozen)));
+        newRuns.addAll(runs);
+        runs = Collections.unmodifiableList(newRuns);
+        memtable = new ConcurrentSkipListMap<String, BandIds>();
+        memtableBytes = 0;
+
+        // Everything in the old log is in the run now.
+        File oldWal = walFile;
+        openNewWal();
+        syncedSequence = writtenSequence;
+        if (oldWal != null) {
+            oldWal.delete();
+        }
+    }
+
+    /**
+     * The runs there are right now, oldest first, for a compaction.
+     */
+    public List<Run> getRuns() {
+        List<Run> snapshot = new ArrayList<Run>(runs);
+        Collections.reverse(snapshot);
+        return snapshot;
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * All the changes in the given runs, the newer runs winning, sorted by key.
+     */
+    public static NavigableMap<String, BandIds> merge(List<Run> oldestFirst) {
+        TreeMap<String, BandIds> merged = new TreeMap<String, BandIds>();
+        for (Run run : oldestFirst) {
+            merged.putAll(run.entries);
+        }
+        return merged;
+    }
+
+    /**
+     * Drops runs that were merged into the segments (and made durable there).
+     */
+    public synchronized void removeRuns(List<Run> compacted) {
+        List<Run> remaining = new ArrayList<Run>(runs);
+        remaining.removeAll(compacted);
+        runs = Collections.unmodifiableList(remaining);
+        for (Run run : compacted) {
+            if (!run.file.delete()) {
+                log("Unable to delete compacted run " + run.file);
+            }
+        }
+        empty = remaining.isEmpty() && memtable.isEmpty();
+    }
+
+    public synchronized void close() {
+        if (wal != null) {
+            try {
+                wal.force(false);
+                wal.close();
+            } catch (IOException e) {
+                log("Error while closing write-ahead log " + walFile, e);
+            }
+            wal = null;
+        }
+    }
+
+    private void appendToWal(byte[] payload) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc32.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        long start = wal.position();
+        try {
+            while (buffer.hasRemaining()) {
+                wal.write(buffer);
+            }
+        } catch (IOException e) {
+            discardTornRecord(start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a partly written record (e.g. the disk filled up) back out of the log, so the
+     * changes logged after it aren't lost behind it on replay.  If the log can't even be
+     * truncated, a new one is started, and the old one ends with the torn record.
+     */
+    private void discardTornRecord(long start, IOException cause) {
+        try {
+            wal.truncate(start);
+            wal.position(start);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            try {
+                openNewWal();
+            } catch (IOException rotateError) {
+                cause.addSuppressed(rotateError);
+            }
+        }
+    }
+
+    private void openNewWal() throws IOException {
+        if (wal != null) {
+            wal.force(false);
+            wal.close();
+        }
+        walFile = new File(directory, String.format("wal%06d.log", nextFileNumber++));
+        wal = new RandomAccessFile(walFile, "rw").getChannel();
+        wal.position(wal.size());
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        Arrays.sort(files);
+
+        List<Run> loaded = new ArrayList<Run>();
+        List<File> logs = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("run") && name.endsWith(".dat")) {
+                loaded.add(0, new Run(file, Collections.unmodifiableNavigableMap(readRun(file))));
+            } else if (name.startsWith("wal") && name.endsWith(".log")) {
+                logs.add(file);
+            } else {
+                continue;
+            }
+            nextFileNumber = Math.max(nextFileNumber, Long.parseLong(name.substring(3, 9)) + 1);
+        }
+        runs = Collections.unmodifiableList(loaded);
+
+        long replayed = 0;
+        for (File log : logs) {
+            replayed += replayWal(log);
+        }
+        empty = runs.isEmpty() && memtable.isEmpty();
+        if (!empty) {
+            log("Recovered " + runs.size() + " delta runs and " + replayed + " logged changes from " + directory);
+        }
+
+        // Start clean: whatever was replayed goes into a run, and the old logs can go.
+        openNewWal();
+        if (!memtable.isEmpty()) {
+            flushMemtable();
+        }
+        for (File log : logs) {
+            log.delete();
+        }
+    }
+
+    private long replayWal(File file) throws IOException {
+        long count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), WAL_BUFFER_BYTES));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length < 0 || length > (1 << 20)) {
+                    throw new IOException("bad record length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc32 = new CRC32();
+                crc32.update(payload);
+                if ((int) crc32.getValue() != checksum) {
+                    throw new IOException("bad record checksum");
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                String key = record.readUTF();
+                BandIds ids = BandIds.readFrom(record);
+                BandIds previous = memtable.put(key, ids);
+                memtableBytes += entryBytes(key, ids) - (previous != null ? entryBytes(key, previous) : 0);
+                count++;
+            }
+        } catch (IOException e) {
+            // A torn write at the end of the log, from a crash in the middle of an append.
+            log("Write-ahead log " + file + " ends with an incomplete record after " + count + " changes, ignoring it", e);
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    private static void writeRun(File file, Map<String, BandIds> entries) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+        CRC32 crc32 = new CRC32();
+        try {
+            out.writeInt(RUN_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, BandIds> entry : entries.entrySet()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream record = new DataOutputStream(bytes);
+                record.writeUTF(entry.getKey());
+                entry.getValue().writeTo(record);
+                crc32.update(bytes.toByteArray());
+                bytes.writeTo(out);
+            }
+            out.writeLong(crc32.getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static TreeMap<String, BandIds> readRun(File file) throws IOException {
+        TreeMap<String, BandIds> entries = new TreeMap<String, BandIds>();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 16 || in.readInt() != RUN_MAGIC) {
+            throw new IOException("Not a delta run file: " + file);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            entries.put(key, BandIds.readFrom(in));
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 8, bytes.length - 16);
+        if (in.readLong() != crc32.getValue() || in.available() != 0) {
+            throw new IOException("Delta run " + file + " is corrupt");
+        }
+        return entries;
+    }
+
+    private static long entryBytes(String key, BandIds ids) {
+        return 2L * key.length() + ENTRY_OVERHEAD_BYTES + ids.estimateBytes();
+    }
+
+    /**
+     * A flushed memtable: its file, and the same changes in memory for lookups.
+     */
+    public static class Run {
+        private final File file;
+        private final NavigableMap<String, BandIds> entries;
+
+        Run(File file, NavigableMap<String, BandIds> entries) {
+            this.file = file;
+            this.entries = entries;
+        }
+
+        public NavigableMap<String, BandIds> getEntries() {
+            return entries;
+        }
+
+        @Override
+        public String toString() {
+            return "Run{file=" + file + ", entries=" + entries.size() + '}';
+        }
+    }
+}
@@ -1,160 +1,2566 @@
 package com.mjuarez.pandora;
 
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
 import com.mjuarez.pandora.utils.BloomFilter;
+import com.mjuarez.pandora.utils.Cache;
 import com.mjuarez.pandora.utils.LRUCache;
+import com.mjuarez.pandora.utils.LatencyHistogram;
+import com.mjuarez.pandora.utils.Metrics;
+import com.mjuarez.pandora.utils.NameNormalizer;
+import com.mjuarez.pandora.utils.TrigramIndex;
+import com.mjuarez.pandora.utils.TinyLfuCache;
 import com.mjuarez.pandora.utils.Utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
 
 /**
  * Class that represents the entire catalog of disk indexes, and that contains both "caching" layers,
- * the bloom filter and the LRU cache.
+ * the bloom filter and the result cache.
+ *
+ * The result cache is a TinyLfuCache bounded by (approximate) bytes by default, set
+ * -Dpandora.cache=lru to go back to the old LRUCache.  Bloom filter false positives are
+ * cached too, as empty results, so repeated queries for them don't go down to disk.
+ *
+ * Updates and deletes don't touch the segments, they go into the DeltaStore (write-ahead
+ * log plus memtable), which every lookup checks first.  Once enough runs of changes have
+ * piled up, a background compaction rewrites the segments they touch and drops them.
+ * Deleted keys stay in the bloom filter until then, and a compaction with deletes in it
+ * rebuilds the filter from the segments so it doesn't fill up with dead keys.
+ *
+ * Each segment has a single writer (SegmentWriter) that batches whatever is queued for it
+ * into one append and at most one sync, and then publishes the new records in the header.
+ * Readers never wait for writers: the headers are read without locks, and each segment has
+ * a StampedLock that's only really taken (in write mode) to swap the segment after a
+ * compaction, which lookups detect with an optimistic read and retry.
+ *
+ * Sorted builds write the segments as KeyBlocks (front-coded, optionally compressed),
+ * unless -Dpandora.blockSegments=false, and the header only keeps the first key of each
+ * block.  Records added afterwards are appended as plain records after the blocks, and a
+ * compaction merges everything back into blocks.
+ *
+ * Every lookup is counted by the layer that answered it (deltas, bloom filter, cache or
+ * disk), and timed into that layer's latency histogram, see Metrics.  They're registered
+ * over JMX as com.mjuarez.pandora:type=DiskIndex, and dumped to the log every
+ * -Dpandora.metricsDumpSeconds if set.  -Dpandora.latencyHistograms=false skips the timing.
+ *
+ * Prefix searches go to a separate sorted dictionary of all the keys, the PrefixIndex.  It's
+ * built along with the catalog, from the keys as they're written, and saved with it; keys
+ * added afterwards are kept in memory and merged into it on the next flush, and deleted
+ * ones are filtered out through the deltas until a compaction drops them from it too.
+ *
+ * Fuzzy searches (searchFuzzy() and findSimilar()) go through a TrigramIndex over the keys
+ * of the prefix dictionary, built in memory in the background whenever the dictionary is
+ * opened or rewritten; until the first one is ready they only look at the keys added since
+ * (and searchFuzzy() at the exact key), so no query ever waits for a build.  They allow
+ * up to -Dpandora.fuzzyMaxDistance edits (2 by default, fewer for short names) and give up
+ * after -Dpandora.fuzzyBudgetMs.
+ *
+ * The catalog lives in -Dpandora.indexDir (/tmp/index by default), and holds either all of
+ * the input or just one Shard of it (-Dpandora.shard), when it's split across several
+ * processes behind a ShardRouter.
+ *
+ * Keys go to segments by jump consistent hashing, over -Dpandora.segments segments (1,000
+ * by default) for a new catalog; the count is saved in the manifest.  When the segments
+ * grow past -Dpandora.maxSegmentMb on average, split() adds segments in the background so
+ * they stay about the same size, and every lookup keeps reading a bounded amount.  A split
+ * only moves the keys that go to the new segments, one old segment at a time, while
+ * searches and updates go on; see split().
+ *
+ * searchAsync() answers from the deltas, bloom filter and cache right away, like search(),
+ * and otherwise reads the segment on a pool of -Dpandora.ioThreads I/O threads, so callers
+ * can keep many reads going at once without a thread each.  Each segment runs at most
+ * -Dpandora.segmentReadsInFlight of them at a time (see SegmentReadQueue), and a miss for
+ * a key that's already being read waits for that read instead of starting another one, so
+ * a hot key that drops out of the cache doesn't send every caller down to disk at once.
+ *
+ * What's hot (the keys in the cache and the disk reads of each segment, see HotSet) is
+ * saved every -Dpandora.hotSetSaveSeconds and on shutdown.  When an existing catalog is
+ * opened, the hottest segments are read into the page cache (up to -Dpandora.warmupMb)
+ * and the saved keys looked up again, all before the constructor returns, so a searcher
+ * that was just restarted doesn't take its first queries cold.  -Dpandora.warmup=false
+ * skips it.
  */
 public class DiskIndex implements Index {
-    private final BloomFilter bloomFilter;
-    private List<IndexStructure> indexStructures;
-    private LRUCache<String, String> lruCache;
+    // Routing hash for segments, and fingerprint hash for the segment headers.
+    private static final String HASH_FUNCTION = "jump-fnv1a64/fnv1a64/blocked-bloom";
+    // So the segment a key goes to has nothing to do with its shard or its fingerprint.
+    private static final long SEGMENT_HASH_SEED = 0x9e3779b97f4a7c15L;
 
-    private final String indexBaseDirectory = "/tmp/index/";
-    private final String idDelimiter = "-";
+    // Only used to size the bloom filter before we know how many keys there really are.
+    private static final int ESTIMATED_LINE_BYTES = 40;
 
-    private final int totalIndexFiles = 1_000;
+    private volatile BloomFilter bloomFilter;
+    private final Object bloomLock = new Object();
+    // Keys added while the bloom filter is being rebuilt, to add to the new one as well.
+    private List<String> bloomRebuildPending;
+
+    // Segments are only ever swapped (by a compaction or a split) under their write lock.
+    // Appends hold the read lock, and lookups use optimistic reads, so they never block
+    // anybody.  The arrays are only replaced by bigger copies, when a split adds segments.
+    private final List<IndexStructure> indexStructures;
+    private volatile StampedLock[] segmentLocks = new StampedLock[0];
+    // Bumped every time records are published to the segment.  Appends only hold the read
+    // lock, so they don't invalidate optimistic stamps, and a lookup that started before an
+    // append checks this instead before it caches what it found (maybe a miss), see
+    // cacheResult().
+    private volatile AtomicLong[] segmentVersions = new AtomicLong[0];
+
+    // One writer per segment, all sharing a pool, see SegmentWriter.
+    private volatile SegmentWriter[] segmentWriters = new SegmentWriter[0];
+
+    // Asynchronous reads, bounded per segment and all sharing a pool, see searchAsync().
+    private volatile SegmentReadQueue[] segmentReaders = new SegmentReadQueue[0];
+    private final ExecutorService ioExecutor;
+    private final int segmentReadsInFlight = Integer.getInteger("pandora.segmentReadsInFlight", 4);
+    // The read in progress for each key, which later misses for it wait for.
+    private final ConcurrentHashMap<String, CompletableFuture<BandIds>> pendingReads =
+            new ConcurrentHashMap<String, CompletableFuture<BandIds>>();
+    private final SegmentWriter.Sink segmentSink;
+    private final ExecutorService writerExecutor;
+    private final boolean syncWrites = Boolean.getBoolean("pandora.syncWrites");
+
+    private final Cache<String, BandIds> cache;
+
+    // Several searcher processes on the same machine (shards, replicas) need their own.
+    private final String indexBaseDirectory = System.getProperty("pandora.indexDir", "/tmp/index") + File.separator;
+    private final Shard shard = Shard.fromSystemProperties();
+
+    // Only for new catalogs, an existing one keeps the count in its manifest.
+    private final int initialSegmentCount = Integer.getInteger("pandora.segments", 1_000);
+    private final long maxSegmentBytes = Long.getLong("pandora.maxSegmentMb", 256) << 20;
+    private volatile Routing routing;
+    // Adds hold the read lock while they write, a split takes the write lock to finish each
+    // of the old segments, see split().
+    private final ReentrantReadWriteLock splitLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean splitScheduled = new AtomicBoolean();
+    // Segment files are numbered with 5 digits.
+    private static final int MAX_SEGMENTS = 100_000;
+    // Moved records are appended to their new segments in blocks of about this much.
+    private static final int MOVE_BLOCK_BYTES = 1 << 20;
     private final int LRU_CACHE_SIZE = 10_000;
 
-    public DiskIndex() {
-        this.indexStructures = new ArrayList<IndexStructure>();
+    // Rough size of a cached entry besides the key chars and the IDs: map entry, node, String.
+    private static final int CACHE_ENTRY_OVERHEAD_BYTES = 40;
+
+    // Batch reads go through a window of the segment this big, records are way smaller.
+    private static final int BATCH_READ_BYTES = 64 << 10;
+    private final int batchThreads = Integer.getInteger("pandora.batchThreads",
+            2 * Runtime.getRuntime().availableProcessors());
+    private ExecutorService batchExecutor;
+
+    private final File source;
+    private final File manifestFile = new File(indexBaseDirectory + "catalog.manifest");
+    private final File bloomFilterFile = new File(indexBaseDirectory + "bloom.bin");
+    private final File deltaDirectory = new File(indexBaseDirectory + "deltas");
+
+    private final DeltaStore deltas;
+    private final long memtableMaxBytes = Long.getLong("pandora.memtableMb", 32) << 20;
+    private final boolean syncWal = Boolean.parseBoolean(System.getProperty("pandora.walSync", "true"));
+    private final int compactionRuns = Integer.getInteger("pandora.compactionRuns", 4);
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private ExecutorService compactionExecutor;
+
+    private final double bloomFalsePositiveRate =
+            Double.parseDouble(System.getProperty("pandora.bloomFalsePositiveRate", "0.01"));
+
+    // Block format for sorted segments, see KeyBlock.
+    private final boolean blockSegments = Boolean.parseBoolean(System.getProperty("pandora.blockSegments", "true"));
+    private final boolean blockCompression =
+            !"none".equalsIgnoreCase(System.getProperty("pandora.blockCompression", "deflate"));
+    private final int blockBytes = Integer.getInteger("pandora.blockBytes", 4 << 10);
+
+    // Read records straight from memory-mapped segments, instead of through a file each time.
+    private final boolean mmapReads = Boolean.parseBoolean(System.getProperty("pandora.mmap", "true"));
+
+    // Saved every so often and on shutdown, and warmed up from on start, see warmUp().
+    private final File hotSetFile = new File(indexBaseDirectory + "hotset.bin");
+    private final int hotSetKeys = Integer.getInteger("pandora.hotSetKeys", 100_000);
+    private final boolean warmup = Boolean.parseBoolean(System.getProperty("pandora.warmup", "true"));
+    private final long warmupBytes = Long.getLong("pandora.warmupMb", 1024) << 20;
+    private static final int WARMUP_BATCH_KEYS = 1_000;
+    // Disk reads of each segment since the catalog was opened, plus half of the saved ones.
+    private volatile LongAdder[] segmentReadCounts = new LongAdder[0];
+    private ScheduledExecutorService hotSetSaver;
+
+    // Verifying the .dat checksums means reading the whole catalog, so it's off by default.
+    private final boolean verifyChecksums = Boolean.getBoolean("pandora.verifyChecksums");
+
+    private final File prefixIndexFile = new File(indexBaseDirectory + "prefix.dict");
+    private final File prefixSortDirectory = new File(indexBaseDirectory + "prefix-sort");
+    private final long prefixSortMemoryBytes = Long.getLong("pandora.prefixSortMemoryMb", 64) << 20;
+    private volatile PrefixIndex prefixIndex;
+    // Only while a new catalog is being built, until its first flush.
+    private PrefixIndex.Builder prefixBuilder;
+    private final NavigableSet<String> prefixAdditions = new ConcurrentSkipListSet<String>(PrefixIndex.KEY_ORDER);
+    private final Object prefixLock = new Object();
+    private final Object prefixRewriteLock = new Object();
+
+    private volatile TrigramIndex trigramIndex;
+    private final AtomicBoolean trigramRebuildScheduled = new AtomicBoolean();
+    private final int fuzzyMaxDistance = Integer.getInteger("pandora.fuzzyMaxDistance", 2);
+    private final long fuzzyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("pandora.fuzzyBudgetMs", 10));
+
+    private final Metrics metrics = new Metrics("DiskIndex");
+    private final LongAdder deltaHits = metrics.counter("deltaHits");
+    private final LongAdder bloomRejects = metrics.counter("bloomRejects");
+    private final LongAdder cacheHits = metrics.counter("cacheHits");
+    private final LongAdder cacheMisses = metrics.counter("cacheMisses");
+    private final LongAdder diskReads = metrics.counter("diskReads");
+    private final LongAdder diskMisses = metrics.counter("diskMisses");
+    private final LongAdder diskErrors = metrics.counter("diskErrors");
+    private final LongAdder asyncReads = metrics.counter("asyncReads");
+    private final LongAdder coalescedReads = metrics.counter("coalescedReads");
+    private final LongAdder batches = metrics.counter("batches");
+    private final LongAdder compactions = metrics.counter("compactions");
+    private final LongAdder splits = metrics.counter("splits");
+    private final LongAdder movedRecords = metrics.counter("movedRecords");
+    private final LongAdder prefixSearches = metrics.counter("prefixSearches");
+    private final LongAdder fuzzySearches = metrics.counter("fuzzySearches");
+    private final LongAdder fuzzyMisses = metrics.counter("fuzzyMisses");
+    private final LatencyHistogram deltaLatency = metrics.histogram("deltaLatency");
+    private final LatencyHistogram bloomLatency = metrics.histogram("bloomLatency");
+    private final LatencyHistogram cacheLatency = metrics.histogram("cacheLatency");
+    private final LatencyHistogram diskLatency = metrics.histogram("diskLatency");
+    private final LatencyHistogram batchLatency = metrics.histogram("batchLatency");
+    private final LatencyHistogram compactionLatency = metrics.histogram("compactionLatency");
+    private final LatencyHistogram splitLatency = metrics.histogram("splitLatency");
+    private final LatencyHistogram prefixLatency = metrics.histogram("prefixLatency");
+    private final LatencyHistogram fuzzyLatency = metrics.histogram("fuzzyLatency");
+    private final boolean timed = Boolean.parseBoolean(System.getProperty("pandora.latencyHistograms", "true"));
+
+    private final boolean catalogLoaded;
+    private boolean sourceChanged = false;
+    private volatile boolean dirty = false;
+    private volatile boolean sortedSegments = false;
+
+    /**
+     * Opens the catalog in the index base directory if its manifest says it was built from
+     * the given source file, otherwise starts a new, empty catalog that has to be filled in
+     * with add() and then flush()ed.
+     */
+    public DiskIndex(File source) {
+        this(source, null);
+    }
+
+    /**
+     * Same as above, but with the given result cache in front of the segments (null for
+     * the default one, see createCache()).
+     */
+    public DiskIndex(File source, Cache<String, BandIds> cache) {
+        this.source = source;
+        this.indexStructures = new CopyOnWriteArrayList<IndexStructure>();
+        this.writerExecutor = newDaemonPool("pandora-writer",
+                Integer.getInteger("pandora.writerThreads", Runtime.getRuntime().availableProcessors()));
+        // Sized for the device's queues rather than the cores, the threads mostly wait on I/O.
+        this.ioExecutor = newDaemonPool("pandora-io", Integer.getInteger("pandora.ioThreads", 32));
+        this.segmentSink = new SegmentWriter.Sink() {
+            @Override
+            public void write(int segmentNumber, List<RecordBlock> blocks, boolean sync) throws IOException {
+                writeBlocks(segmentNumber, blocks, sync);
+            }
+        };
+
+        this.cache = cache != null ? cache : createCache();
+        bloomFilter = new BloomFilter(Math.max(1, source.length() / ESTIMATED_LINE_BYTES / shard.getCount()),
+                bloomFalsePositiveRate);
+
+        catalogLoaded = openCatalog();
+        if (!catalogLoaded) {
+            initializeIndexes();
+        }
+
+        // Changes made on top of a different input don't apply to the new one.
+        if (sourceChanged) {
+            discardDeltas();
+        }
+        try {
+            deltas = new DeltaStore(deltaDirectory, memtableMaxBytes, syncWal);
+        } catch (IOException e) {
+            Utils.log("Unable to open the delta store in " + deltaDirectory, e);
+            throw new RuntimeException("Unable to open the delta store in " + deltaDirectory, e);
+        }
+        if (catalogLoaded) {
+            openPrefixIndex();
+        }
+        seedPrefixAdditions();
+        if (catalogLoaded && warmup) {
+            warmUp();
+        }
+        startSavingHotSet(Long.getLong("pandora.hotSetSaveSeconds", 300));
+
+        metrics.register();
+        metrics.startDumping(Long.getLong("pandora.metricsDumpSeconds", 0));
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The part of the input this catalog holds, see Shard.
+     */
+    public Shard getShard() {
+        return shard;
+    }
+
+    /**
+     * True if an existing catalog was opened, so there is no need to add the source data again.
+     */
+    public boolean isCatalogLoaded() {
+        return catalogLoaded;
+    }
+
+    /**
+     * True if every segment holds its records sorted by key, one record per key, i.e. it
+     * was built by the SortedSegmentBuilder and nothing was appended to it afterwards.
+     */
+    public boolean hasSortedSegments() {
+        return sortedSegments;
+    }
+
+    @Override
+    public BandIds search(String query) {
+        long start = timed ? System.nanoTime() : 0;
+        BandIds result = searchInMemory(query, start);
+        if (result != null) {
+            return result;
+        }
+
+        // Only go down to disk when both bloomFilter and cache failed.
+        result = readFromDisk(query);
+        record(diskLatency, start);
+        return result;
+    }
+
+    /**
+     * Same as search(), but a lookup that has to go down to disk decodes the IDs from the
+     * mapped record or block straight into the results, instead of into a BandIds first.
+     * The only BandIds it makes is the copy it caches, so the next lookup of the key is a
+     * cache hit, which doesn't allocate anything.
+     */
+    @Override
+    public int search(String query, BandIdBuffer results) {
+        long start = timed ? System.nanoTime() : 0;
+        results.clear();
+        BandIds result = searchInMemory(query, start);
+        if (result != null) {
+            results.addAll(result);
+            return results.size();
+        }
+
+        readFromDisk(query, results);
+        record(diskLatency, start);
+        return results.size();
+    }
+
+    /**
+     * Same as search(), but a lookup that has to go down to disk runs on the I/O pool
+     * instead of the calling thread, once the key's segment has room for another read.
+     * Concurrent misses for the same key share a single read.  The future never completes
+     * exceptionally for I/O errors, those are a (logged) empty result, like in search().
+     */
+    @Override
+    public CompletableFuture<BandIds> searchAsync(final String query) {
+        final long start = timed ? System.nanoTime() : 0;
+        BandIds result = searchInMemory(query, start);
+        if (result != null) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        final CompletableFuture<BandIds> read = new CompletableFuture<BandIds>();
+        CompletableFuture<BandIds> inFlight = pendingReads.putIfAbsent(query, read);
+        if (inFlight != null) {
+            coalescedReads.increment();
+            return inFlight;
+        }
+        // A read that was in flight a moment ago may have cached the result since.
+        result = cache.get(query);
+        if (result != null) {
+            pendingReads.remove(query, read);
+            read.complete(result);
+            return read;
+        }
+
+        asyncReads.increment();
+        int segmentNumber = routing.getSegmentNumber(segmentHash(query));
+        segmentReaders[segmentNumber].submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BandIds found = readFromDisk(query);
+                    record(diskLatency, start);
+                    // The result is already cached, so nobody starts another read from here on.
+                    pendingReads.remove(query, read);
+                    read.complete(found);
+                } catch (RuntimeException e) {
+                    pendingReads.remove(query, read);
+                    read.completeExceptionally(e);
+                }
+            }
+        });
+        return read;
+    }
+
+    /**
+     * Answers the query from the deltas, bloom filter or cache, and times it, or returns
+     * null if it has to go down to disk.
+     */
+    private BandIds searchInMemory(String query, long start) {
+        // Pending updates and deletes win over everything else.
+        BandIds delta = deltas.get(query);
+        if (delta != null) {
+            deltaHits.increment();
+            record(deltaLatency, start);
+            return delta;
+        }
+
+        // If bloomFilter returns false, don't even try to look for it.
+        if (!bloomFilter.maybeContains(query)) {
+            bloomRejects.increment();
+            record(bloomLatency, start);
+            return BandIds.EMPTY;
+        }
+
+        // If it's in the cache, immediately return the cached value (possibly a cached miss).
+        BandIds result = cache.get(query);
+        if (result != null) {
+            cacheHits.increment();
+            record(cacheLatency, start);
+            return result;
+        }
+        cacheMisses.increment();
+        return null;
+    }
+
+    /**
+     * Reads the key from its segment, and caches the result.  While a split is moving the
+     * key to another segment, the read holds the split read lock, so the key can't be moved
+     * (and removed from the segment it's being read from) halfway through.  A miss is read
+     * again if a split started in the meantime, the key may have been moved before it was
+     * looked for.  The key is encoded once, here: the same bytes give its fingerprint (and
+     * from it the segment), and are compared with the keys in its block and records.
+     */
+    private BandIds readFromDisk(String key) {
+        return readFromDisk(key, null);
+    }
+
+    /**
+     * Same, but if there are results, the IDs are read into them too (and only copied into
+     * a BandIds for the cache), see search(String, BandIdBuffer).
+     */
+    private BandIds readFromDisk(String key, BandIdBuffer results) {
+        diskReads.increment();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long fingerprint = Utils.hash64(keyBytes);
+        long hash = segmentHash(fingerprint);
+        while (true) {
+            Routing current = routing;
+            boolean moving = current.isMoving(hash);
+            int segmentNumber = -1;
+            SegmentRead read = null;
+            BandIds result;
+            if (results != null) {
+                results.clear();
+            }
+            if (moving) {
+                splitLock.readLock().lock();
+            }
+            try {
+                segmentNumber = current.getSegmentNumber(hash);
+                segmentReadCounts[segmentNumber].increment();
+                read = openSegment(segmentNumber, key, fingerprint);
+                if (!read.isOpen()) {
+                    // Bloom filter false positive, remember it so the next time it's a cache hit.
+                    result = BandIds.EMPTY;
+                } else if (results != null) {
+                    if (read.keyBlock != null) {
+                        findInBlock(read, read.keyBlock, key, keyBytes, results);
+                    }
+                    if (read.mapped != null) {
+                        readMappedRecord(key, keyBytes, read.mapped, read.keyOffsets, results);
+                    } else {
+                        BandIds appended = readRecordFromDisk(key, read.file, read.keyOffsets);
+                        if (appended != null) {
+                            results.addAll(appended);
+                        }
+                    }
+                    result = BandIds.copyOf(results);
+                } else {
+                    result = read.keyBlock != null ? findInBlock(read, read.keyBlock, key, keyBytes) : null;
+                    BandIds appended = read.mapped != null
+                            ? readMappedRecord(key, keyBytes, read.mapped, read.keyOffsets)
+                            : readRecordFromDisk(key, read.file, read.keyOffsets);
+                    if (appended != null) {
+                        result = result == null ? appended : result.with(appended);
+                    }
+                    if (result == null) {
+                        // Not in its block, or a fingerprint collision with some other band, also a miss.
+                        result = BandIds.EMPTY;
+                    }
+                }
+            } catch (Exception e) {
+                diskErrors.increment();
+                Utils.log("Error while trying to read key from disk.", e);
+                if (results != null) {
+                    results.clear();
+                }
+                return BandIds.EMPTY;
+            } finally {
+                if (read != null) {
+                    read.close();
+                }
+                if (moving) {
+                    splitLock.readLock().unlock();
+                }
+            }
+
+            if (result.isEmpty() && routing != current) {
+                continue;
+            }
+            cacheResult(segmentNumber, read, key, result);
+            if (result.isEmpty()) {
+                diskMisses.increment();
+            }
+            return result;
+        }
+    }
+
+    private void record(LatencyHistogram histogram, long start) {
+        if (timed) {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Up to limit keys that start with the prefix, in code point order.  Merges the prefix
+     * dictionary with the keys added since it was written, and skips deleted keys, without
+     * going anywhere near the segments.
+     */
+    @Override
+    public List<String> searchPrefix(String prefix, int limit) {
+        long start = timed ? System.nanoTime() : 0;
+        prefixSearches.increment();
+        List<String> results = new ArrayList<String>(Math.max(0, Math.min(limit, 64)));
+        PrefixIndex dictionary = prefixIndex;
+        PrefixIndex.Cursor cursor = dictionary != null ? dictionary.seek(prefix) : null;
+        Iterator<String> added = prefixAdditions.tailSet(prefix).iterator();
+
+        String fromDictionary = cursor != null ? cursor.next() : null;
+        String fromAdded = nextWithPrefix(added, prefix);
+        while (results.size() < limit && (fromDictionary != null || fromAdded != null)) {
+            int order = fromDictionary == null ? 1
+                    : fromAdded == null ? -1 : PrefixIndex.KEY_ORDER.compare(fromDictionary, fromAdded);
+            String key = order <= 0 ? fromDictionary : fromAdded;
+            if (order <= 0) {
+                fromDictionary = cursor.next();
+            }
+            if (order >= 0) {
+                fromAdded = nextWithPrefix(added, prefix);
+            }
+
+            BandIds delta = deltas.get(key);
+            if (delta == null || !delta.isEmpty()) {
+                results.add(key);
+            }
+        }
+        record(prefixLatency, start);
+        return results;
+    }
+
+    /**
+     * The IDs of the band if it's there, otherwise those of the closest match findSimilar()
+     * finds, so it's a single lookup instead of retrying with different spellings.
+     */
+    @Override
+    public BandIds searchFuzzy(String query) {
+        BandIds exact = search(query);
+        if (!exact.isEmpty()) {
+            return exact;
+        }
+        List<String> similar = findSimilar(query, 1);
+        return similar.isEmpty() ? BandIds.EMPTY : search(similar.get(0));
+    }
+
+    /**
+     * Up to limit keys that match the query once normalized (see NameNormalizer), or that
+     * are a few typos away from it, closest first.  Best effort within the time budget.
+     */
+    @Override
+    public List<String> findSimilar(String query, int limit) {
+        long start = System.nanoTime();
+        fuzzySearches.increment();
+        String normalized = NameNormalizer.normalize(query);
+        int maxDistance = TrigramIndex.maxDistance(normalized, fuzzyMaxDistance);
+
+        TrigramIndex trigrams = getTrigramIndex();
+        long deadline = System.nanoTime() + fuzzyBudgetNanos;
+        // A few extra if there are pending changes, in case some of them were deleted.
+        List<TrigramIndex.Match> matches = new ArrayList<TrigramIndex.Match>();
+        if (trigrams != null) {
+            matches.addAll(trigrams.find(query, deltas.isEmpty() ? limit : limit + 8, maxDistance, deadline));
+        }
+        // Keys added since the dictionary was written, there aren't many of those.
+        for (String key : prefixAdditions) {
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+            TrigramIndex.Match match = TrigramIndex.match(normalized, key, maxDistance);
+            if (match != null) {
+                matches.add(match);
+            }
+        }
+        Collections.sort(matches);
+
+        List<String> results = new ArrayList<String>(Math.max(0, Math.min(limit, matches.size())));
+        Set<String> seen = new HashSet<String>();
+        for (TrigramIndex.Match match : matches) {
+            if (results.size() >= limit) {
+                break;
+            }
+            BandIds delta = deltas.get(match.getName());
+            if (seen.add(match.getName()) && (delta == null || !delta.isEmpty())) {
+                results.add(match.getName());
+            }
+        }
+        if (results.isEmpty()) {
+            fuzzyMisses.increment();
+        }
+        record(fuzzyLatency, start);
+        return results;
+    }
+
+    /**
+     * The trigram index, or null if the first one isn't built yet.  If the dictionary
+     * changed since it was built (and the rebuild that started with the change is done),
+     * another rebuild is started, and the old one is used until then.
+     */
+    private TrigramIndex getTrigramIndex() {
+        PrefixIndex dictionary = prefixIndex;
+        TrigramIndex trigrams = trigramIndex;
+        if (dictionary != null
+                && (trigrams == null || ((DictionaryNames) trigrams.getNames()).dictionary != dictionary)) {
+            scheduleTrigramBuild();
+        }
+        return trigrams;
+    }
+
+    /**
+     * Builds the trigram index for the current dictionary on a background thread, unless
+     * one is being built already.  With tens of millions of keys that takes seconds, far
+     * more than a fuzzy search is allowed, so queries never build it themselves.
+     */
+    private void scheduleTrigramBuild() {
+        if (!trigramRebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread build = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Again if the dictionary was rewritten while it was being built.
+                    PrefixIndex latest = prefixIndex;
+                    while (latest != null) {
+                        trigramIndex = buildTrigramIndex(latest);
+                        latest = prefixIndex != latest ? prefixIndex : null;
+                    }
+                } catch (RuntimeException e) {
+                    Utils.log("Unable to build the trigram index, fuzzy searches only see new keys", e);
+                } finally {
+                    trigramRebuildScheduled.set(false);
+                }
+            }
+        }, "pandora-trigrams");
+        build.setDaemon(true);
+        build.start();
+    }
+
+    private TrigramIndex buildTrigramIndex(PrefixIndex dictionary) {
+        long start = System.currentTimeMillis();
+        TrigramIndex trigrams = TrigramIndex.build(new DictionaryNames(dictionary));
+        Utils.log("Built the trigram index for " + dictionary.size() + " keys in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return trigrams;
+    }
+
+    /**
+     * The keys of a prefix dictionary, by their position in it.
+     */
+    private static class DictionaryNames implements TrigramIndex.Names {
+        final PrefixIndex dictionary;
+
+        DictionaryNames(PrefixIndex dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, dictionary.size());
+        }
+
+        @Override
+        public String get(int ordinal) {
+            return dictionary.get(ordinal);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final PrefixIndex.Cursor cursor = dictionary.seek("");
+            return new Iterator<String>() {
+                private String next = cursor.next();
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public String next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    String current = next;
+                    next = cursor.next();
+                    return current;
+                }
+            };
+        }
+    }
+
+    private static String nextWithPrefix(Iterator<String> keys, String prefix) {
+        if (keys.hasNext()) {
+            String key = keys.next();
+            if (key.startsWith(prefix)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Batch version of search(), for resolving lots of names at once.  Queries are filtered
+     * through the bloom filter and the cache first, and the rest are grouped by segment, so
+     * each segment is opened once and its records are read in file order (sequential I/O,
+     * mostly served from the same read window), with the segments spread over a few threads.
+     */
+    @Override
+    public Map<String, BandIds> searchBatch(Collection<String> queries) {
+        long start = timed ? System.nanoTime() : 0;
+        batches.increment();
+        final Map<String, BandIds> results = new LinkedHashMap<String, BandIds>();
+        final Map<Integer, List<String>> missesBySegment = new LinkedHashMap<Integer, List<String>>();
+        Routing current = routing;
+        for (String query : queries) {
+            if (results.containsKey(query)) {
+                continue;
+            }
+            BandIds result = deltas.get(query);
+            if (result != null) {
+                deltaHits.increment();
+            } else if (!bloomFilter.maybeContains(query)) {
+                bloomRejects.increment();
+                result = BandIds.EMPTY;
+            } else {
+                result = cache.get(query);
+                (result != null ? cacheHits : cacheMisses).increment();
+            }
+            // Keys that a split is moving are read one by one, see readFromDisk().
+            long hash = segmentHash(query);
+            if (result == null && current.isMoving(hash)) {
+                result = readFromDisk(query);
+            }
+            // Placeholder for the misses, so the results keep the order of the queries.
+            results.put(query, result);
+            if (result == null) {
+                int segmentNumber = current.getSegmentNumber(hash);
+                List<String> misses = missesBySegment.get(segmentNumber);
+                if (misses == null) {
+                    misses = new ArrayList<String>();
+                    missesBySegment.put(segmentNumber, misses);
+                }
+                misses.add(query);
+            }
+        }
+
+        List<Map<String, BandIds>> segmentResults = new ArrayList<Map<String, BandIds>>();
+        if (missesBySegment.size() == 1) {
+            Map.Entry<Integer, List<String>> entry = missesBySegment.entrySet().iterator().next();
+            segmentResults.add(readSegmentBatch(entry.getKey(), entry.getValue()));
+        } else if (!missesBySegment.isEmpty()) {
+            List<Future<Map<String, BandIds>>> futures = new ArrayList<Future<Map<String, BandIds>>>();
+            for (final Map.Entry<Integer, List<String>> entry : missesBySegment.entrySet()) {
+                futures.add(getBatchExecutor().submit(new Callable<Map<String, BandIds>>() {
+                    @Override
+                    public Map<String, BandIds> call() {
+                        return readSegmentBatch(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            for (Future<Map<String, BandIds>> future : futures) {
+                try {
+                    segmentResults.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted during batch search", e);
+                } catch (ExecutionException e) {
+                    Utils.log("Error during batch search", e);
+                }
+            }
+        }
+
+        for (Map<String, BandIds> segmentResult : segmentResults) {
+            results.putAll(segmentResult);
+        }
+        // A split that started after the keys were grouped may have moved some of them.
+        if (routing != current) {
+            for (Map<String, BandIds> segmentResult : segmentResults) {
+                for (Map.Entry<String, BandIds> entry : segmentResult.entrySet()) {
+                    if (entry.getValue().isEmpty()) {
+                        results.put(entry.getKey(), readFromDisk(entry.getKey()));
+                    }
+                }
+            }
+        }
+        // Anything left over failed to read, same as search() that's an empty result.
+        for (Map.Entry<String, BandIds> entry : results.entrySet()) {
+            if (entry.getValue() == null) {
+                diskErrors.increment();
+                entry.setValue(BandIds.EMPTY);
+            }
+        }
+        record(batchLatency, start);
+        return results;
+    }
+
+    @Override
+    public void add(String key, final String value) {
+        try {
+            // A pending update replaced all of the band's IDs, so the new one goes on top of it,
+            // read and written in one go, so an update or delete can't land in between.
+            final boolean[] pending = new boolean[1];
+            boolean flushed = deltas.merge(key, new Function<BandIds, BandIds>() {
+                @Override
+                public BandIds apply(BandIds delta) {
+                    pending[0] = delta != null;
+                    return delta != null ? delta.with(value) : null;
+                }
+            });
+            if (pending[0]) {
+                deltaApplied(key, flushed);
+                return;
+            }
+
+            // Appending to a segment breaks its sort order.
+            sortedSegments = false;
+            RecordBlock block = new RecordBlock(64);
+            block.add(key, BandIds.of(value));
+            // So a split doesn't finish moving the segment while the record goes into it.
+            splitLock.readLock().lock();
+            try {
+                writeAndWait(getSegmentNumber(key), block, syncWrites);
+            } finally {
+                splitLock.readLock().unlock();
+            }
+        } catch (Exception e) {
+            Utils.log("Error while trying to add key/value to disk.", e);
+        }
+    }
+
+    /**
+     * Replaces all the IDs of the band with the given one (adding the band if it's new).
+     */
+    @Override
+    public void update(String key, String value) {
+        try {
+            applyDelta(key, BandIds.of(value));
+            synchronized (prefixLock) {
+                addPrefixKey(key);
+            }
+        } catch (IOException e) {
+            Utils.log("Error while trying to update key " + key, e);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        try {
+            applyDelta(key, BandIds.EMPTY);
+        } catch (IOException e) {
+            Utils.log("Error while trying to delete key " + key, e);
+        }
+    }
+
+    private void applyDelta(String key, BandIds ids) throws IOException {
+        deltaApplied(key, deltas.put(key, ids));
+    }
+
+    private void deltaApplied(String key, boolean flushed) {
+        cache.remove(key);
+        if (flushed && deltas.getRunCount() >= compactionRuns) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Appends a whole block of records to the given segment, through its writer, and
+     * returns once they're visible through the bloom filter and the segment header.  All
+     * the keys in the block have to belong to that segment.  Used by the bulk builders, so
+     * it doesn't sync: the catalog is only valid once it's flushed anyway.
+     */
+    void addRecords(int segmentNumber, RecordBlock block) throws IOException {
+        writeAndWait(segmentNumber, block, false);
+    }
+
+    private void writeAndWait(int segmentNumber, RecordBlock block, boolean sync) throws IOException {
+        try {
+            segmentWriters[segmentNumber].submit(block, sync).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to segment " + segmentNumber, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while writing to segment " + segmentNumber, e.getCause());
+        }
+    }
+
+    /**
+     * Runs on the segment's writer: appends all the blocks in one write, syncs if any of the
+     * writers asked for it, and only then publishes the records, bloom filter first.
+     */
+    private void writeBlocks(int segmentNumber, List<RecordBlock> blocks, boolean sync) throws IOException {
+        StampedLock lock = segmentLocks[segmentNumber];
+        long stamp = lock.readLock();
+        try {
+            IndexStructure indexStructure = indexStructures.get(segmentNumber);
+            ByteBuffer[] buffers = new ByteBuffer[blocks.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ByteBuffer.wrap(blocks.get(i).getBytes(), 0, blocks.get(i).getByteCount());
+            }
+            long offset = indexStructure.getSegment().append(buffers);
+            if (sync) {
+                indexStructure.getSegment().sync();
+            }
+
+            synchronized (bloomLock) {
+                for (RecordBlock block : blocks) {
+                    for (int i = 0; i < block.getRecordCount(); i++) {
+                        addToBloomFilter(block.getKey(i));
+                    }
+                }
+            }
+            synchronized (prefixLock) {
+                for (RecordBlock block : blocks) {
+                    for (int i = 0; i < block.getRecordCount(); i++) {
+                        addPrefixKey(block.getKey(i));
+                    }
+                }
+            }
+            SegmentHeader segmentHeader = indexStructure.getSegmentHeader();
+            for (RecordBlock block : blocks) {
+                for (int i = 0; i < block.getRecordCount(); i++) {
+                    segmentHeader.add(block.getFingerprint(i), offset + block.getOffset(i));
+                }
+                offset += block.getByteCount();
+            }
+            segmentHeader.publish();
+            segmentVersions[segmentNumber].incrementAndGet();
+            // Only now, so a flush that started in the meantime doesn't leave it clean.
+            dirty = true;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        // The keys may have been cached as a miss, or with fewer IDs.  Lookups that were
+        // already reading the segment won't cache theirs, they see the new version.
+        for (RecordBlock block : blocks) {
+            for (int i = 0; i < block.getRecordCount(); i++) {
+                cache.remove(block.getKey(i));
+            }
+        }
+    }
+
+    /**
+     * Appends a finished block of sorted records to the given segment, and makes them
+     * visible.  Only for building: blocks have to go in key order, and before any plain
+     * record, so nothing else can be writing to the segment at the same time.
+     */
+    void addBlock(int segmentNumber, KeyBlock block) throws IOException {
+        byte[] stored = block.finish(blockCompression);
+        StampedLock lock = segmentLocks[segmentNumber];
+        long stamp = lock.readLock();
+        try {
+            IndexStructure indexStructure = indexStructures.get(segmentNumber);
+            long offset = indexStructure.getSegment().append(stored, 0, stored.length);
+            synchronized (bloomLock) {
+                for (int i = 0; i < block.getRecordCount(); i++) {
+                    addToBloomFilter(block.getKey(i));
+                }
+            }
+            synchronized (prefixLock) {
+                for (int i = 0; i < block.getRecordCount(); i++) {
+                    addPrefixKey(block.getKey(i));
+                }
+            }
+            SegmentHeader segmentHeader = indexStructure.getSegmentHeader();
+            segmentHeader.addBlock(block.getKey(0), offset, stored.length, block.getRecordCount());
+            segmentHeader.publish();
+            segmentVersions[segmentNumber].incrementAndGet();
+            dirty = true;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * True if sorted segments should be written as KeyBlocks.
+     */
+    boolean usesBlockSegments() {
+        return blockSegments;
+    }
+
+    int getBlockBytes() {
+        return blockBytes;
+    }
+
+    void markSegmentsSorted() {
+        sortedSegments = true;
+        dirty = true;
+    }
+
+    /**
+     * The number of segments, including the ones a split is filling in.
+     */
+    int getSegmentCount() {
+        return routing.segmentCount;
+    }
+
+    /**
+     * The segment the key is in right now.  During a split that's the new one only once
+     * its old segment is done, so callers that have to stay on the right segment while
+     * they use it hold the split read lock.
+     */
+    int getSegmentNumber(String key) {
+        return routing.getSegmentNumber(segmentHash(key));
+    }
+
+    private static long segmentHash(String key) {
+        return segmentHash(Utils.hash64(key));
+    }
+
+    /**
+     * Same, from the key's fingerprint, for callers that already have it.
+     */
+    private static long segmentHash(long fingerprint) {
+        return Utils.mix64(fingerprint ^ SEGMENT_HASH_SEED);
+    }
+
+    /**
+     * Writes out the segment headers and the bloom filter, and then the manifest that
+     * makes the catalog valid for the next start.  Nothing to do if nothing was added
+     * since the catalog was opened or last flushed.  The catalog is marked clean before it's
+     * written, and appends mark it dirty once they're done, so a record appended while it's
+     * being written is saved by the next flush, instead of being left out for good.
+     */
+    @Override
+    public void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            for (int i = 0; i < indexStructures.size(); i++) {
+                long stamp = segmentLocks[i].readLock();
+                try {
+                    IndexStructure indexStructure = indexStructures.get(i);
+                    indexStructure.getSegment().close();
+                    indexStructure.getSegmentHeader().save();
+                } finally {
+                    segmentLocks[i].unlockRead(stamp);
+                }
+            }
+            synchronized (bloomLock) {
+                bloomFilter.save(bloomFilterFile);
+            }
+            rewritePrefixIndex(Collections.<String>emptySet());
+            // Halfway through a split the catalog can't be opened again, the keys aren't where
+            // the segment count says; the split flushes it once it's done.
+            if (routing.isSplitting()) {
+                dirty = true;
+            } else {
+                writeManifest();
+            }
+        } catch (Exception e) {
+            dirty = true;
+            Utils.log("Error while trying to save the index catalog, it will be rebuilt on next start", e);
+            return;
+        }
+        scheduleSplitIfNeeded();
+    }
+
+    @Override
+    public void onShutdown() {
+        // Reads already queued still run, see SegmentReadQueue.
+        ioExecutor.shutdown();
+        synchronized (this) {
+            if (hotSetSaver != null) {
+                hotSetSaver.shutdownNow();
+            }
+        }
+        saveHotSet();
+        synchronized (this) {
+            if (batchExecutor != null) {
+                batchExecutor.shutdown();
+            }
+            if (compactionExecutor != null) {
+                compactionExecutor.shutdown();
+            }
+        }
+        // Anything still queued was submitted by a caller that's waiting for it.
+        writerExecutor.shutdown();
+        try {
+            writerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Utils.log("Interrupted while waiting for segment writers", e);
+        }
+        if (compactionExecutor != null) {
+            try {
+                // Stopping halfway is safe too, the runs are only dropped once it's all on disk.
+                if (!compactionExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    Utils.log("Compaction or split still running at shutdown, a compaction starts over on next"
+                            + " start, a split means a rebuild");
+                }
+            } catch (InterruptedException e) {
+                Utils.log("Interrupted while waiting for compaction", e);
+            }
+        }
+        flush();
+        deltas.close();
+        if (Long.getLong("pandora.metricsDumpSeconds", 0) > 0) {
+            Utils.log(metrics.dump());
+        }
+        metrics.close();
+    }
+
+    /**
+     * Merges all the pending updates and deletes into the segments.  Each affected segment is
+     * rewritten into a new file next to it and then swapped in, the bloom filter is rebuilt
+     * if anything was deleted, and the catalog is flushed; only then are the runs dropped.
+     * If the process dies halfway, the runs are still there and get applied again (they're
+     * full replacements, so that's harmless).
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            try {
+                deltas.flushMemtable();
+                List<DeltaStore.Run> runs = deltas.getRuns();
+                if (runs.isEmpty()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                NavigableMap<String, BandIds> changes = DeltaStore.merge(runs);
+
+                Map<Integer, NavigableMap<String, BandIds>> changesBySegment = new TreeMap<Integer, NavigableMap<String, BandIds>>();
+                boolean hasDeletes = false;
+                for (Map.Entry<String, BandIds> change : changes.entrySet()) {
+                    int segmentNumber = getSegmentNumber(change.getKey());
+                    NavigableMap<String, BandIds> segmentChanges = changesBySegment.get(segmentNumber);
+                    if (segmentChanges == null) {
+                        segmentChanges = new TreeMap<String, BandIds>();
+                        changesBySegment.put(segmentNumber, segmentChanges);
+                    }
+                    segmentChanges.put(change.getKey(), change.getValue());
+                    hasDeletes |= change.getValue().isEmpty();
+                }
+
+                for (Map.Entry<Integer, NavigableMap<String, BandIds>> entry : changesBySegment.entrySet()) {
+                    rewriteSegment(entry.getKey(), entry.getValue());
+                }
+                if (hasDeletes) {
+                    rebuildBloomFilter();
+                } else {
+                    synchronized (bloomLock) {
+                        for (String key : changes.keySet()) {
+                            addToBloomFilter(key);
+                        }
+                    }
+                }
+
+                if (hasDeletes) {
+                    Set<String> deleted = new HashSet<String>();
+                    for (Map.Entry<String, BandIds> change : changes.entrySet()) {
+                        if (change.getValue().isEmpty()) {
+                            deleted.add(change.getKey());
+                        }
+                    }
+                    rewritePrefixIndex(deleted);
+                }
+
+                dirty = true;
+                flush();
+                deltas.removeRuns(runs);
+                // Values read before the compaction may still be cached (they were hidden by the runs).
+                for (String key : changes.keySet()) {
+                    cache.remove(key);
+                }
+                long elapsed = System.nanoTime() - start;
+                compactions.increment();
+                compactionLatency.record(elapsed);
+                Utils.log("Compacted " + runs.size() + " delta runs (" + changes.size() + " changes) into "
+                        + changesBySegment.size() + " segments in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+            } catch (IOException e) {
+                Utils.log("Compaction failed, the changes stay in the delta runs", e);
+            }
+        }
+    }
+
+    /**
+     * Seeks straight to each of the offsets the SegmentHeader returned for the key's
+     * fingerprint, and collects the IDs of the records whose key actually matches.
+     * In appended segments a band can have several records, one per add().
+     *
+     * Returns null if none of the records matched, i.e. a fingerprint collision.
+     */
+    private BandIds readRecordFromDisk(String key, RandomAccessFile roFile, long[] offsets) throws IOException {
+        if (offsets.length == 0) {
+            return null;
+        }
+        BandIds result = null;
+        for (long offset : offsets) {
+            roFile.seek(offset);
+            if (!key.equals(roFile.readUTF())) {
+                continue;
+            }
+            BandIds ids = BandIds.readFrom(roFile);
+            result = result == null ? ids : result.with(ids);
+        }
+        return result;
+    }
+
+    /**
+     * Same as readRecordFromDisk(), on the mapped segment: the key's UTF-8 bytes (see
+     * readFromDisk()) are compared with the bytes of every record in place, so the records
+     * that turn out to be some other key (fingerprint collisions) aren't decoded at all.
+     * Only keys with NULs or supplementary characters, which the records have in modified
+     * UTF-8, are encoded again.
+     */
+    private static BandIds readMappedRecord(String key, byte[] keyBytes, ByteBuffer mapped, long[] offsets)
+            throws IOException {
+        if (offsets.length == 0) {
+            return null;
+        }
+        boolean plain = RecordBlock.isPlainUtf8(keyBytes);
+        byte[] encodedKey = plain ? null : RecordBlock.encodeKey(key);
+        if (!plain && encodedKey == null) {
+            return null;
+        }
+        BandIds result = null;
+        for (long offset : offsets) {
+            int idsOffset = mappedIdsOffset(mapped, offset, keyBytes, encodedKey);
+            if (idsOffset < 0) {
+                continue;
+            }
+            BandIds ids = BandIds.readFrom(mapped, idsOffset);
+            result = result == null ? ids : result.with(ids);
+        }
+        return result;
+    }
+
+    /**
+     * Same, but adds the IDs to the results, without a BandIds in between.
+     */
+    private static void readMappedRecord(String key, byte[] keyBytes, ByteBuffer mapped, long[] offsets,
+                                         BandIdBuffer results) throws IOException {
+        if (offsets.length == 0) {
+            return;
+        }
+        boolean plain = RecordBlock.isPlainUtf8(keyBytes);
+        byte[] encodedKey = plain ? null : RecordBlock.encodeKey(key);
+        if (!plain && encodedKey == null) {
+            return;
+        }
+        for (long offset : offsets) {
+            int idsOffset = mappedIdsOffset(mapped, offset, keyBytes, encodedKey);
+            if (idsOffset >= 0) {
+                BandIds.readFrom(mapped, idsOffset, results);
+            }
+        }
+    }
+
+    /**
+     * Where the IDs of the mapped record at the offset start, or -1 if it's some other key.
+     * The key is compared as its plain UTF-8 bytes, or as encodedKey if there is one.
+     */
+    private static int mappedIdsOffset(ByteBuffer mapped, long offset, byte[] keyBytes, byte[] encodedKey) {
+        int position = (int) offset;
+        if (encodedKey == null) {
+            return RecordBlock.utf8KeyMatches(mapped, position, keyBytes) ? position + 2 + keyBytes.length : -1;
+        }
+        return RecordBlock.keyMatches(mapped, position, encodedKey) ? position + encodedKey.length : -1;
+    }
+
+    /**
+     * Looks up the fingerprints in the segment's header and opens its file, as a consistent
+     * pair, without blocking: with an optimistic read first, and only under the read lock
+     * if a compaction swapped the segment in the middle of it.  Once open, the file keeps
+     * its contents even if it's swapped afterwards (the old file lives on until closed), so
+     * the actual reads don't need to hold anything.  The file is only opened if any of the
+     * keys can be there, in a block or as a plain record.  With -Dpandora.mmap (the
+     * default) it's not opened at all but mapped, see Segment.map(), which holds on to the
+     * old file just the same.
+     */
+    private SegmentRead openSegment(int segmentNumber, List<String> keys) throws IOException {
+        return openSegment(segmentNumber, keys, null, 0);
+    }
+
+    /**
+     * Same, for a single key whose fingerprint is already known, see readFromDisk().
+     */
+    private SegmentRead openSegment(int segmentNumber, String key, long fingerprint) throws IOException {
+        return openSegment(segmentNumber, null, key, fingerprint);
+    }
+
+    private SegmentRead openSegment(int segmentNumber, List<String> keys, String key, long fingerprint)
+            throws IOException {
+        // Before the lookup, so anything published after this is caught by cacheResult().
+        long version = segmentVersions[segmentNumber].get();
+        StampedLock lock = segmentLocks[segmentNumber];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            SegmentRead read = null;
+            try {
+                read = lookupAndOpen(segmentNumber, keys, key, fingerprint, stamp, version);
+            } catch (IOException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+            if (read != null && lock.validate(stamp)) {
+                return read;
+            }
+            if (read != null) {
+                read.close();
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return lookupAndOpen(segmentNumber, keys, key, fingerprint, stamp, version);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private SegmentRead lookupAndOpen(int segmentNumber, List<String> keys, String key, long fingerprint,
+                                      long stamp, long version) throws IOException {
+        return keys != null ? lookupAndOpen(segmentNumber, keys, stamp, version)
+                : lookupAndOpen(segmentNumber, key, fingerprint, stamp, version);
+    }
+
+    private SegmentRead lookupAndOpen(int segmentNumber, List<String> keys, long stamp, long version)
+            throws IOException {
+        IndexStructure indexStructure = indexStructures.get(segmentNumber);
+        SegmentHeader segmentHeader = indexStructure.getSegmentHeader();
+        SegmentHeader.BlockIndex blockIndex = segmentHeader.getBlocks();
+        long[][] offsets = new long[keys.size()][];
+        SegmentHeader.Block[] blocks = new SegmentHeader.Block[keys.size()];
+        boolean found = false;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = segmentHeader.lookup(Utils.hash64(keys.get(i)));
+            blocks[i] = blockIndex.find(keys.get(i));
+            found |= offsets[i].length > 0 || blocks[i] != null;
+        }
+        ByteBuffer mapped = found && mmapReads ? indexStructure.getSegment().map() : null;
+        RandomAccessFile file = found && mapped == null
+                ? new RandomAccessFile(indexStructure.getSegment().getFile(), "r") : null;
+        return new SegmentRead(stamp, version, offsets, blocks, file, mapped);
+    }
+
+    /**
+     * The single key lookup, which doesn't allocate anything but the SegmentRead itself
+     * (and the offsets, if there are any).
+     */
+    private SegmentRead lookupAndOpen(int segmentNumber, String key, long fingerprint, long stamp, long version)
+            throws IOException {
+        IndexStructure indexStructure = indexStructures.get(segmentNumber);
+        SegmentHeader segmentHeader = indexStructure.getSegmentHeader();
+        long[] offsets = segmentHeader.lookup(fingerprint);
+        SegmentHeader.Block block = segmentHeader.getBlocks().find(key);
+        boolean found = offsets.length > 0 || block != null;
+        ByteBuffer mapped = found && mmapReads ? indexStructure.getSegment().map() : null;
+        RandomAccessFile file = found && mapped == null
+                ? new RandomAccessFile(indexStructure.getSegment().getFile(), "r") : null;
+        return new SegmentRead(stamp, version, offsets, block, file, mapped);
+    }
+
+    /**
+     * Looks for the key in the block, in place if the segment is mapped, read into an array
+     * otherwise.
+     */
+    private static BandIds findInBlock(SegmentRead read, SegmentHeader.Block block, String key, byte[] keyBytes)
+            throws IOException {
+        if (read.mapped != null) {
+            return KeyBlock.find(read.mapped, (int) block.offset, block.length, key, keyBytes);
+        }
+        return KeyBlock.find(ByteBuffer.wrap(readBlock(read, block)), 0, block.length, key, keyBytes);
+    }
+
+    /**
+     * Same, but adds the IDs to the results.
+     */
+    private static boolean findInBlock(SegmentRead read, SegmentHeader.Block block, String key, byte[] keyBytes,
+                                       BandIdBuffer results) throws IOException {
+        if (read.mapped != null) {
+            return KeyBlock.find(read.mapped, (int) block.offset, block.length, key, keyBytes, results);
+        }
+        return KeyBlock.find(ByteBuffer.wrap(readBlock(read, block)), 0, block.length, key, keyBytes, results);
+    }
+
+    private static byte[] readBlock(SegmentRead read, SegmentHeader.Block block) throws IOException {
+        byte[] bytes = new byte[block.length];
+        if (read.mapped != null) {
+            read.mapped.get((int) block.offset, bytes);
+        } else {
+            read.file.seek(block.offset);
+            read.file.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Caches a result read from the segment, unless the segment was swapped, or had records
+     * published to it, since it was opened: then the result may be older than what the
+     * compaction wrote, or miss what was just added, so it's dropped.  Checked after the put,
+     * since an add only invalidates the cache once, right after publishing.
+     */
+    private void cacheResult(int segmentNumber, SegmentRead read, String key, BandIds result) {
+        cache.put(key, result);
+        if (!segmentLocks[segmentNumber].validate(read.stamp)
+                || segmentVersions[segmentNumber].get() != read.version) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Default result cache, picked with -Dpandora.cache (tinylfu or lru).  The TinyLFU one
+     * is bounded by -Dpandora.cacheMaxMb of (estimated) heap, the LRU one by entry count.
+     */
+    private Cache<String, BandIds> createCache() {
+        String type = System.getProperty("pandora.cache", "tinylfu");
+        if ("lru".equalsIgnoreCase(type)) {
+            return new LRUCache<String, BandIds>(LRU_CACHE_SIZE);
+        }
+        if (!"tinylfu".equalsIgnoreCase(type)) {
+            Utils.log("Unknown cache type " + type + ", using tinylfu");
+        }
+
+        long maxBytes = Long.getLong("pandora.cacheMaxMb", 64L) << 20;
+        TinyLfuCache.Weigher<String, BandIds> weigher = new TinyLfuCache.Weigher<String, BandIds>() {
+            @Override
+            public int weigh(String key, BandIds ids) {
+                return 2 * key.length() + CACHE_ENTRY_OVERHEAD_BYTES + ids.estimateBytes();
+            }
+        };
+        // Most entries are a short name and a single ID, ~100 bytes.
+        int expectedEntries = (int) Math.min(1 << 24, maxBytes / 100);
+        return new TinyLfuCache<String, BandIds>(maxBytes, weigher, expectedEntries);
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        getCompactionExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                compactionScheduled.set(false);
+                compact();
+            }
+        });
+    }
+
+    private synchronized ExecutorService getCompactionExecutor() {
+        if (compactionExecutor == null) {
+            compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pandora-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return compactionExecutor;
+    }
+
+    /**
+     * Writes a new version of the segment with the changes applied, and swaps it in.  A
+     * sorted segment is merged with the (sorted) changes so it stays sorted; otherwise the
+     * records of changed keys are dropped and the new values appended at the end.  If
+     * something was appended to the segment in the meantime it just starts over.
+     */
+    private void rewriteSegment(int segmentNumber, NavigableMap<String, BandIds> changes) throws IOException {
+        File segmentFile = getSegmentFile(segmentNumber);
+        File compactedFile = new File(segmentFile.getPath() + ".compact");
+        while (true) {
+            StampedLock lock = segmentLocks[segmentNumber];
+            IndexStructure old;
+            long length;
+            long stamp = lock.readLock();
+            try {
+                old = indexStructures.get(segmentNumber);
+                length = old.getSegment().getFile().length();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            SegmentHeader header = writeCompacted(segmentNumber, old, length, changes, compactedFile);
+
+            stamp = lock.writeLock();
+            try {
+                if (indexStructures.get(segmentNumber) != old || old.getSegment().getFile().length() != length) {
+                    continue;
+                }
+                swapSegment(segmentNumber, old, compactedFile, header);
+                return;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Writes the first length bytes of the segment, with the changes applied, to the output
+     * file, and returns the header for it (not saved yet).
+     */
+    private SegmentHeader writeCompacted(int segmentNumber, IndexStructure old, long length,
+                                         NavigableMap<String, BandIds> changes, File output) throws IOException {
+        SegmentHeader header = new SegmentHeader(getSegmentIndexFile(segmentNumber));
+        SegmentHeader.BlockIndex blocks = old.getSegmentHeader().getBlocks();
+        if (!blocks.isEmpty() || (sortedSegments && blockSegments)) {
+            writeCompactedBlocks(old.getSegment().getFile(), length, blocks, changes, output, header);
+        } else {
+            writeCompactedSegment(old.getSegment().getFile(), length, changes, output, header);
+        }
+        return header;
+    }
+
+    /**
+     * Callers hold the segment's write lock.
+     */
+    private void swapSegment(int segmentNumber, IndexStructure old, File compactedFile,
+                             SegmentHeader header) throws IOException {
+        File segmentFile = getSegmentFile(segmentNumber);
+        old.getSegment().close();
+        Files.move(compactedFile.toPath(), segmentFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        header.save();
+        indexStructures.set(segmentNumber, new IndexStructure(new Segment(segmentFile), header));
+    }
+
+    /**
+     * Adds segments, up to the given number, and moves the keys that jump hashing now puts in
+     * the new ones out of the old ones, while searches and updates go on.
+     *
+     * The new (empty) segments are created first, and then each old segment is done in turn:
+     * the records that move are appended to their new segments, and the old segment is
+     * rewritten without them, like a compaction does.  Records appended to it in the meantime
+     * are moved in another round, and once a round finds nothing new, the rewritten segment is
+     * swapped in and its keys are looked up in their new segments from then on, both under
+     * the split write lock.  Until then they're still read from (and added to) the old one.
+     * Keys that stay in their segment never notice.
+     *
+     * Runs with compactions locked out, and not while a new catalog is being built (the
+     * builders are tied to a segment count).  The catalog is only flushed once it's all done;
+     * if the process dies halfway, it no longer matches its manifest and gets rebuilt.  If
+     * the split fails, the index keeps working halfway, and the next split() finishes it.
+     */
+    public void split(int newSegmentCount) {
+        synchronized (compactionLock) {
+            Routing current = routing;
+            if (current.isSplitting()) {
+                Utils.log("Finishing the split from " + current.previousCount + " to " + current.segmentCount
+                        + " segments first");
+            } else if (newSegmentCount <= current.segmentCount) {
+                return;
+            } else if (newSegmentCount > MAX_SEGMENTS) {
+                throw new IllegalArgumentException("Can't have more than " + MAX_SEGMENTS + " segments");
+            }
+            synchronized (prefixLock) {
+                if (prefixBuilder != null) {
+                    Utils.log("Can't split the segments while the catalog is being built");
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            long moved = 0;
+            try {
+                if (!current.isSplitting()) {
+                    ensureSegmentSlots(newSegmentCount);
+                    for (int i = current.segmentCount; i < newSegmentCount; i++) {
+                        indexStructures.add(createSegment(i));
+                    }
+                    // The moved records are appended, so no segment is sorted anymore.
+                    sortedSegments = false;
+                    dirty = true;
+                    current = new Routing(newSegmentCount, current.segmentCount);
+                    routing = current;
+                }
+                for (int i = 0; i < current.previousCount; i++) {
+                    if (!current.migrated[i]) {
+                        moved += splitSegment(i, current);
+                    }
+                }
+                routing = new Routing(current.segmentCount);
+            } catch (IOException e) {
+                Utils.log("Split failed, the segments stay as they are until the next split", e);
+                return;
+            }
+
+            long elapsed = System.nanoTime() - start;
+            splits.increment();
+            splitLatency.record(elapsed);
+            Utils.log("Split " + current.previousCount + " segments into " + current.segmentCount + ", moved "
+                    + moved + " records in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+            flush();
+        }
+    }
+
+    /**
+     * Moves the records of one old segment that go somewhere else now, see split(), and
+     * returns how many there were.
+     */
+    private long splitSegment(final int segmentNumber, Routing current) throws IOException {
+        File compactedFile = new File(getSegmentFile(segmentNumber).getPath() + ".compact");
+        StampedLock lock = segmentLocks[segmentNumber];
+        NavigableMap<String, BandIds> moved = new TreeMap<String, BandIds>();
+        long count = 0;
+        long movedUpTo = 0;
+        while (true) {
+            IndexStructure old;
+            long length;
+            long stamp = lock.readLock();
+            try {
+                old = indexStructures.get(segmentNumber);
+                length = old.getSegment().getFile().length();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            if (length > movedUpTo) {
+                count += moveRecords(old, movedUpTo, length, current.segmentCount, segmentNumber, moved);
+                movedUpTo = length;
+            }
+            SegmentHeader header = moved.isEmpty() ? null
+                    : writeCompacted(segmentNumber, old, length, moved, compactedFile);
+
+            splitLock.writeLock().lock();
+            try {
+                stamp = lock.writeLock();
+                try {
+                    if (old.getSegment().getFile().length() != length) {
+                        continue;
+                    }
+                    if (header != null) {
+                        swapSegment(segmentNumber, old, compactedFile, header);
+                    }
+                    current.migrated[segmentNumber] = true;
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            } finally {
+                splitLock.writeLock().unlock();
+            }
+            movedRecords.add(count);
+            return count;
+        }
+    }
+
+    /**
+     * Appends the records between the two offsets that belong to some other segment now to
+     * it, and adds their keys to moved.
+     */
+    private long moveRecords(IndexStructure old, long from, long to, final int segmentCount, final int segmentNumber,
+                             final NavigableMap<String, BandIds> moved) throws IOException {
+        final Map<Integer, RecordBlock> blocks = new TreeMap<Integer, RecordBlock>();
+        final long[] count = new long[1];
+        scanSegment(old.getSegment().getFile(), from, to, old.getSegmentHeader().getBlocks(), new KeyBlock.RecordVisitor() {
+            @Override
+            public void visit(String key, BandIds ids) throws IOException {
+                int target = Utils.jumpHash(segmentHash(key), segmentCount);
+                if (target == segmentNumber) {
+                    return;
+                }
+                RecordBlock block = blocks.get(target);
+                if (block == null) {
+                    block = new RecordBlock(256);
+                    blocks.put(target, block);
+                }
+                block.add(key, ids);
+                moved.put(key, BandIds.EMPTY);
+                count[0]++;
+                if (block.getByteCount() >= MOVE_BLOCK_BYTES) {
+                    writeAndWait(target, block, false);
+                    block.reset();
+                }
+            }
+        });
+        for (Map.Entry<Integer, RecordBlock> entry : blocks.entrySet()) {
+            if (entry.getValue().getRecordCount() > 0) {
+                writeAndWait(entry.getKey(), entry.getValue(), false);
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * Called after every flush: splits the segments in the background once they're over
+     * -Dpandora.maxSegmentMb on average, into enough of them to get them down to half that.
+     */
+    private void scheduleSplitIfNeeded() {
+        if (maxSegmentBytes <= 0 || routing.isSplitting()) {
+            return;
+        }
+        int segmentCount = indexStructures.size();
+        long totalBytes = 0;
+        for (IndexStructure indexStructure : indexStructures) {
+            totalBytes += indexStructure.getSegment().getFile().length();
+        }
+        if (totalBytes <= maxSegmentBytes * segmentCount || segmentCount >= MAX_SEGMENTS) {
+            return;
+        }
+        final int newSegmentCount = (int) Math.min(MAX_SEGMENTS,
+                Math.max(segmentCount + 1, (totalBytes + maxSegmentBytes / 2 - 1) / (maxSegmentBytes / 2)));
+        if (!splitScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        getCompactionExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                splitScheduled.set(false);
+                split(newSegmentCount);
+            }
+        });
+    }
 
-        lruCache = new LRUCache<String, String>(LRU_CACHE_SIZE);
-        bloomFilter = new BloomFilter(Integer.MAX_VALUE, 3);
+    private void writeCompactedSegment(File segmentFile, long length, NavigableMap<String, BandIds> changes,
+                                       File output, SegmentHeader header) throws IOException {
+        Iterator<Map.Entry<String, BandIds>> pending = changes.entrySet().iterator();
+        Map.Entry<String, BandIds> change = pending.hasNext() ? pending.next() : null;
+        RecordBlock record = new RecordBlock(256);
+        long[] offset = new long[1];
 
-        initializeIndexes();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new BoundedInputStream(new FileInputStream(segmentFile), length), 1 << 16));
+        FileOutputStream fileOut = new FileOutputStream(output);
+        OutputStream out = new BufferedOutputStream(fileOut, 1 << 16);
+        try {
+            String previousKey = null;
+            while (in.available() > 0) {
+                String key = in.readUTF();
+                BandIds ids = BandIds.readFrom(in);
+                if (sortedSegments) {
+                    // Changes for keys that come before this one go in first.
+                    while (change != null && change.getKey().compareTo(key) < 0) {
+                        writeRecord(change.getKey(), change.getValue(), record, out, header, offset);
+                        change = pending.hasNext() ? pending.next() : null;
+                    }
+                    if (change != null && change.getKey().equals(key)) {
+                        writeRecord(key, change.getValue(), record, out, header, offset);
+                        change = pending.hasNext() ? pending.next() : null;
+                        previousKey = key;
+                        continue;
+                    }
+                    if (key.equals(previousKey)) {
+                        continue;
+                    }
+                } else if (changes.containsKey(key)) {
+                    continue;
+                }
+                writeRecord(key, ids, record, out, header, offset);
+                previousKey = key;
+            }
+            // Whatever is left sorts after every existing key (or the segment isn't sorted).
+            if (!sortedSegments) {
+                pending = changes.entrySet().iterator();
+                change = pending.hasNext() ? pending.next() : null;
+            }
+            while (change != null) {
+                writeRecord(change.getKey(), change.getValue(), record, out, header, offset);
+                change = pending.hasNext() ? pending.next() : null;
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
     }
 
-    @Override
-    public List<String> search(String query) {
-        // If bloomFilter returns false, don't even try to look for it.
-        if (!bloomFilter.maybeContains(query)) {
-            return Collections.emptyList();
+    /**
+     * Compaction for segments made of blocks (or sorted ones that will be from now on): the
+     * blocks are a sorted stream of unique keys, which is merged with the changes and with the
+     * records appended after the blocks (loaded up front, there shouldn't be many), and all
+     * of it is written as blocks again.  An appended record adds its IDs to the ones in the
+     * blocks, a change replaces them.
+     */
+    private void writeCompactedBlocks(File segmentFile, long length, SegmentHeader.BlockIndex blocks,
+                                      NavigableMap<String, BandIds> changes, File output,
+                                      SegmentHeader header) throws IOException {
+        final TreeMap<String, BandIds> overlay = new TreeMap<String, BandIds>();
+        long sortedEnd = length;
+        if (!blocks.isEmpty()) {
+            sortedEnd = blocks.end();
+            scanSegment(segmentFile, sortedEnd, length, SegmentHeader.BlockIndex.NONE, new KeyBlock.RecordVisitor() {
+                @Override
+                public void visit(String key, BandIds ids) {
+                    BandIds previous = overlay.get(key);
+                    overlay.put(key, previous == null ? ids : previous.with(ids));
+                }
+            });
         }
+        Set<String> appended = new HashSet<String>(overlay.keySet());
+        appended.removeAll(changes.keySet());
+        overlay.putAll(changes);
 
-        // If it's in the LRUCache, immediately return the cached value.
-        String result = lruCache.get(query);
-        if (result != null) {
-            return Arrays.asList(result.split(idDelimiter));
+        FileOutputStream fileOut = new FileOutputStream(output);
+        BlockOutput out = new BlockOutput(new BufferedOutputStream(fileOut, 1 << 16), header);
+        try {
+            BlockMerge merge = new BlockMerge(overlay, appended, out);
+            scanSegment(segmentFile, 0, sortedEnd, blocks, merge);
+            merge.finish();
+            out.finish();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads every record of the segment between the two offsets, in file order: the blocks
+     * in that range (which always start at a block), and then the plain records after them.
+     */
+    private static void scanSegment(File file, long from, long to, SegmentHeader.BlockIndex blocks,
+                                    KeyBlock.RecordVisitor visitor) throws IOException {
+        FileInputStream fileIn = new FileInputStream(file);
+        fileIn.getChannel().position(from);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new BoundedInputStream(fileIn, to - from), 1 << 16));
+        try {
+            byte[] block = new byte[0];
+            for (SegmentHeader.Block entry : blocks.blocks) {
+                if (entry.offset < from || entry.offset + entry.length > to) {
+                    continue;
+                }
+                if (block.length < entry.length) {
+                    block = new byte[entry.length];
+                }
+                in.readFully(block, 0, entry.length);
+                KeyBlock.forEach(block, 0, entry.length, visitor);
+            }
+            while (in.available() > 0) {
+                visitor.visit(in.readUTF(), BandIds.readFrom(in));
+            }
+        } finally {
+            in.close();
         }
+    }
 
-        // Only go down to disk when both bloomFilter and lruCache above failed.
-        File targetFile = getTargetIndex(query).getSegment().getFile();
-        String value = "E";
+    /**
+     * Writes a record, unless it's a deleted key, and adds it to the header.
+     */
+    private static void writeRecord(String key, BandIds ids, RecordBlock record, OutputStream out,
+                                    SegmentHeader header, long[] offset) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        record.reset();
+        record.add(key, ids);
+        out.write(record.getBytes(), 0, record.getByteCount());
+        header.add(record.getFingerprint(0), offset[0]);
+        offset[0] += record.getByteCount();
+    }
 
-        lruCache.put(query, value);
-        return Collections.emptyList();
+    /**
+     * Callers hold the prefixLock.
+     */
+    private void addPrefixKey(String key) throws IOException {
+        if (prefixBuilder != null) {
+            prefixBuilder.add(key);
+        } else if (prefixIndex == null || !prefixIndex.contains(key)) {
+            prefixAdditions.add(key);
+        }
     }
 
-    @Override
-    public void add(String key, String value) {
-        addToBloomFilter(key);
+    /**
+     * Bands added by update() only live in the deltas until they're compacted, so after a
+     * restart they'd be missing from the prefix searches.
+     */
+    private void seedPrefixAdditions() {
         try {
-            addToDisk(key, value);
-        } catch (Exception e) {
-            Utils.log("Error while trying to add key/value to disk.", e);
+            synchronized (prefixLock) {
+                for (String key : deltas.getKeys()) {
+                    BandIds ids = deltas.get(key);
+                    if (ids != null && !ids.isEmpty()) {
+                        addPrefixKey(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Utils.log("Unable to add the pending changes to the prefix index", e);
         }
     }
 
-    @Override
-    public void onShutdown() {
-        for (IndexStructure indexStructure : indexStructures) {
-            // TODO - Ensure that all index files have been properly closed, etc.
+    /**
+     * Writes the prefix dictionary of a new catalog, or merges the keys added since it was
+     * written into it, minus the given deleted keys.  The new one is swapped in once it's
+     * complete, and the additions only dropped after that, so searches never miss a key.
+     */
+    private void rewritePrefixIndex(Set<String> removals) throws IOException {
+        synchronized (prefixRewriteLock) {
+            PrefixIndex.Builder builder;
+            synchronized (prefixLock) {
+                builder = prefixBuilder;
+                prefixBuilder = null;
+            }
+            if (builder != null) {
+                long start = System.currentTimeMillis();
+                prefixIndex = builder.finish();
+                Utils.log("Built the prefix index with " + prefixIndex.size() + " keys in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+
+            List<String> added = new ArrayList<String>(prefixAdditions);
+            if (!added.isEmpty() || !removals.isEmpty()) {
+                prefixIndex = PrefixIndex.merge(prefixIndex, added, removals, prefixIndexFile);
+                prefixAdditions.removeAll(added);
+            }
+            if (builder != null || !added.isEmpty() || !removals.isEmpty()) {
+                scheduleTrigramBuild();
+            }
         }
     }
 
-    private void addToDisk(String key, String value) throws IOException {
-        File targetFile = getTargetIndex(key).getSegment().getFile();
-        saveRecordToDisk(key, value, targetFile);
+    /**
+     * Opens the prefix dictionary of an existing catalog, or builds it from the segments if
+     * it's missing (a catalog from before there was one) or unreadable.
+     */
+    private void openPrefixIndex() {
+        try {
+            prefixIndex = PrefixIndex.open(prefixIndexFile);
+            scheduleTrigramBuild();
+            return;
+        } catch (IOException e) {
+            Utils.log("Unable to open the prefix index, building it from the segments", e);
+        }
+        try {
+            long start = System.currentTimeMillis();
+            final PrefixIndex.Builder builder = new PrefixIndex.Builder(prefixIndexFile, prefixSortDirectory, prefixSortMemoryBytes);
+            KeyBlock.RecordVisitor visitor = new KeyBlock.RecordVisitor() {
+                @Override
+                public void visit(String key, BandIds ids) throws IOException {
+                    builder.add(key);
+                }
+            };
+            for (IndexStructure structure : indexStructures) {
+                File file = structure.getSegment().getFile();
+                scanSegment(file, 0, file.length(), structure.getSegmentHeader().getBlocks(), visitor);
+            }
+            prefixIndex = builder.finish();
+            Utils.log("Built the prefix index with " + prefixIndex.size() + " keys in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            scheduleTrigramBuild();
+        } catch (IOException e) {
+            Utils.log("Unable to build the prefix index, prefix searches will only see new keys", e);
+        }
     }
 
     /**
-     * Naive way to add records to disk, it simply appends to the file, records are
-     * separated by '\t' characters, since those are guaranteed to not be in the keys
-     * or values, by design.
+     * Builds a new bloom filter out of the keys in the segments, so deleted keys don't
+     * linger in it.  Keys added while it's being built are added to both filters.
      */
-    private void saveRecordToDisk(String key, String value, File targetFile) throws IOException {
-        RandomAccessFile rwFile = null;
+    private void rebuildBloomFilter() throws IOException {
+        synchronized (bloomLock) {
+            bloomRebuildPending = new ArrayList<String>();
+        }
         try {
-            rwFile = new RandomAccessFile(targetFile, "rw");  // read-write mode
-            rwFile.seek(rwFile.length());
-            rwFile.writeUTF("\t" + key + value);
-        } catch (Exception e) {
-            Utils.log("Exception while trying to write record to disk", e);
+            List<IndexStructure> structures = new ArrayList<IndexStructure>(indexStructures);
+            long records = 0;
+            for (IndexStructure structure : structures) {
+                records += structure.getSegmentHeader().size();
+            }
+
+            // Only compactions swap segments, and this is one, so the files can be read unlocked.
+            BloomFilter rebuilt = new BloomFilter(Math.max(1, records), bloomFalsePositiveRate);
+            final BloomFilter target = rebuilt;
+            KeyBlock.RecordVisitor visitor = new KeyBlock.RecordVisitor() {
+                @Override
+                public void visit(String key, BandIds ids) {
+                    target.add(key);
+                }
+            };
+            for (IndexStructure structure : structures) {
+                File file = structure.getSegment().getFile();
+                scanSegment(file, 0, file.length(), structure.getSegmentHeader().getBlocks(), visitor);
+            }
+
+            synchronized (bloomLock) {
+                for (String key : bloomRebuildPending) {
+                    rebuilt.add(key);
+                }
+                bloomFilter = rebuilt;
+            }
         } finally {
-            rwFile.close();
+            synchronized (bloomLock) {
+                bloomRebuildPending = null;
+            }
         }
     }
 
     /**
-     * This naive implementation for readRecord just loads the file from disk, and
-     * parses out all the IDs that it finds for the passed key.
-     *
-     * A better implementation (that would take more time to implement) would be to
-     * store a B-tree index in SegmentIndex attached to the IndexStructures, to point
-     * directly to the offsets within the .dat Segment files, and then open the file,
-     * seek to those locations, and get those records only.
-     *
-     * As written, at least it will not consume too much memory, but it has to go through
-     * the entire file to get potentially multiple IDs for the band.
+     * Looks up all the keys of one segment: the offsets of all of them are sorted, and read
+     * in order through a single read window, which is only moved forward (or grown, for a
+     * record that doesn't fit).  Returns the IDs for every key, empty if not there.
      */
-    private String readRecordFromDisk(String key, File targetFile) throws IOException {
-        String result = null;
-        RandomAccessFile roFile = null;
+    private Map<String, BandIds> readSegmentBatch(int segmentNumber, List<String> keys) {
+        diskReads.add(keys.size());
+        segmentReadCounts[segmentNumber].add(keys.size());
+        Map<String, BandIds> results = new LinkedHashMap<String, BandIds>();
+        for (String key : keys) {
+            results.put(key, BandIds.EMPTY);
+        }
+
+        SegmentRead read = null;
         try {
-            roFile = new RandomAccessFile(targetFile, "r");  // read-only in this case
-            roFile.seek(0);
-            roFile.length();
-        } catch (Exception e) {
-            Utils.log("Exception while trying to read record from disk", e);
+            read = openSegment(segmentNumber, keys);
+            if (read.isOpen()) {
+                readSegmentBatch(read, keys, results);
+            }
+        } catch (IOException e) {
+            diskErrors.add(keys.size());
+            Utils.log("Error while trying to read keys from disk.", e);
+            return results;
         } finally {
-            roFile.close();
+            if (read != null) {
+                read.close();
+            }
         }
 
-        return result;
+        for (Map.Entry<String, BandIds> entry : results.entrySet()) {
+            cacheResult(segmentNumber, read, entry.getKey(), entry.getValue());
+            if (entry.getValue().isEmpty()) {
+                diskMisses.increment();
+            }
+        }
+        return results;
+    }
+
+    private void readSegmentBatch(SegmentRead read, List<String> keys, Map<String, BandIds> results) throws IOException {
+        // Blocks first, each one read once for all its keys, in file order.  They hold the
+        // oldest records, so whatever was appended after them goes on top.
+        Map<SegmentHeader.Block, List<String>> keysByBlock =
+                new TreeMap<SegmentHeader.Block, List<String>>(new Comparator<SegmentHeader.Block>() {
+                    @Override
+                    public int compare(SegmentHeader.Block a, SegmentHeader.Block b) {
+                        return Long.compare(a.offset, b.offset);
+                    }
+                });
+        for (int i = 0; i < keys.size(); i++) {
+            if (read.blocks[i] != null) {
+                List<String> blockKeys = keysByBlock.get(read.blocks[i]);
+                if (blockKeys == null) {
+                    blockKeys = new ArrayList<String>();
+                    keysByBlock.put(read.blocks[i], blockKeys);
+                }
+                blockKeys.add(keys.get(i));
+            }
+        }
+        for (Map.Entry<SegmentHeader.Block, List<String>> entry : keysByBlock.entrySet()) {
+            // Mapped blocks are read in place, the others once for all their keys.
+            SegmentHeader.Block block = entry.getKey();
+            ByteBuffer bytes = read.mapped != null ? read.mapped : ByteBuffer.wrap(readBlock(read, block));
+            int offset = read.mapped != null ? (int) block.offset : 0;
+            for (String key : entry.getValue()) {
+                BandIds ids = KeyBlock.find(bytes, offset, block.length, key, key.getBytes(StandardCharsets.UTF_8));
+                if (ids != null) {
+                    results.put(key, ids);
+                }
+            }
+        }
+
+        final List<Long> offsets = new ArrayList<Long>();
+        final List<String> owners = new ArrayList<String>();
+        for (int i = 0; i < keys.size(); i++) {
+            for (long offset : read.offsets[i]) {
+                offsets.add(offset);
+                owners.add(keys.get(i));
+            }
+        }
+
+        Integer[] order = new Integer[offsets.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(offsets.get(a), offsets.get(b));
+            }
+        });
+
+        if (read.mapped != null) {
+            // No read window needed, the records are compared in place, in file order.
+            Map<String, byte[]> encodedKeys = new HashMap<String, byte[]>();
+            for (int position : order) {
+                String key = owners.get(position);
+                byte[] encodedKey = encodedKeys.get(key);
+                if (encodedKey == null) {
+                    // Keys too long to be stored get an empty one, that never matches.
+                    encodedKey = RecordBlock.encodeKey(key);
+                    encodedKey = encodedKey != null ? encodedKey : new byte[0];
+                    encodedKeys.put(key, encodedKey);
+                }
+                int offset = (int) (long) offsets.get(position);
+                if (encodedKey.length > 0 && RecordBlock.keyMatches(read.mapped, offset, encodedKey)) {
+                    BandIds ids = RecordBlock.readIds(read.mapped, offset, encodedKey);
+                    BandIds previous = results.get(key);
+                    results.put(key, previous.isEmpty() ? ids : previous.with(ids));
+                }
+            }
+            return;
+        }
+
+        FileChannel channel = read.file.getChannel();
+        long fileLength = channel.size();
+        byte[] window = new byte[BATCH_READ_BYTES];
+        long windowStart = 0;
+        int windowLength = 0;
+
+        for (int position : order) {
+            long offset = offsets.get(position);
+            String key = owners.get(position);
+            while (true) {
+                if (offset < windowStart || offset >= windowStart + windowLength) {
+                    windowStart = offset;
+                    windowLength = fill(channel, offset, window, fileLength);
+                }
+                int start = (int) (offset - windowStart);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(window, start, windowLength - start));
+                try {
+                    if (key.equals(in.readUTF())) {
+                        BandIds ids = BandIds.readFrom(in);
+                        BandIds previous = results.get(key);
+                        results.put(key, previous.isEmpty() ? ids : previous.with(ids));
+                    }
+                    break;
+                } catch (EOFException e) {
+                    // The record runs past the window: start the window at the record,
+                    // and make it bigger if it already started there.
+                    if (windowStart + windowLength >= fileLength) {
+                        throw new IOException("Truncated record at offset " + offset);
+                    }
+                    if (start == 0) {
+                        window = new byte[window.length * 2];
+                    }
+                    windowLength = 0;
+                }
+            }
+        }
+    }
+
+    private static int fill(FileChannel channel, long position, byte[] window, long fileLength) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(window, 0, (int) Math.min(window.length, fileLength - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Saves the keys in the cache, the hottest first, and the disk reads of each segment,
+     * for warmUp() to start from the next time the catalog is opened.
+     */
+    public void saveHotSet() {
+        int segmentCount = routing.segmentCount;
+        LongAdder[] readCounts = segmentReadCounts;
+        long[] segmentReads = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segmentReads[i] = readCounts[i].sum();
+        }
+        try {
+            new HotSet(cache.hottest(hotSetKeys), segmentReads).write(hotSetFile);
+        } catch (IOException e) {
+            Utils.log("Unable to save the hot set to " + hotSetFile, e);
+        }
+    }
+
+    private synchronized void startSavingHotSet(long periodSeconds) {
+        if (periodSeconds <= 0) {
+            return;
+        }
+        hotSetSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pandora-hotset");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        hotSetSaver.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveHotSet();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gets the catalog back to where it was before the last shutdown, as far as the saved
+     * HotSet goes: first the segments that had the most disk reads are read into the page
+     * cache, hottest first, skipping any that no longer fit in what's left of
+     * -Dpandora.warmupMb, and then the saved keys are looked up
+     * again, in batches, so they're back in the result cache.  Both run in parallel on the
+     * batch pool.  Segment read counts only apply if the catalog still has the same number
+     * of segments.  The lookups aren't queries, so once they're done the lookup metrics and
+     * segment read counts they went through are reset, before anything (JMX, the hot set
+     * saver) gets to see them, and only then are the saved read counts carried over.
+     */
+    private void warmUp() {
+        HotSet hotSet;
+        try {
+            hotSet = HotSet.read(hotSetFile);
+        } catch (IOException e) {
+            Utils.log("Unable to read the hot set, starting cold", e);
+            return;
+        }
+        if (hotSet == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        long prefetchedBytes = 0;
+        int prefetchedSegments = 0;
+        final HotSet saved = hotSet;
+        boolean sameSegments = saved.getSegmentCount() == routing.segmentCount;
+        if (sameSegments) {
+            List<Integer> hottest = new ArrayList<Integer>();
+            for (int i = 0; i < saved.getSegmentCount(); i++) {
+                if (saved.getSegmentReads(i) > 0) {
+                    hottest.add(i);
+                }
+            }
+            Collections.sort(hottest, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer left, Integer right) {
+                    return Long.compare(saved.getSegmentReads(right), saved.getSegmentReads(left));
+                }
+            });
+
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            long budget = warmupBytes;
+            for (int segmentNumber : hottest) {
+                final Segment segment = indexStructures.get(segmentNumber).getSegment();
+                long length = segment.getFile().length();
+                if (length > budget) {
+                    // A smaller, colder one may still fit.
+                    continue;
+                }
+                budget -= length;
+                futures.add(getBatchExecutor().submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        return segment.prefetch();
+                    }
+                }));
+            }
+            for (Future<Long> future : futures) {
+                try {
+                    prefetchedBytes += future.get();
+                    prefetchedSegments++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    Utils.log("Unable to prefetch a segment", e);
+                }
+            }
+        }
+
+        List<String> keys = hotSet.getKeys();
+        for (int i = 0; i < keys.size(); i += WARMUP_BATCH_KEYS) {
+            searchBatch(keys.subList(i, Math.min(keys.size(), i + WARMUP_BATCH_KEYS)));
+        }
+        for (LongAdder counter : new LongAdder[] {batches, deltaHits, bloomRejects, cacheHits, cacheMisses,
+                diskReads, diskMisses, diskErrors}) {
+            counter.reset();
+        }
+        batchLatency.reset();
+        LongAdder[] readCounts = segmentReadCounts;
+        for (int i = 0; i < readCounts.length; i++) {
+            readCounts[i].reset();
+            if (sameSegments) {
+                // Old reads count for less than new ones, so a segment that's gone cold fades out.
+                readCounts[i].add(saved.getSegmentReads(i) / 2);
+            }
+        }
+        Utils.log("Warmed up " + prefetchedSegments + " segments (" + (prefetchedBytes >> 10) + "KB) and "
+                + keys.size() + " cached keys in " + (System.currentTimeMillis() - start) + "ms");
     }
 
-    private IndexStructure getTargetIndex(String key) {
-        return indexStructures.get((int) Utils.crc32Hash(key, totalIndexFiles));
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            batchExecutor = newDaemonPool("pandora-batch", batchThreads);
+        }
+        return batchExecutor;
+    }
+
+    private static ExecutorService newDaemonPool(final String name, int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
+    // Callers hold the bloomLock.
     private void addToBloomFilter(String key) {
         bloomFilter.add(key);
+        if (bloomRebuildPending != null) {
+            bloomRebuildPending.add(key);
+        }
+    }
+
+    /**
+     * Validates the catalog against its manifest, and loads the segment headers and the
+     * bloom filter.  Sizes, record counts and the header/bloom filter checksums are always
+     * checked, since those files are read in full anyway.  Returns false (and logs why) if
+     * the catalog is missing, corrupt, or was built from a different input.
+     */
+    private boolean openCatalog() {
+        CatalogManifest manifest;
+        try {
+            manifest = CatalogManifest.read(manifestFile);
+        } catch (IOException e) {
+            Utils.log("Unable to read catalog manifest, rebuilding index", e);
+            return false;
+        }
+        if (manifest == null) {
+            Utils.log("No catalog manifest found in " + indexBaseDirectory + ", building index");
+            return false;
+        }
+        if (!manifest.isBuiltFrom(source) || !manifest.isShard(shard)) {
+            Utils.log("Catalog was built from a different input than shard " + shard + " of " + source
+                    + ", rebuilding index");
+            sourceChanged = true;
+            return false;
+        }
+        if (!HASH_FUNCTION.equals(manifest.getHashFunction()) || manifest.getSegmentCount() < 1
+                || manifest.getSegmentCount() > MAX_SEGMENTS) {
+            Utils.log("Catalog was built with different settings (" + manifest + "), rebuilding index");
+            return false;
+        }
+
+        int segmentCount = manifest.getSegmentCount();
+        ensureSegmentSlots(segmentCount);
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                File segment = getSegmentFile(i);
+                File segmentIndex = getSegmentIndexFile(i);
+                if (segment.length() != manifest.getSegmentLength(i)) {
+                    throw new IOException("Size of " + segment + " doesn't match the manifest");
+                }
+                if (verifyChecksums && Utils.crc32(segment) != manifest.getSegmentChecksum(i)) {
+                    throw new IOException("Checksum of " + segment + " doesn't match the manifest");
+                }
+                if (Utils.crc32(segmentIndex) != manifest.getHeaderChecksum(i)) {
+                    throw new IOException("Checksum of " + segmentIndex + " doesn't match the manifest");
+                }
+
+                SegmentHeader segmentHeader = new SegmentHeader(segmentIndex);
+                segmentHeader.load();
+                if (segmentHeader.size() != manifest.getRecordCount(i)) {
+                    throw new IOException("Record count of " + segmentIndex + " doesn't match the manifest");
+                }
+                Segment opened = new Segment(segment);
+                opened.setChecksum(manifest.getSegmentLength(i), manifest.getSegmentChecksum(i));
+                indexStructures.add(new IndexStructure(opened, segmentHeader));
+            }
+
+            if (bloomFilterFile.length() != manifest.getBloomFilterLength()
+                    || Utils.crc32(bloomFilterFile) != manifest.getBloomFilterChecksum()) {
+                throw new IOException("Bloom filter " + bloomFilterFile + " doesn't match the manifest");
+            }
+            bloomFilter = BloomFilter.load(bloomFilterFile);
+            sortedSegments = manifest.hasSortedSegments();
+            routing = new Routing(segmentCount);
+        } catch (IOException e) {
+            Utils.log("Index catalog is corrupt, rebuilding index", e);
+            indexStructures.clear();
+            bloomFilter.clear();
+            return false;
+        }
+
+        Utils.log("Opened existing index catalog " + manifest);
+        return true;
+    }
+
+    private void writeManifest() throws IOException {
+        int segmentCount = indexStructures.size();
+        int[] recordCounts = new int[segmentCount];
+        long[] segmentLengths = new long[segmentCount];
+        long[] segmentChecksums = new long[segmentCount];
+        long[] headerChecksums = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            IndexStructure indexStructure = indexStructures.get(i);
+            File segment = indexStructure.getSegment().getFile();
+            recordCounts[i] = indexStructure.getSegmentHeader().size();
+            segmentLengths[i] = segment.length();
+            // Only reads the segments that were appended to or rewritten since the last manifest.
+            segmentChecksums[i] = indexStructure.getSegment().checksum();
+            headerChecksums[i] = Utils.crc32(indexStructure.getSegmentHeader().getFile());
+        }
+
+        CatalogManifest manifest = new CatalogManifest(HASH_FUNCTION, shard, source, sortedSegments, recordCounts,
+                segmentLengths, segmentChecksums, headerChecksums, bloomFilterFile.length(), Utils.crc32(bloomFilterFile));
+        manifest.write(manifestFile);
+    }
+
+    private File getSegmentFile(int i) {
+        return new File(indexBaseDirectory + String.format("segment%05d.dat", i));
+    }
+
+    private File getSegmentIndexFile(int i) {
+        return new File(indexBaseDirectory + String.format("segment%05d.idx", i));
     }
 
     /**
-     As written, this will overwrite any existing indexes in the index base directory.
-     Of course this is not optimal, but there is no way to sanity-check the files at the
-     moment, so can't guarantee that any files that are there are actually valid.
+     * Creates a new, empty catalog, overwriting any existing indexes in the index base
+     * directory.  The manifest goes first, so a rebuild that doesn't finish is never
+     * mistaken for a valid catalog.
      */
     private void initializeIndexes() {
         ensureDirectoryExists(indexBaseDirectory);
+        manifestFile.delete();
+        bloomFilterFile.delete();
+        prefixIndexFile.delete();
+        prefixBuilder = new PrefixIndex.Builder(prefixIndexFile, prefixSortDirectory, prefixSortMemoryBytes);
+        dirty = true;
 
-        for (int i = 0; i < totalIndexFiles; i++) {
-            File segment = new File(indexBaseDirectory + String.format("segment%05d.dat", i));
-            File segmentIndex = new File(indexBaseDirectory + String.format("segment%05d.idx", i));
+        ensureSegmentSlots(initialSegmentCount);
+        for (int i = 0; i < initialSegmentCount; i++) {
             try {
-                segment.createNewFile();
-                segmentIndex.createNewFile();
+                indexStructures.add(createSegment(i));
+            } catch (IOException e) {
+                Utils.log("Error while trying to create file " + getSegmentFile(i).getName(), e);
+                throw new RuntimeException("Error while trying to create file " + getSegmentFile(i).getName());
+            }
+        }
+        routing = new Routing(initialSegmentCount);
+    }
 
-                Segment indexSegment = new Segment(segment);
-                SegmentHeader segmentHeader = new SegmentHeader();
+    private IndexStructure createSegment(int i) throws IOException {
+        File segment = getSegmentFile(i);
+        File segmentIndex = getSegmentIndexFile(i);
+        // Start from empty files, otherwise records from a previous run would be appended to.
+        segment.delete();
+        segmentIndex.delete();
+        segment.createNewFile();
+        segmentIndex.createNewFile();
+        return new IndexStructure(new Segment(segment), new SegmentHeader(segmentIndex));
+    }
 
-                indexStructures.add(new IndexStructure(indexSegment, segmentHeader));
-            } catch (Exception e) {
-                Utils.log("Error while trying to create file " + segment.getName(), e);
-                throw new RuntimeException("Error while trying to create file " + segment.getName());
+    /**
+     * Makes room in the per-segment arrays (locks, versions, writers, readers and read
+     * counts) for that many segments.  Only ever grows them, before the new segments are
+     * used.
+     */
+    private synchronized void ensureSegmentSlots(int segmentCount) {
+        int slots = segmentLocks.length;
+        if (slots >= segmentCount) {
+            return;
+        }
+        StampedLock[] locks = Arrays.copyOf(segmentLocks, segmentCount);
+        AtomicLong[] versions = Arrays.copyOf(segmentVersions, segmentCount);
+        SegmentWriter[] writers = Arrays.copyOf(segmentWriters, segmentCount);
+        SegmentReadQueue[] readers = Arrays.copyOf(segmentReaders, segmentCount);
+        LongAdder[] readCounts = Arrays.copyOf(segmentReadCounts, segmentCount);
+        for (int i = slots; i < segmentCount; i++) {
+            locks[i] = new StampedLock();
+            versions[i] = new AtomicLong();
+            writers[i] = new SegmentWriter(i, writerExecutor, segmentSink);
+            readers[i] = new SegmentReadQueue(ioExecutor, segmentReadsInFlight);
+            readCounts[i] = new LongAdder();
+        }
+        segmentLocks = locks;
+        segmentVersions = versions;
+        segmentWriters = writers;
+        segmentReaders = readers;
+        segmentReadCounts = readCounts;
+    }
+
+    private void discardDeltas() {
+        File[] files = deltaDirectory.listFiles();
+        if (files != null && files.length > 0) {
+            Utils.log("Discarding " + files.length + " delta files made on top of the previous input");
+            for (File file : files) {
+                file.delete();
             }
         }
     }
@@ -165,4 +2571,234 @@ public class DiskIndex implements Index {
             indexDirectory.mkdirs();
         }
     }
+
+    /**
+     * Stops at the given length, so a segment can be read up to a known size even if
+     * something is being appended to it.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+
+    /**
+     * Merges the sorted records of a segment, as they're scanned, with the changed and
+     * appended keys, see writeCompactedBlocks().
+     */
+    private static class BlockMerge implements KeyBlock.RecordVisitor {
+        private final Iterator<Map.Entry<String, BandIds>> pending;
+        private final Set<String> appended;
+        private final BlockOutput out;
+        private Map.Entry<String, BandIds> next;
+        private String previousKey;
+
+        BlockMerge(NavigableMap<String, BandIds> overlay, Set<String> appended, BlockOutput out) {
+            this.pending = overlay.entrySet().iterator();
+            this.appended = appended;
+            this.out = out;
+            advance();
+        }
+
+        @Override
+        public void visit(String key, BandIds ids) throws IOException {
+            if (key.equals(previousKey)) {
+                return;
+            }
+            previousKey = key;
+            // Changed or appended keys that come before this one go in first.
+            while (next != null && next.getKey().compareTo(key) < 0) {
+                out.add(next.getKey(), next.getValue());
+                advance();
+            }
+            if (next != null && next.getKey().equals(key)) {
+                ids = appended.contains(key) ? ids.with(next.getValue()) : next.getValue();
+                advance();
+            }
+            out.add(key, ids);
+        }
+
+        void finish() throws IOException {
+            while (next != null) {
+                out.add(next.getKey(), next.getValue());
+                advance();
+            }
+        }
+
+        private void advance() {
+            next = pending.hasNext() ? pending.next() : null;
+        }
+    }
+
+    /**
+     * Cuts the records written to it into KeyBlocks, for compactions, and adds the blocks to
+     * the header.  Deleted keys are dropped.
+     */
+    private class BlockOutput {
+        private final OutputStream out;
+        private final SegmentHeader header;
+        private final KeyBlock block = new KeyBlock(blockBytes + (blockBytes >> 2));
+        private long offset = 0;
+
+        BlockOutput(OutputStream out, SegmentHeader header) {
+            this.out = out;
+            this.header = header;
+        }
+
+        void add(String key, BandIds ids) throws IOException {
+            if (ids.isEmpty()) {
+                return;
+            }
+            block.add(key, ids);
+            if (block.getByteCount() >= blockBytes) {
+                writeBlock();
+            }
+        }
+
+        void finish() throws IOException {
+            if (block.getRecordCount() > 0) {
+                writeBlock();
+            }
+            out.flush();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        private void writeBlock() throws IOException {
+            byte[] stored = block.finish(blockCompression);
+            out.write(stored);
+            header.addBlock(block.getKey(0), offset, stored.length, block.getRecordCount());
+            offset += stored.length;
+            block.reset();
+        }
+    }
+
+    /**
+     * Which segment every key is in: jump hashing over the segment count, except while a
+     * split is going from previousCount to segmentCount segments, when the keys that move
+     * are still in their old segment until it's migrated.  With jump hashing, a key either
+     * stays in its segment or moves to one of the new ones.  A new Routing is published for
+     * every change of counts, so its identity tells readers that a split started or ended.
+     */
+    private static class Routing {
+        final int segmentCount;
+        final int previousCount;
+        // Per old segment, set under the split write lock once its keys were moved.
+        final boolean[] migrated;
+
+        Routing(int segmentCount) {
+            this(segmentCount, segmentCount);
+        }
+
+        Routing(int segmentCount, int previousCount) {
+            this.segmentCount = segmentCount;
+            this.previousCount = previousCount;
+            this.migrated = new boolean[previousCount];
+        }
+
+        boolean isSplitting() {
+            return previousCount != segmentCount;
+        }
+
+        boolean isMoving(long hash) {
+            return isSplitting() && Utils.jumpHash(hash, segmentCount) >= previousCount;
+        }
+
+        int getSegmentNumber(long hash) {
+            int segmentNumber = Utils.jumpHash(hash, segmentCount);
+            if (segmentNumber < previousCount) {
+                return segmentNumber;
+            }
+            int oldSegmentNumber = Utils.jumpHash(hash, previousCount);
+            return migrated[oldSegmentNumber] ? segmentNumber : oldSegmentNumber;
+        }
+    }
+
+    /**
+     * A segment's header lookups (plain record offsets and the block, if any, for each key)
+     * and its open file, taken together, see openSegment().  A single key read has its
+     * lookups in keyOffsets and keyBlock instead of the arrays.
+     */
+    private static class SegmentRead {
+        final long stamp;
+        final long version;
+        final long[][] offsets;
+        final SegmentHeader.Block[] blocks;
+        final long[] keyOffsets;
+        final SegmentHeader.Block keyBlock;
+        // One or the other, or neither if none of the keys can be in the segment.
+        final RandomAccessFile file;
+        final ByteBuffer mapped;
+
+        SegmentRead(long stamp, long version, long[][] offsets, SegmentHeader.Block[] blocks,
+                    RandomAccessFile file, ByteBuffer mapped) {
+            this(stamp, version, offsets, blocks, null, null, file, mapped);
+        }
+
+        SegmentRead(long stamp, long version, long[] keyOffsets, SegmentHeader.Block keyBlock,
+                    RandomAccessFile file, ByteBuffer mapped) {
+            this(stamp, version, null, null, keyOffsets, keyBlock, file, mapped);
+        }
+
+        private SegmentRead(long stamp, long version, long[][] offsets, SegmentHeader.Block[] blocks,
+                            long[] keyOffsets, SegmentHeader.Block keyBlock, RandomAccessFile file,
+                            ByteBuffer mapped) {
+            this.stamp = stamp;
+            this.version = version;
+            this.offsets = offsets;
+            this.blocks = blocks;
+            this.keyOffsets = keyOffsets;
+            this.keyBlock = keyBlock;
+            this.file = file;
+            this.mapped = mapped;
+        }
+
+        boolean isOpen() {
+            return file != null || mapped != null;
+        }
+
+        void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Utils.log("Error while closing segment", e);
+                }
+            }
+        }
+    }
 }
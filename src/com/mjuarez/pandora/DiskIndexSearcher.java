@@ -1,13 +1,17 @@
 package com.mjuarez.pandora;
 
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
 import com.mjuarez.pandora.utils.Utils;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static com.mjuarez.pandora.utils.Utils.log;
 
@@ -17,27 +21,85 @@ import static com.mjuarez.pandora.utils.Utils.log;
  * a bloom filter with multiple hashes and an LRU cache to avoid having to go to disk as much
  * as possible, as well as taking advantage of repeat searches for very popular bands.
  *
- * The index file themselves are mostly PoC files, with very little structure to them,
- * and no index or direct way to seek a particular band/ID.  Of course, this would have
- * to be changed in a production system.
+ * Each segment's .dat file is just the records, one after the other, but it comes with an
+ * .idx file, its SegmentHeader: the fingerprint of every key with the offset of its record,
+ * so a lookup is a binary search over the fingerprints and a direct seek to the record,
+ * instead of reading through the whole segment.
  */
 public class DiskIndexSearcher implements Searcher {
     private final static char delimiter = '\t';
     private final static String idDelimiter = "-";
 
     private final String filePath;
-    private final Index index;
+    private final DiskIndex index;
+
+    /**
+     * How to build the catalog when there isn't a valid one already (-Dpandora.buildMode):
+     * "bulk" (default) appends to the segments from several threads, "sorted" does an
+     * external sort within -Dpandora.sortMemoryMb of memory and writes sorted segments
+     * (as front-coded KeyBlocks, unless -Dpandora.blockSegments=false),
+     * and "sequential" adds one record at a time.
+     */
+    private final String buildMode = System.getProperty("pandora.buildMode", "bulk");
+    private final long sortMemoryBytes = Long.getLong("pandora.sortMemoryMb", 256) << 20;
+    private final File sortTempDirectory = new File(System.getProperty("pandora.sortTempDir",
+            System.getProperty("java.io.tmpdir") + File.separator + "pandora-sort"));
 
 
     public DiskIndexSearcher(String filePath) {
         this.filePath = filePath;
-        this.index = new DiskIndex();
-
-        initializeIndex();
+        this.index = new DiskIndex(new File(filePath));
+
+        // Only go through the input file if there isn't a valid catalog built from it already.
+        if (!index.isCatalogLoaded()) {
+            if ("sorted".equals(buildMode)) {
+                buildSortedIndex();
+            } else if ("sequential".equals(buildMode)) {
+                initializeIndex();
+            } else {
+                bulkLoadIndex();
+            }
+            index.flush();
+        }
     }
 
     public List<String> search(String query) {
-        return index.search(query);
+        // IDs stay packed all the way down, and are only decoded here.
+        return index.search(query).asList();
+    }
+
+    @Override
+    public int search(String query, BandIdBuffer results) {
+        return index.search(query, results);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> searchAsync(String query) {
+        return index.searchAsync(query).thenApply(new Function<BandIds, List<String>>() {
+            @Override
+            public List<String> apply(BandIds ids) {
+                return ids.asList();
+            }
+        });
+    }
+
+    @Override
+    public Map<String, List<String>> searchBatch(Collection<String> queries) {
+        Map<String, List<String>> results = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, BandIds> entry : index.searchBatch(queries).entrySet()) {
+            results.put(entry.getKey(), entry.getValue().asList());
+        }
+        return results;
+    }
+
+    @Override
+    public List<String> searchPrefix(String prefix, int limit) {
+        return index.searchPrefix(prefix, limit);
+    }
+
+    @Override
+    public List<String> searchFuzzy(String query) {
+        return index.searchFuzzy(query).asList();
     }
 
     @Override
@@ -46,6 +108,22 @@ public class DiskIndexSearcher implements Searcher {
         index.onShutdown();
     }
 
+    private void bulkLoadIndex() {
+        try {
+            new BulkLoader(index, new File(filePath)).load();
+        } catch (Exception e) {
+            log("Exception while bulk loading file " + filePath, e);
+        }
+    }
+
+    private void buildSortedIndex() {
+        try {
+            new SortedSegmentBuilder(index, new File(filePath), sortMemoryBytes, sortTempDirectory).build();
+        } catch (Exception e) {
+            log("Exception while building sorted index from file " + filePath, e);
+        }
+    }
+
     private void initializeIndex() {
         try {
             InputStream in = new FileInputStream(new File(filePath));
@@ -66,7 +144,9 @@ public class DiskIndexSearcher implements Searcher {
                 String key = fields.get(0);
                 String value = fields.get(1);
 
-                addToDiskIndex(key, value);
+                if (index.getShard().owns(key)) {
+                    addToDiskIndex(key, value);
+                }
             }
         } catch (Exception e) {
             log("Exception while loading file " + filePath, e);
@@ -77,31 +157,13 @@ public class DiskIndexSearcher implements Searcher {
         index.add(key, value);
     }
 
-    private static void setupShutdownHooks(final Searcher searcher, final ExecutorService taskExecutor) {
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                try {
-                    log("Shutting down executor with background tasks");
-                    taskExecutor.awaitTermination(1, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    log("Interrupted while awaiting termination", e);
-                }
-                searcher.onShutdown();
-            }
-        });
-    }
-
     public static void main(String[] args) {
         if (args == null || args.length != 1) {
             System.err.println("Invalid input arguments: " + (args == null ? args : Arrays.asList(args)));
             System.exit(1);
         }
 
-        final DiskIndexSearcher searcher = new DiskIndexSearcher(args[0]);
-        final ExecutorService taskExecutor = Executors.newSingleThreadExecutor();
-        taskExecutor.execute(new SearchConsole(searcher));
-
-        setupShutdownHooks(searcher, taskExecutor);
+        // Server mode if -Dpandora.tcpPort or -Dpandora.httpPort are set, console otherwise.
+        QueryServer.serve(new DiskIndexSearcher(args[0]));
     }
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.mjuarez.pandora;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * What was hot in the catalog the last time it was running: the keys in the result cache,
+ * the ones most worth keeping first, and how many disk reads went to each segment.  Saved
+ * now and then, and on shutdown, so a restart can warm the cache and the page cache back up
+ * before it takes any queries, see DiskIndex.
+ *
+ * Only a hint: keys that aren't in the catalog anymore just warm up as misses, and read
+ * counts for a different number of segments (after a split) are ignored.  Written like the
+ * CatalogManifest, checksummed, to a temp file that's then renamed into place.
+ */
+public class HotSet {
+    private static final int MAGIC = 0x50484f54;  // "PHOT"
+    private static final int FORMAT_VERSION = 1;
+
+    private final List<String> keys;
+    private final long[] segmentReads;
+
+    public HotSet(List<String> keys, long[] segmentReads) {
+        this.keys = Collections.unmodifiableList(new ArrayList<String>(keys));
+        this.segmentReads = segmentReads.clone();
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public int getSegmentCount() {
+        return segmentReads.length;
+    }
+
+    public long getSegmentReads(int segmentNumber) {
+        return segmentReads[segmentNumber];
+    }
+
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(segmentReads.length);
+        for (long reads : segmentReads) {
+            out.writeLong(reads);
+        }
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            out.writeUTF(key);
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes.toByteArray());
+        out.writeLong(crc32.getValue());
+        out.flush();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(fileOut);
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the hot set from disk.  Returns null if there is none, and throws an IOException
+     * if it's from a different format version or corrupt.
+     */
+    public static HotSet read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < 8) {
+            throw new IOException("Hot set " + file + " is truncated");
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 8);
+        if (in.readLong() != crc32.getValue()) {
+            throw new IOException("Hot set " + file + " is corrupt, checksum doesn't match");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a hot set: " + file);
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Hot set " + file + " has format version " + version + ", expected " + FORMAT_VERSION);
+        }
+        long[] segmentReads = new long[in.readInt()];
+        for (int i = 0; i < segmentReads.length; i++) {
+            segmentReads[i] = in.readLong();
+        }
+        int keyCount = in.readInt();
+        List<String> keys = new ArrayList<String>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(in.readUTF());
+        }
+        return new HotSet(keys, segmentReads);
+    }
+
+    @Override
+    public String toString() {
+        return "HotSet{" +
+                "keys=" + keys.size() +
+                ", segments=" + segmentReads.length +
+                '}';
+    }
+}
@@ -1,11 +1,13 @@
 package com.mjuarez.pandora;
 
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.NameNormalizer;
+import com.mjuarez.pandora.utils.TrigramIndex;
 import com.mjuarez.pandora.utils.Utils;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.mjuarez.pandora.utils.Utils.log;
@@ -13,9 +15,16 @@ import static com.mjuarez.pandora.utils.Utils.log;
 public class InMemorySearcher implements Searcher {
     private static String filePath;
     private final static char delimiter = '\t';
-    private final static String idDelimiter = "-";
 
-    private HashMap<String, String> index = new LinkedHashMap<String, String>(100_000);
+    // IDs are kept packed (see BandIds), and only decoded when returned from search().
+    private HashMap<String, BandIds> index = new LinkedHashMap<String, BandIds>(100_000);
+
+    // For searchFuzzy(), built the first time it's needed.
+    private TrigramIndex trigramIndex;
+    // For searchPrefix(), same.
+    private String[] sortedNames;
+    private final int fuzzyMaxDistance = Integer.getInteger("pandora.fuzzyMaxDistance", 2);
+    private final long fuzzyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("pandora.fuzzyBudgetMs", 10));
 
     public InMemorySearcher(String filePath) {
         this.filePath = filePath;
@@ -23,12 +32,71 @@ public class InMemorySearcher implements Searcher {
     }
 
     public List<String> search(String query) {
-        if (index.containsKey(query)) {
-            return Arrays.asList(index.get(query).split(idDelimiter));
+        BandIds ids = index.get(query);
+        if (ids != null) {
+            return ids.asList();
         }
         return Collections.emptyList();
     }
 
+    @Override
+    public int search(String query, BandIdBuffer results) {
+        results.clear();
+        BandIds ids = index.get(query);
+        if (ids != null) {
+            results.addAll(ids);
+        }
+        return results.size();
+    }
+
+    @Override
+    public List<String> searchFuzzy(String query) {
+        List<String> exact = search(query);
+        if (!exact.isEmpty()) {
+            return exact;
+        }
+        int maxDistance = TrigramIndex.maxDistance(NameNormalizer.normalize(query), fuzzyMaxDistance);
+        List<TrigramIndex.Match> matches = getTrigramIndex().find(query, 1, maxDistance, System.nanoTime() + fuzzyBudgetNanos);
+        return matches.isEmpty() ? Collections.<String>emptyList() : search(matches.get(0).getName());
+    }
+
+    @Override
+    public List<String> searchPrefix(String prefix, int limit) {
+        return PrefixIndex.search(getSortedNames(), prefix, limit);
+    }
+
+    private synchronized String[] getSortedNames() {
+        if (sortedNames == null) {
+            String[] names = index.keySet().toArray(new String[0]);
+            Arrays.sort(names, PrefixIndex.KEY_ORDER);
+            sortedNames = names;
+        }
+        return sortedNames;
+    }
+
+    private synchronized TrigramIndex getTrigramIndex() {
+        if (trigramIndex == null) {
+            final List<String> names = new ArrayList<String>(index.keySet());
+            trigramIndex = TrigramIndex.build(new TrigramIndex.Names() {
+                @Override
+                public int size() {
+                    return names.size();
+                }
+
+                @Override
+                public String get(int ordinal) {
+                    return names.get(ordinal);
+                }
+
+                @Override
+                public Iterator<String> iterator() {
+                    return names.iterator();
+                }
+            });
+        }
+        return trigramIndex;
+    }
+
     @Override
     public void onShutdown() {
         log("Shutting down InMemorySearcher...");
@@ -41,11 +109,8 @@ public class InMemorySearcher implements Searcher {
             System.exit(1);
         }
 
-        final InMemorySearcher searcher = new InMemorySearcher(args[0]);
-        final ExecutorService taskExecutor = Executors.newSingleThreadExecutor();
-        taskExecutor.execute(new SearchConsole(searcher));
-
-        setupShutdownHooks(searcher, taskExecutor);
+        // Server mode if -Dpandora.tcpPort or -Dpandora.httpPort are set, console otherwise.
+        QueryServer.serve(new InMemorySearcher(args[0]));
     }
 
     private void initializeIndex() {
@@ -66,29 +131,11 @@ public class InMemorySearcher implements Searcher {
                 }
 
                 String key = fields.get(0);
-                String value = fields.get(1);
-                if (index.containsKey(key)) {
-                    value = index.get(key) + idDelimiter + fields.get(1);
-                }
-                index.put(key, value);
+                BandIds ids = index.get(key);
+                index.put(key, ids == null ? BandIds.of(fields.get(1)) : ids.with(fields.get(1)));
             }
         } catch (IOException e) {
             System.out.println("Exception: " + e.getLocalizedMessage());
         }
     }
-
-    private static void setupShutdownHooks(final Searcher searcher, final ExecutorService taskExecutor) {
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                try {
-                    log("Shutting down executor with background tasks");
-                    taskExecutor.awaitTermination(1, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    log("Interrupted while awaiting termination", e);
-                }
-                searcher.onShutdown();
-            }
-        });
-    }
 }
@@ -1,9 +1,64 @@
 package com.mjuarez.pandora;
 
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface Index {
-    List<String> search(String query);
+    BandIds search(String query);
+
+    /**
+     * Same as search(), but adds the IDs to the results (which are cleared first) and
+     * returns how many there are, see Searcher.search(String, BandIdBuffer).
+     */
+    default int search(String query, BandIdBuffer results) {
+        results.clear();
+        results.addAll(search(query));
+        return results.size();
+    }
+
+    /**
+     * Same as search(), for callers that don't want to wait on the lookup's I/O.  Indexes
+     * that have nothing to wait for just answer right away.
+     */
+    default CompletableFuture<BandIds> searchAsync(String query) {
+        return CompletableFuture.completedFuture(search(query));
+    }
+
+    /**
+     * Looks up all the queries at once, returning the IDs for each distinct query (empty
+     * if not found), in the same order they were given.
+     */
+    Map<String, BandIds> searchBatch(Collection<String> queries);
+
+    /**
+     * Up to limit keys that start with the given prefix, in order, for type-ahead.
+     */
+    List<String> searchPrefix(String prefix, int limit);
+
+    /**
+     * The IDs of the band, or if it isn't there, of the closest band once both names are
+     * normalized (case, accents, punctuation), allowing for a few typos.
+     */
+    BandIds searchFuzzy(String query);
+
+    /**
+     * Up to limit keys matching the query that way, closest first.
+     */
+    List<String> findSimilar(String query, int limit);
+
     void add(String key, String value);
+
+    /**
+     * Replaces all the IDs of the band with the given one.
+     */
+    void update(String key, String value);
+
+    void delete(String key);
+    void flush();
     void onShutdown();
 }
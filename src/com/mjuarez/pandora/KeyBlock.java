@@ -0,0 +1,443 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A block of sorted records, in the compact format used by the sorted segments.
+ *
+ * Keys are front coded: each record only stores how many (UTF-8) bytes it shares with the
+ * previous key, and the rest of them, followed by its packed IDs.  Band names that sort
+ * next to each other share long prefixes, so that's most of the bytes of a plain record
+ * gone, along with the 2-byte length prefix of every writeUTF.  Every RESTART_INTERVAL
+ * records the key is stored whole (a restart point), and the offsets of the restart
+ * points go at the end of the block, so a lookup binary searches those and then decodes
+ * at most RESTART_INTERVAL records, instead of the whole block.
+ *
+ * The finished block can be compressed with Deflate (BEST_SPEED); it's a single byte flag
+ * in front of the block, so both kinds can live in the same segment.
+ *
+ * Stored layout: codec byte, raw length (int), then the (possibly compressed) raw block:
+ * records, restart offsets (ints), restart count (int).
+ */
+public class KeyBlock {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+
+    private static final int RESTART_INTERVAL = 16;
+    private static final int STORED_HEADER_BYTES = 5;
+
+    private final BlockOutputStream bytes;
+    private final DataOutputStream out;
+
+    private final List<String> keys = new ArrayList<String>();
+    private byte[] previousKey = new byte[0];
+    private int[] restarts = new int[8];
+    private int restartCount = 0;
+
+    public KeyBlock(int initialBytes) {
+        this.bytes = new BlockOutputStream(initialBytes);
+        this.out = new DataOutputStream(bytes);
+    }
+
+    /**
+     * Keys have to be added in order, and only once.
+     */
+    public void add(String key, BandIds ids) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int shared = 0;
+        if (keys.size() % RESTART_INTERVAL == 0) {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restartCount * 2);
+            }
+            restarts[restartCount++] = bytes.size();
+        } else {
+            int limit = Math.min(previousKey.length, keyBytes.length);
+            while (shared < limit && previousKey[shared] == keyBytes[shared]) {
+                shared++;
+            }
+        }
+
+        writeVarInt(out, shared);
+        writeVarInt(out, keyBytes.length - shared);
+        out.write(keyBytes, shared, keyBytes.length - shared);
+        ids.writeTo(out);
+
+        keys.add(key);
+        previousKey = keyBytes;
+    }
+
+    public int getRecordCount() {
+        return keys.size();
+    }
+
+    public String getKey(int record) {
+        return keys.get(record);
+    }
+
+    /**
+     * Size of the records so far, uncompressed.
+     */
+    public int getByteCount() {
+        return bytes.size();
+    }
+
+    /**
+     * Returns the block as stored in the segment, compressed or not.
+     */
+    public byte[] finish(boolean compress) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(bytes.size() + 4 * restartCount + 4);
+        raw.write(bytes.buffer(), 0, bytes.size());
+        DataOutputStream rawOut = new DataOutputStream(raw);
+        for (int i = 0; i < restartCount; i++) {
+            rawOut.writeInt(restarts[i]);
+        }
+        rawOut.writeInt(restartCount);
+        byte[] rawBytes = raw.toByteArray();
+
+        byte codec = RAW;
+        byte[] payload = rawBytes;
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(rawBytes);
+                deflater.finish();
+                byte[] compressed = new byte[rawBytes.length + 64];
+                int length = 0;
+                while (!deflater.finished() && length < compressed.length) {
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                // Not worth it if it barely shrinks, inflating isn't free.
+                if (deflater.finished() && length < rawBytes.length * 7 / 8) {
+                    codec = DEFLATE;
+                    payload = Arrays.copyOf(compressed, length);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        ByteArrayOutputStream stored = new ByteArrayOutputStream(STORED_HEADER_BYTES + payload.length);
+        DataOutputStream storedOut = new DataOutputStream(stored);
+        storedOut.writeByte(codec);
+        storedOut.writeInt(rawBytes.length);
+        storedOut.write(payload);
+        return stored.toByteArray();
+    }
+
+    public void reset() {
+        bytes.reset();
+        keys.clear();
+        previousKey = new byte[0];
+        restartCount = 0;
+    }
+
+    /**
+     * Returns the IDs stored for the key in the block, or null if it's not there.
+     */
+    public static BandIds find(byte[] stored, int offset, int length, String key) throws IOException {
+        return find(ByteBuffer.wrap(stored), offset, length, key, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same, reading the block in place, e.g. from the mapped segment, with the key already
+     * encoded to UTF-8.  Only a compressed block is copied (it has to be inflated), and none
+     * of the keys in it are decoded, they're compared byte by byte.
+     */
+    public static BandIds find(ByteBuffer segment, int offset, int length, String key, byte[] target)
+            throws IOException {
+        ByteBuffer raw = raw(segment, offset, length);
+        int position = locate(raw, key, target);
+        return position < 0 ? null : BandIds.readFrom(raw, position);
+    }
+
+    /**
+     * Same, but adds the IDs to the results instead.  Returns false if the key's not there.
+     */
+    public static boolean find(ByteBuffer segment, int offset, int length, String key, byte[] target,
+                               BandIdBuffer results) throws IOException {
+        ByteBuffer raw = raw(segment, offset, length);
+        int position = locate(raw, key, target);
+        if (position < 0) {
+            return false;
+        }
+        BandIds.readFrom(raw, position, results);
+        return true;
+    }
+
+    /**
+     * Position of the key's IDs in the raw block, or -1 if it's not there.  Binary searches
+     * the restart points (in String order, the order the blocks are written in), and then
+     * goes forward from the last one that's not after the key, keeping track of how many
+     * bytes of the target the current key starts with instead of putting every front coded
+     * key back together.
+     */
+    private static int locate(ByteBuffer raw, String key, byte[] target) throws IOException {
+        try {
+            int restartCount = raw.getInt(raw.limit() - 4);
+            int restartsStart = raw.limit() - 4 - 4 * restartCount;
+
+            // Last restart point whose key is <= the one we're looking for.
+            int low = 0;
+            int high = restartCount - 1;
+            int restart = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int position = raw.getInt(restartsStart + 4 * mid);
+                position += varIntLength(readVarInt(raw, position));
+                int keyLength = readVarInt(raw, position);
+                position += varIntLength(keyLength);
+                if (compareKey(raw, position, keyLength, key) <= 0) {
+                    restart = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (restart < 0) {
+                return -1;
+            }
+
+            int position = raw.getInt(restartsStart + 4 * restart);
+            int end = restart + 1 < restartCount ? raw.getInt(restartsStart + 4 * (restart + 1)) : restartsStart;
+            // Leading bytes the current key has in common with the target.
+            int matched = 0;
+            while (position < end) {
+                int shared = readVarInt(raw, position);
+                position += varIntLength(shared);
+                int unshared = readVarInt(raw, position);
+                position += varIntLength(unshared);
+                // Sharing more than that with the previous key means it differs from the
+                // target right where the previous one did.
+                if (shared <= matched) {
+                    matched = shared;
+                    while (matched < target.length && matched - shared < unshared
+                            && raw.get(position + matched - shared) == target[matched]) {
+                        matched++;
+                    }
+                    if (matched == target.length && shared + unshared == target.length) {
+                        return position + unshared;
+                    }
+                }
+                position += unshared;
+                position += BandIds.length(raw, position);
+            }
+            return -1;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt block", e);
+        }
+    }
+
+    /**
+     * Compares the UTF-8 key at the position with the String, the way String.compareTo()
+     * would compare it once decoded, without decoding it.
+     */
+    private static int compareKey(ByteBuffer raw, int position, int length, String key) {
+        int end = position + length;
+        int i = 0;
+        // Second half of a surrogate pair, from a 4-byte sequence.
+        char pending = 0;
+        while (position < end || pending != 0) {
+            char c;
+            if (pending != 0) {
+                c = pending;
+                pending = 0;
+            } else {
+                int b = raw.get(position++) & 0xff;
+                if (b < 0x80) {
+                    c = (char) b;
+                } else if (b < 0xe0) {
+                    c = (char) (((b & 0x1f) << 6) | (raw.get(position++) & 0x3f));
+                } else if (b < 0xf0) {
+                    c = (char) (((b & 0x0f) << 12) | ((raw.get(position++) & 0x3f) << 6) | (raw.get(position++) & 0x3f));
+                } else {
+                    int codePoint = ((b & 0x07) << 18) | ((raw.get(position++) & 0x3f) << 12)
+                            | ((raw.get(position++) & 0x3f) << 6) | (raw.get(position++) & 0x3f);
+                    c = Character.highSurrogate(codePoint);
+                    pending = Character.lowSurrogate(codePoint);
+                }
+            }
+            if (i == key.length()) {
+                return 1;
+            }
+            char k = key.charAt(i++);
+            if (c != k) {
+                return c - k;
+            }
+        }
+        return i - key.length();
+    }
+
+    /**
+     * Decodes every record in the block, in order, for scans.
+     */
+    public static void forEach(byte[] stored, int offset, int length, RecordVisitor visitor) throws IOException {
+        byte[] raw = decompress(stored, offset, length);
+        int restartCount = readInt(raw, raw.length - 4);
+        int recordsEnd = raw.length - 4 - 4 * restartCount;
+        ByteArrayInputStream stream = new ByteArrayInputStream(raw, 0, recordsEnd);
+        DataInputStream in = new DataInputStream(stream);
+        byte[] current = new byte[64];
+        while (stream.available() > 0) {
+            int shared = readVarInt(in);
+            int unshared = readVarInt(in);
+            if (shared + unshared > current.length) {
+                current = Arrays.copyOf(current, Math.max(shared + unshared, 2 * current.length));
+            }
+            in.readFully(current, shared, unshared);
+            visitor.visit(new String(current, 0, shared + unshared, StandardCharsets.UTF_8), BandIds.readFrom(in));
+        }
+    }
+
+    public interface RecordVisitor {
+        void visit(String key, BandIds ids) throws IOException;
+    }
+
+    /**
+     * The raw block, as a view of the segment if it's not compressed, or inflated into a new
+     * array if it is.
+     */
+    private static ByteBuffer raw(ByteBuffer segment, int offset, int length) throws IOException {
+        if (length < STORED_HEADER_BYTES) {
+            throw new IOException("Truncated block");
+        }
+        byte codec = segment.get(offset);
+        int rawLength = segment.getInt(offset + 1);
+        if (codec == RAW) {
+            if (rawLength != length - STORED_HEADER_BYTES) {
+                throw new IOException("Corrupt block, " + rawLength + " bytes expected");
+            }
+            return segment.slice(offset + STORED_HEADER_BYTES, rawLength);
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Unknown block codec " + codec);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            // A view, setInput() moves its position.
+            inflater.setInput(segment.slice(offset + STORED_HEADER_BYTES, length - STORED_HEADER_BYTES));
+            return ByteBuffer.wrap(inflate(inflater, rawLength));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] stored, int offset, int length) throws IOException {
+        if (length < STORED_HEADER_BYTES) {
+            throw new IOException("Truncated block");
+        }
+        byte codec = stored[offset];
+        int rawLength = readInt(stored, offset + 1);
+        if (codec == RAW) {
+            if (rawLength != length - STORED_HEADER_BYTES) {
+                throw new IOException("Corrupt block, " + rawLength + " bytes expected");
+            }
+            return Arrays.copyOfRange(stored, offset + STORED_HEADER_BYTES, offset + length);
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Unknown block codec " + codec);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, offset + STORED_HEADER_BYTES, length - STORED_HEADER_BYTES);
+            return inflate(inflater, rawLength);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] inflate(Inflater inflater, int rawLength) throws IOException {
+        try {
+            byte[] raw = new byte[rawLength];
+            int inflated = 0;
+            while (inflated < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != rawLength) {
+                throw new IOException("Corrupt block, inflated " + inflated + " of " + rawLength + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer, int position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get(position++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * ByteArrayOutputStream that gives access to its buffer, same as in RecordBlock.
+     */
+    private static class BlockOutputStream extends ByteArrayOutputStream {
+        BlockOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
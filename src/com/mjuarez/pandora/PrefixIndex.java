@@ -0,0 +1,624 @@
+package com.mjuarez.pandora;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Sorted dictionary of all the band names, memory mapped, for prefix (type-ahead) searches.
+ * The segments can't answer those, since keys are spread over them by hash.
+ *
+ * Keys are front coded, same as in the KeyBlocks: each one only stores how many UTF-8 bytes
+ * it shares with the previous key, and the rest of them.  They go in blocks of
+ * KEYS_PER_BLOCK, the first key of each block stored whole, and a table with the offset of
+ * every block at the end of the file.  A search binary searches the blocks by their first
+ * key, comparing the mapped bytes in place, and then decodes forward from there, so it's
+ * ~log2(blocks) comparisons plus the keys it returns, whatever the number of names.
+ *
+ * An FST would be smaller, since it shares suffixes too, but band names mostly share
+ * prefixes, and this is a lot simpler to build in a single pass over sorted keys.
+ *
+ * Keys are in code point order (see KEY_ORDER), which is the order of their UTF-8 bytes.
+ *
+ * Layout: magic (int), version (int), key count (long), block count (int), offset of the
+ * block table (long), the blocks, and the block table (ints).
+ */
+public class PrefixIndex {
+    private static final int MAGIC = 0x50465849;  // "PFXI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 28;
+    private static final int KEYS_PER_BLOCK = 32;
+
+    /**
+     * Code point order, which is also the order of the UTF-8 bytes.  String.compareTo() is
+     * UTF-16 order instead, which puts the supplementary characters (surrogate pairs) before
+     * U+E000..U+FFFF.
+     */
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String left, String right) {
+            int length = Math.min(left.length(), right.length());
+            for (int i = 0; i < length; i++) {
+                char a = left.charAt(i);
+                char b = right.charAt(i);
+                if (a != b) {
+                    if (Character.isSurrogate(a) != Character.isSurrogate(b)) {
+                        return Character.isSurrogate(a) ? 1 : -1;
+                    }
+                    return a - b;
+                }
+            }
+            return left.length() - right.length();
+        }
+    };
+
+    /**
+     * Up to limit keys that start with the prefix, out of keys already sorted in KEY_ORDER,
+     * for the searchers that keep all their names in memory anyway.  Same as seek(): a
+     * binary search to the first key that can match, and then forward from there.
+     */
+    static List<String> search(String[] sortedKeys, String prefix, int limit) {
+        List<String> results = new ArrayList<String>(Math.max(0, Math.min(limit, 64)));
+        int position = Arrays.binarySearch(sortedKeys, prefix, KEY_ORDER);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        while (results.size() < limit && position < sortedKeys.length && sortedKeys[position].startsWith(prefix)) {
+            results.add(sortedKeys[position++]);
+        }
+        return results;
+    }
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final long keyCount;
+    private final int blockCount;
+    private final int tableOffset;
+
+    private PrefixIndex(File file, ByteBuffer buffer, long keyCount, int blockCount, int tableOffset) {
+        this.file = file;
+        this.buffer = buffer;
+        this.keyCount = keyCount;
+        this.blockCount = blockCount;
+        this.tableOffset = tableOffset;
+    }
+
+    public static PrefixIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid prefix index " + file + " (" + length + " bytes)");
+            }
+            // The mapping stays valid once the file is closed, or even replaced.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a prefix index, or an unknown version of it: " + file);
+            }
+            long keyCount = buffer.getLong(8);
+            int blockCount = buffer.getInt(16);
+            long tableOffset = buffer.getLong(20);
+            if (tableOffset + 4L * blockCount != length || blockCount != (keyCount + KEYS_PER_BLOCK - 1) / KEYS_PER_BLOCK) {
+                throw new IOException("Prefix index " + file + " is truncated or corrupt");
+            }
+            return new PrefixIndex(file, buffer, keyCount, blockCount, (int) tableOffset);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long size() {
+        return keyCount;
+    }
+
+    /**
+     * Returns a cursor over all the keys that start with the prefix, in order.
+     */
+    public Cursor seek(String prefix) {
+        byte[] target = prefix.getBytes(StandardCharsets.UTF_8);
+        // The last block that starts before the prefix, the first match can't be before it.
+        int low = 0;
+        int high = blockCount - 1;
+        int block = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (compareFirstKey(middle, target) < 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return new Cursor(target, block);
+    }
+
+    public boolean contains(String key) {
+        return key.equals(seek(key).next());
+    }
+
+    /**
+     * The key at the given position in the dictionary, from 0 to size() - 1.  Decodes at
+     * most a block's worth of keys to get there.
+     */
+    public String get(long ordinal) {
+        if (ordinal < 0 || ordinal >= keyCount) {
+            throw new IndexOutOfBoundsException("No key " + ordinal + " in a prefix index of " + keyCount);
+        }
+        Cursor cursor = new Cursor(new byte[0], (int) (ordinal / KEYS_PER_BLOCK));
+        for (long i = ordinal % KEYS_PER_BLOCK; i > 0; i--) {
+            cursor.loaded = cursor.advance();
+        }
+        return cursor.next();
+    }
+
+    private int compareFirstKey(int block, byte[] target) {
+        // The first key of a block shares nothing, so it's a 0 and then its length.
+        int position = blockOffset(block) + 1;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(position++);
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        int common = Math.min(length, target.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(position + i) & 0xff) - (target[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - target.length;
+    }
+
+    private int blockOffset(int block) {
+        return buffer.getInt(tableOffset + 4 * block);
+    }
+
+    /**
+     * Walks the keys from where seek() left it, decoding them into a reused buffer, and
+     * stops at the first one that doesn't start with the prefix.  Not thread safe, but it
+     * only reads the mapped buffer with absolute gets, so any number of them can be open.
+     */
+    public class Cursor {
+        private final byte[] prefix;
+        private byte[] key = new byte[64];
+        private int keyLength;
+        private long nextKey;
+        private int position;
+        private boolean loaded;
+
+        private Cursor(byte[] prefix, int block) {
+            this.prefix = prefix;
+            this.nextKey = (long) block * KEYS_PER_BLOCK;
+            while ((loaded = advance()) && compare(key, keyLength, prefix, prefix.length) < 0) {
+                // Skipping the keys of the block that sort before the prefix.
+            }
+        }
+
+        /**
+         * The next key with the prefix, or null once there are no more.
+         */
+        public String next() {
+            if (!loaded || !hasPrefix()) {
+                loaded = false;
+                return null;
+            }
+            String result = new String(key, 0, keyLength, StandardCharsets.UTF_8);
+            loaded = advance();
+            return result;
+        }
+
+        private boolean hasPrefix() {
+            if (keyLength < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (key[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean advance() {
+            if (nextKey >= keyCount) {
+                return false;
+            }
+            if (nextKey % KEYS_PER_BLOCK == 0) {
+                position = blockOffset((int) (nextKey / KEYS_PER_BLOCK));
+            }
+            int shared = readVarInt();
+            int unshared = readVarInt();
+            if (shared + unshared > key.length) {
+                key = Arrays.copyOf(key, Math.max(2 * key.length, shared + unshared));
+            }
+            buffer.get(position, key, shared, unshared);
+            position += unshared;
+            keyLength = shared + unshared;
+            nextKey++;
+            return true;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    /**
+     * Writes a new dictionary with the keys of the old one (if any) and the additions, in
+     * KEY_ORDER, minus the removals, and opens it.
+     */
+    static PrefixIndex merge(PrefixIndex old, List<String> additions, Set<String> removals, File file) throws IOException {
+        List<String> sorted = new ArrayList<String>(additions);
+        Collections.sort(sorted, KEY_ORDER);
+        Iterator<String> added = sorted.iterator();
+        Cursor cursor = old != null ? old.seek("") : null;
+
+        Writer writer = new Writer(file);
+        try {
+            String fromOld = cursor != null ? cursor.next() : null;
+            String fromAdded = added.hasNext() ? added.next() : null;
+            while (fromOld != null || fromAdded != null) {
+                String key;
+                if (fromAdded == null || (fromOld != null && KEY_ORDER.compare(fromOld, fromAdded) <= 0)) {
+                    key = fromOld;
+                    fromOld = cursor.next();
+                } else {
+                    key = fromAdded;
+                    fromAdded = added.hasNext() ? added.next() : null;
+                }
+                if (!removals.contains(key)) {
+                    writer.add(key);
+                }
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    private static int compare(byte[] left, int leftLength, byte[] right, int rightLength) {
+        int common = Math.min(leftLength, rightLength);
+        for (int i = 0; i < common; i++) {
+            int difference = (left[i] & 0xff) - (right[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return leftLength - rightLength;
+    }
+
+    /**
+     * Writes a dictionary out of keys given in KEY_ORDER, skipping repeated ones.  It goes to
+     * a temp file that's renamed over the target by finish(), so the old dictionary can keep
+     * being read until then (and after, through its mapping).
+     */
+    static class Writer implements KeySink {
+        private final File file;
+        private final File tempFile;
+        private final DataOutputStream out;
+
+        private byte[] previous = new byte[0];
+        private long keyCount = 0;
+        private long position = HEADER_BYTES;
+        private int[] blockOffsets = new int[1024];
+        private int blockCount = 0;
+
+        Writer(File file) throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+            // Patched in by finish().
+            out.write(new byte[HEADER_BYTES]);
+        }
+
+        @Override
+        public void add(String key) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyCount > 0) {
+                int order = compare(keyBytes, keyBytes.length, previous, previous.length);
+                if (order == 0) {
+                    return;
+                }
+                if (order < 0) {
+                    throw new IllegalArgumentException("Key [" + key + "] added out of order");
+                }
+            }
+
+            int shared = 0;
+            if (keyCount % KEYS_PER_BLOCK == 0) {
+                if (blockCount == blockOffsets.length) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, 2 * blockCount);
+                }
+                blockOffsets[blockCount++] = (int) position;
+            } else {
+                int limit = Math.min(previous.length, keyBytes.length);
+                while (shared < limit && previous[shared] == keyBytes[shared]) {
+                    shared++;
+                }
+            }
+
+            position += writeVarInt(shared) + writeVarInt(keyBytes.length - shared) + keyBytes.length - shared;
+            out.write(keyBytes, shared, keyBytes.length - shared);
+            if (position + 4L * blockCount > Integer.MAX_VALUE) {
+                throw new IOException("Prefix index " + file + " would be over 2GB");
+            }
+            previous = keyBytes;
+            keyCount++;
+        }
+
+        PrefixIndex finish() throws IOException {
+            try {
+                for (int i = 0; i < blockCount; i++) {
+                    out.writeInt(blockOffsets[i]);
+                }
+            } finally {
+                out.close();
+            }
+
+            RandomAccessFile header = new RandomAccessFile(tempFile, "rw");
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeLong(keyCount);
+                header.writeInt(blockCount);
+                header.writeLong(position);
+            } finally {
+                header.close();
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return open(file);
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Going away anyway.
+            }
+            tempFile.delete();
+        }
+
+        private int writeVarInt(int value) throws IOException {
+            int bytes = 1;
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+                bytes++;
+            }
+            out.writeByte(value);
+            return bytes;
+        }
+    }
+
+    /**
+     * Builds a dictionary out of keys given in any order, with repeats, within a memory
+     * budget: keys are buffered and sorted, spilled to sorted runs in the temp directory when
+     * the buffer is full, and the runs merged into the dictionary at the end, same as the
+     * SortedSegmentBuilder does with the records.  Not thread safe.
+     */
+    static class Builder {
+        private static final int MAX_FAN_IN = 64;
+        private static final int RUN_BUFFER_BYTES = 1 << 16;
+
+        // Rough per-key overhead of the String, its array, and its slot in the list.
+        private static final int KEY_OVERHEAD_BYTES = 64;
+
+        private final File file;
+        private final File tempDirectory;
+        private final long memoryBudget;
+
+        private final List<String> keys = new ArrayList<String>();
+        private long bufferedBytes = 0;
+        private final List<File> runs = new ArrayList<File>();
+        private int runsCreated = 0;
+
+        Builder(File file, File tempDirectory, long memoryBudget) {
+            this.file = file;
+            this.tempDirectory = tempDirectory;
+            this.memoryBudget = memoryBudget;
+        }
+
+        void add(String key) throws IOException {
+            keys.add(key);
+            bufferedBytes += 2L * key.length() + KEY_OVERHEAD_BYTES;
+            if (bufferedBytes >= memoryBudget) {
+                runs.add(spill());
+            }
+        }
+
+        PrefixIndex finish() throws IOException {
+            try {
+                Writer writer = new Writer(file);
+                try {
+                    if (runs.isEmpty()) {
+                        // It all fit in memory, no need to go through the disk.
+                        Collections.sort(keys, KEY_ORDER);
+                        for (String key : keys) {
+                            writer.add(key);
+                        }
+                        keys.clear();
+                    } else {
+                        if (!keys.isEmpty()) {
+                            runs.add(spill());
+                        }
+                        while (runs.size() > MAX_FAN_IN) {
+                            List<File> batch = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+                            runs.subList(0, MAX_FAN_IN).clear();
+                            runs.add(mergeIntoRun(batch));
+                        }
+                        mergeRuns(runs, writer);
+                    }
+                    return writer.finish();
+                } catch (IOException e) {
+                    writer.abort();
+                    throw e;
+                }
+            } finally {
+                for (File run : runs) {
+                    run.delete();
+                }
+                runs.clear();
+            }
+        }
+
+        private File spill() throws IOException {
+            if (!tempDirectory.exists()) {
+                tempDirectory.mkdirs();
+            }
+            Collections.sort(keys, KEY_ORDER);
+            File run = newRunFile();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_BYTES));
+            try {
+                String previous = null;
+                for (String key : keys) {
+                    if (!key.equals(previous)) {
+                        writeKey(out, key);
+                    }
+                    previous = key;
+                }
+                out.writeBoolean(false);
+            } finally {
+                out.close();
+            }
+            keys.clear();
+            bufferedBytes = 0;
+            return run;
+        }
+
+        private File mergeIntoRun(List<File> batch) throws IOException {
+            File run = newRunFile();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_BYTES));
+            try {
+                mergeRuns(batch, new KeySink() {
+                    @Override
+                    public void add(String key) throws IOException {
+                        writeKey(out, key);
+                    }
+                });
+                out.writeBoolean(false);
+            } finally {
+                out.close();
+            }
+            for (File file : batch) {
+                file.delete();
+            }
+            return run;
+        }
+
+        private void mergeRuns(List<File> batch, KeySink sink) throws IOException {
+            PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, batch.size()));
+            try {
+                for (File run : batch) {
+                    RunReader reader = new RunReader(run);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+                String previous = null;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    if (!reader.current.equals(previous)) {
+                        sink.add(reader.current);
+                        previous = reader.current;
+                    }
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            } finally {
+                for (RunReader reader : queue) {
+                    reader.close();
+                }
+            }
+        }
+
+        // A flag before each key, so the end of the run doesn't need a count up front.
+        private static void writeKey(DataOutputStream out, String key) throws IOException {
+            out.writeBoolean(true);
+            out.writeUTF(key);
+        }
+
+        private File newRunFile() {
+            return new File(tempDirectory, String.format("prefix%06d.tmp", runsCreated++));
+        }
+    }
+
+    private interface KeySink {
+        void add(String key) throws IOException;
+    }
+
+    /**
+     * Sequential reader over a run file, ordered by its current key so it can sit in the
+     * merge queue.  Closes itself once it runs out of keys.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        String current;
+
+        RunReader(File run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), Builder.RUN_BUFFER_BYTES));
+        }
+
+        boolean advance() throws IOException {
+            if (!in.readBoolean()) {
+                close();
+                current = null;
+                return false;
+            }
+            current = in.readUTF();
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log("Error while closing prefix run file", e);
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return KEY_ORDER.compare(current, other.current);
+        }
+    }
+}
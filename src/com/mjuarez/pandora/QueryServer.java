@@ -0,0 +1,594 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Network front end for any Searcher, so it can be queried by many clients at once instead
+ * of one line at a time from the SearchConsole.
+ *
+ * Two protocols are served:
+ * - A line-based TCP protocol: each line sent is a query (the band name, UTF-8), and each
+ *   answer is a single line, "OK <count>" followed by the IDs, all tab-separated, or
+ *   "ERR <message>".  Clients can pipeline as many queries as they want without waiting
+ *   for the answers: they're processed in order, and the answers are only flushed once
+ *   there are no more queries already buffered, so a batch of queries costs a handful of
+ *   writes instead of one per query.
+ * - A minimal HTTP endpoint, GET /search?q=<band>, bound to localhost only, that returns
+ *   the IDs as text/plain, one per line.  GET /prefix?q=<prefix>&limit=<n> returns up to n
+ *   (10 by default) band names starting with the prefix instead, for type-ahead, and
+ *   GET /fuzzy?q=<band> does a Searcher.searchFuzzy().
+ *
+ * Every connection (and HTTP exchange) gets its own thread, a virtual one when the JVM has
+ * them (Java 21+), otherwise from a plain cached pool.  The number of open connections and
+ * of queries running at once are both limited, so a flood of clients queues up instead of
+ * thrashing the disk; a query that can't get a slot within the queue timeout is answered
+ * with an error (or a 503).
+ *
+ * Configured with system properties, like the rest of the searchers:
+ * -Dpandora.tcpPort / -Dpandora.httpPort (at least one is needed to run in server mode),
+ * -Dpandora.bindAddress (TCP only, 127.0.0.1 by default), -Dpandora.maxConnections,
+ * -Dpandora.maxConcurrentQueries, -Dpandora.queueTimeoutMs and -Dpandora.drainTimeoutMs.
+ */
+public class QueryServer implements Runnable {
+    private static final int SOCKET_BUFFER_BYTES = 1 << 16;
+    static final int MAX_QUERY_CHARS = 4096;
+    private static final int DEFAULT_PREFIX_LIMIT = 10;
+    private static final int MAX_PREFIX_LIMIT = 1000;
+
+    // What the HTTP endpoints run.
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int FUZZY = 2;
+
+    private final Searcher searcher;
+    private final int tcpPort;
+    private final int httpPort;
+    private final String bindAddress;
+    private final int maxConnections;
+    private final int maxConcurrentQueries;
+    private final long queueTimeoutMillis;
+    private final long drainTimeoutMillis;
+
+    private final Semaphore connectionPermits;
+    private final Semaphore queryPermits;
+    private final ExecutorService connectionExecutor;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+
+    private volatile boolean running = false;
+    private ServerSocket serverSocket;
+    private HttpServer httpServer;
+
+    public QueryServer(Searcher searcher, int tcpPort, int httpPort, String bindAddress,
+                       int maxConnections, int maxConcurrentQueries, long queueTimeoutMillis, long drainTimeoutMillis) {
+        this.searcher = searcher;
+        this.tcpPort = tcpPort;
+        this.httpPort = httpPort;
+        this.bindAddress = bindAddress;
+        this.maxConnections = maxConnections;
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.queryPermits = new Semaphore(maxConcurrentQueries, true);
+        this.connectionExecutor = newConnectionExecutor();
+    }
+
+    /**
+     * Returns a server for the searcher configured from the system properties, or null if
+     * neither -Dpandora.tcpPort nor -Dpandora.httpPort is set (console mode).
+     */
+    public static QueryServer fromSystemProperties(Searcher searcher) {
+        int tcpPort = Integer.getInteger("pandora.tcpPort", -1);
+        int httpPort = Integer.getInteger("pandora.httpPort", -1);
+        if (tcpPort < 0 && httpPort < 0) {
+            return null;
+        }
+        return new QueryServer(searcher, tcpPort, httpPort,
+                System.getProperty("pandora.bindAddress", "127.0.0.1"),
+                Integer.getInteger("pandora.maxConnections", 1_000),
+                Integer.getInteger("pandora.maxConcurrentQueries", 4 * Runtime.getRuntime().availableProcessors()),
+                Long.getLong("pandora.queueTimeoutMs", 1_000L),
+                Long.getLong("pandora.drainTimeoutMs", 5_000L));
+    }
+
+    /**
+     * Runs the searcher the way every main does: in server mode if -Dpandora.tcpPort or
+     * -Dpandora.httpPort are set, from the SearchConsole otherwise, on a thread of its own.
+     * On shutdown the server is drained first, so the queries in flight finish before the
+     * searcher goes away.
+     */
+    public static void serve(final Searcher searcher) {
+        final ExecutorService taskExecutor = Executors.newSingleThreadExecutor();
+        final QueryServer server = fromSystemProperties(searcher);
+        taskExecutor.execute(server != null ? server : new SearchConsole(searcher));
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if (server != null) {
+                    server.shutdown();
+                }
+                try {
+                    log("Shutting down executor with background tasks");
+                    taskExecutor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    log("Interrupted while awaiting termination", e);
+                }
+                searcher.onShutdown();
+            }
+        });
+    }
+
+    /**
+     * Opens the listening sockets.  Ports set to 0 get a random free port, see getTcpPort()
+     * and getHttpPort(); negative ports are not opened at all.
+     */
+    public synchronized void start() throws IOException {
+        if (tcpPort >= 0) {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), tcpPort), maxConnections);
+        }
+        if (httpPort >= 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            httpServer.createContext("/search", new SearchHandler(EXACT));
+            httpServer.createContext("/prefix", new SearchHandler(PREFIX));
+            httpServer.createContext("/fuzzy", new SearchHandler(FUZZY));
+            httpServer.setExecutor(connectionExecutor);
+            httpServer.start();
+        }
+        running = true;
+        log("QueryServer listening on tcp port " + getTcpPort() + ", http port " + getHttpPort() + " ("
+                + maxConnections + " max connections, " + maxConcurrentQueries + " max concurrent queries)");
+    }
+
+    public int getTcpPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    public int getHttpPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : -1;
+    }
+
+    /**
+     * Accept loop for the TCP protocol.  Returns once the server is shut down.
+     */
+    @Override
+    public void run() {
+        if (!running) {
+            try {
+                start();
+            } catch (IOException e) {
+                log("Unable to start QueryServer", e);
+                return;
+            }
+        }
+        if (serverSocket == null) {
+            return;
+        }
+
+        while (running) {
+            try {
+                // Stop accepting when at the limit, new clients wait in the listen backlog.
+                connectionPermits.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                final Socket socket = serverSocket.accept();
+                openSockets.add(socket);
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serveConnection(socket);
+                        } finally {
+                            openSockets.remove(socket);
+                            connectionPermits.release();
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                connectionPermits.release();
+                if (running) {
+                    log("Error while accepting connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Graceful drain: stops accepting connections, lets the queries that are already
+     * running (and whatever the clients already pipelined) finish for up to the drain
+     * timeout, and then closes whatever connections are left.  The searcher itself is left
+     * alone, it's up to the caller to shut it down afterwards.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        log("Draining QueryServer...");
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log("Error while closing server socket", e);
+            }
+            // At maxConnections the accept loop is waiting for a permit, not in accept(), so
+            // closing the socket doesn't wake it up.  This one lets it see it's not running.
+            connectionPermits.release();
+        }
+        if (httpServer != null) {
+            // New exchanges get a 503 from now on, wait for the ones in progress ourselves,
+            // since HttpServer.stop() can sit through its whole delay even when idle.
+            while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            httpServer.stop(0);
+        }
+
+        // Idle connections are blocked reading the next query, wake them up so they exit.
+        for (Socket socket : openSockets) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // Already closed by the client.
+            }
+        }
+
+        connectionExecutor.shutdown();
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            if (!connectionExecutor.awaitTermination(Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+                log("Drain timed out, closing " + openSockets.size() + " connections");
+                for (Socket socket : openSockets) {
+                    closeQuietly(socket);
+                }
+                connectionExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            log("Interrupted while draining QueryServer", e);
+            connectionExecutor.shutdownNow();
+        }
+        log("QueryServer stopped");
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            LineReader in = new LineReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), SOCKET_BUFFER_BYTES);
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), SOCKET_BUFFER_BYTES);
+
+            // Reused for every query on the connection, so answering one allocates next to nothing.
+            BandIdBuffer results = new BandIdBuffer();
+            StringBuilder query = new StringBuilder(256);
+            StringBuilder line = new StringBuilder(256);
+            char[] chars = new char[256];
+            while (in.readLine(query)) {
+                chars = writeResponse(out, query.toString(), results, line, chars);
+                // Only flush once the client has no more pipelined queries waiting.
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // Client went away, or the connection was closed at the end of a drain.
+        } catch (IOException e) {
+            log("Error while serving connection from " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Writes the answer to the query, going through the line builder and its char array
+     * (returned, in case it had to grow) instead of a String per ID.
+     */
+    private char[] writeResponse(Writer out, String query, BandIdBuffer results, StringBuilder line, char[] chars)
+            throws IOException {
+        if (query.length() > MAX_QUERY_CHARS) {
+            out.write("ERR query too long\n");
+            return chars;
+        }
+        try {
+            runQuery(query, results);
+        } catch (QueryRejectedException e) {
+            out.write("ERR " + e.getMessage() + "\n");
+            return chars;
+        }
+        line.setLength(0);
+        line.append("OK ").append(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            line.append('\t');
+            results.appendTo(line, i);
+        }
+        line.append('\n');
+        if (chars.length < line.length()) {
+            chars = new char[Math.max(line.length(), 2 * chars.length)];
+        }
+        line.getChars(0, line.length(), chars, 0);
+        out.write(chars, 0, line.length());
+        return chars;
+    }
+
+    private void runQuery(String query, BandIdBuffer results) throws QueryRejectedException {
+        acquireQueryPermit();
+        try {
+            searcher.search(query, results);
+        } catch (RuntimeException e) {
+            throw rejection(query, e);
+        } finally {
+            queryPermits.release();
+        }
+    }
+
+    /**
+     * Runs the query once there's a free query slot, or gives up after the queue timeout.
+     * The limit is only for prefix searches.
+     */
+    private List<String> runQuery(int mode, String query, int limit) throws QueryRejectedException {
+        acquireQueryPermit();
+        try {
+            if (mode == PREFIX) {
+                return searcher.searchPrefix(query, limit);
+            }
+            return mode == FUZZY ? searcher.searchFuzzy(query) : searcher.search(query);
+        } catch (RuntimeException e) {
+            throw rejection(query, e);
+        } finally {
+            queryPermits.release();
+        }
+    }
+
+    private void acquireQueryPermit() throws QueryRejectedException {
+        try {
+            if (!queryPermits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new QueryRejectedException("server busy");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryRejectedException("server shutting down");
+        }
+    }
+
+    /**
+     * What the client is told when the searcher throws: the message itself for the expected
+     * cases (unsupported search, shard down), and only "internal error" for anything else,
+     * which is logged.
+     */
+    private static QueryRejectedException rejection(String query, RuntimeException e) {
+        if (e instanceof UnsupportedOperationException || e instanceof ShardRouter.ShardUnavailableException) {
+            return new QueryRejectedException(e.getMessage());
+        }
+        log("Error while searching for [" + query + "]", e);
+        return new QueryRejectedException("internal error");
+    }
+
+    private class SearchHandler implements HttpHandler {
+        private final int mode;
+
+        SearchHandler(int mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            activeExchanges.incrementAndGet();
+            try {
+                if (!running) {
+                    sendText(exchange, 503, "server shutting down\n");
+                    return;
+                }
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    sendText(exchange, 405, "Only GET is supported\n");
+                    return;
+                }
+                String query = getQueryParameter(exchange.getRequestURI().getRawQuery(), "q");
+                if (query == null || query.length() > MAX_QUERY_CHARS) {
+                    sendText(exchange, 400, "Missing or invalid q parameter\n");
+                    return;
+                }
+
+                int limit = 0;
+                if (mode == PREFIX) {
+                    String limitParameter = getQueryParameter(exchange.getRequestURI().getRawQuery(), "limit");
+                    try {
+                        limit = limitParameter != null ? Integer.parseInt(limitParameter) : DEFAULT_PREFIX_LIMIT;
+                    } catch (NumberFormatException e) {
+                        limit = -1;
+                    }
+                    if (limit < 0 || limit > MAX_PREFIX_LIMIT) {
+                        sendText(exchange, 400, "Invalid limit parameter, it goes up to " + MAX_PREFIX_LIMIT + "\n");
+                        return;
+                    }
+                }
+
+                List<String> results;
+                try {
+                    results = runQuery(mode, query, limit);
+                } catch (QueryRejectedException e) {
+                    sendText(exchange, 503, e.getMessage() + "\n");
+                    return;
+                }
+                StringBuilder body = new StringBuilder();
+                for (String result : results) {
+                    body.append(result).append('\n');
+                }
+                // No completions is still a valid answer for a prefix.
+                sendText(exchange, results.isEmpty() && mode != PREFIX ? 404 : 200, body.toString());
+            } finally {
+                exchange.close();
+                activeExchanges.decrementAndGet();
+            }
+        }
+
+        private void sendText(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        }
+
+        private String getQueryParameter(String rawQuery, String name) {
+            if (rawQuery == null) {
+                return null;
+            }
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+                    return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class QueryRejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        QueryRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads the lines of the TCP protocol, like BufferedReader.readLine(), but only keeps the
+     * first MAX_QUERY_CHARS + 1 chars of a line and skips the rest.  That's enough to tell the
+     * query is too long, and a client sending a line that never ends can't make the
+     * connection buffer all of it.
+     */
+    private static class LineReader {
+        private final Reader in;
+        private final char[] buffer;
+        private int position = 0;
+        private int limit = 0;
+
+        LineReader(Reader in, int bufferChars) {
+            this.in = in;
+            this.buffer = new char[bufferChars];
+        }
+
+        /**
+         * Reads the next line into the builder, without its line terminator (\n or \r\n).
+         * Returns false at the end of the stream.
+         */
+        boolean readLine(StringBuilder line) throws IOException {
+            line.setLength(0);
+            boolean started = false;
+            while (true) {
+                if (position == limit) {
+                    position = 0;
+                    limit = Math.max(0, in.read(buffer, 0, buffer.length));
+                    if (limit == 0) {
+                        if (!started) {
+                            return false;
+                        }
+                        break;
+                    }
+                }
+                started = true;
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                int kept = Math.min(position - start, MAX_QUERY_CHARS + 1 - line.length());
+                if (kept > 0) {
+                    line.append(buffer, start, kept);
+                }
+                if (position < limit) {
+                    // Skip the \n.
+                    position++;
+                    break;
+                }
+            }
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            return true;
+        }
+
+        /**
+         * True if there's more to read without blocking.
+         */
+        boolean ready() throws IOException {
+            return position < limit || in.ready();
+        }
+    }
+
+    /**
+     * One virtual thread per task when running on Java 21+, looked up by reflection so this
+     * still builds and runs on older JVMs, where it falls back to a cached pool of daemon threads.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            log("Virtual threads not available, using a platform thread pool for connections");
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pandora-connection-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do with it.
+        }
+    }
+}
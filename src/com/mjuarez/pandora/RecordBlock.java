@@ -0,0 +1,185 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of records, already encoded the way they are stored in a Segment, waiting to
+ * be appended to it in a single write.  Keeps the key, fingerprint and relative offset of
+ * every record, so the bloom filter and the SegmentHeader can be updated once the block
+ * has been written and its base offset is known.
+ */
+public class RecordBlock {
+    private final BlockOutputStream bytes;
+    private final DataOutputStream out;
+
+    private final List<String> keys = new ArrayList<String>();
+    private long[] fingerprints = new long[16];
+    private int[] offsets = new int[16];
+
+    public RecordBlock(int initialBytes) {
+        this.bytes = new BlockOutputStream(initialBytes);
+        this.out = new DataOutputStream(bytes);
+    }
+
+    /**
+     * Records are the key, written with writeUTF, followed by its packed IDs.
+     */
+    public void add(String key, BandIds ids) throws IOException {
+        int count = keys.size();
+        if (count == fingerprints.length) {
+            fingerprints = Arrays.copyOf(fingerprints, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        fingerprints[count] = Utils.hash64(key);
+        offsets[count] = bytes.size();
+        keys.add(key);
+
+        out.writeUTF(key);
+        ids.writeTo(out);
+    }
+
+    public int getRecordCount() {
+        return keys.size();
+    }
+
+    public String getKey(int record) {
+        return keys.get(record);
+    }
+
+    public long getFingerprint(int record) {
+        return fingerprints[record];
+    }
+
+    public int getOffset(int record) {
+        return offsets[record];
+    }
+
+    public byte[] getBytes() {
+        return bytes.buffer();
+    }
+
+    public int getByteCount() {
+        return bytes.size();
+    }
+
+    public void reset() {
+        bytes.reset();
+        keys.clear();
+    }
+
+    /**
+     * The key the way add() writes it, its (modified UTF-8) length and bytes, to compare
+     * records against in place, see keyMatches().  Null if the key is too long to have
+     * been written at all.
+     */
+    public static byte[] encodeKey(String key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : c > 0x07ff ? 3 : 2;
+        }
+        if (length > 0xffff) {
+            return null;
+        }
+        byte[] encoded = new byte[2 + length];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        int position = 2;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                encoded[position++] = (byte) c;
+            } else if (c > 0x07ff) {
+                encoded[position++] = (byte) (0xe0 | (c >> 12));
+                encoded[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                encoded[position++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                encoded[position++] = (byte) (0xc0 | (c >> 6));
+                encoded[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * True if the record at the offset of the (mapped) segment has the encoded key, compared
+     * byte by byte without decoding it.
+     */
+    public static boolean keyMatches(ByteBuffer segment, int offset, byte[] encodedKey) {
+        if (offset + encodedKey.length > segment.limit()) {
+            return false;
+        }
+        for (int i = 0; i < encodedKey.length; i++) {
+            if (segment.get(offset + i) != encodedKey[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The IDs of the record at the offset, once keyMatches() said it's the one.
+     */
+    public static BandIds readIds(ByteBuffer segment, int offset, byte[] encodedKey) throws IOException {
+        return BandIds.readFrom(segment, offset + encodedKey.length);
+    }
+
+    /**
+     * True if the key's plain UTF-8 bytes are also what add() writes after its length, i.e.
+     * it has no NULs or supplementary characters (modified UTF-8 encodes those differently)
+     * and isn't too long to be written, so records can be compared with them as they are,
+     * see utf8KeyMatches().  A '?' may be an unpaired surrogate that getBytes() replaced, so
+     * those keys aren't taken as plain either.
+     */
+    public static boolean isPlainUtf8(byte[] utf8) {
+        if (utf8.length > 0xffff) {
+            return false;
+        }
+        for (byte b : utf8) {
+            if (b == 0 || b == '?' || (b & 0xf8) == 0xf0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as keyMatches(), with the key's plain UTF-8 bytes, once isPlainUtf8() said they
+     * can be used.
+     */
+    public static boolean utf8KeyMatches(ByteBuffer segment, int offset, byte[] utf8) {
+        if (offset + 2 + utf8.length > segment.limit()
+                || (segment.getShort(offset) & 0xffff) != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; i++) {
+            if (segment.get(offset + 2 + i) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ByteArrayOutputStream that gives access to its buffer, to avoid copying the whole
+     * block just to write it out.
+     */
+    private static class BlockOutputStream extends ByteArrayOutputStream {
+        BlockOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -1,8 +1,73 @@
 package com.mjuarez.pandora;
 
+import com.mjuarez.pandora.utils.BandIdBuffer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface Searcher {
     List<String> search(String query);
+
+    /**
+     * Same as search(), but the IDs are added to the caller's buffer (cleared first) instead
+     * of coming back as a List of Strings, and the count is returned.  With a buffer that's
+     * reused for every query, a lookup doesn't allocate anything per ID, which is what the
+     * QueryServer uses.  Searchers that keep their IDs packed override it; this one just
+     * packs whatever search() returns.
+     */
+    default int search(String query, BandIdBuffer results) {
+        results.clear();
+        for (String id : search(query)) {
+            results.add(id);
+        }
+        return results.size();
+    }
+
+    /**
+     * Same as search(), without waiting on its I/O, for callers that keep lots of queries
+     * going at once.  Searchers that don't do any I/O (or can't do it asynchronously) just
+     * answer right away.
+     */
+    default CompletableFuture<List<String>> searchAsync(String query) {
+        return CompletableFuture.completedFuture(search(query));
+    }
+
+    /**
+     * Results for each distinct query, in the order they were given.  Searchers that can
+     * do better than one search() per query override this.
+     */
+    default Map<String, List<String>> searchBatch(Collection<String> queries) {
+        Map<String, List<String>> results = new LinkedHashMap<String, List<String>>();
+        for (String query : queries) {
+            if (!results.containsKey(query)) {
+                results.put(query, search(query));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Up to limit band names that start with the given prefix, for type-ahead, in code point
+     * order.  Searchers that have no sorted dictionary of their names (like the
+     * StaticCatalogSearcher, which only keeps a hash of them) don't find any: an empty list,
+     * the same answer as for a prefix nothing starts with.
+     */
+    default List<String> searchPrefix(String prefix, int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * The IDs of the band, or if there's no such band, of the closest one once the names are
+     * normalized (case, accents, punctuation), allowing for a few typos.  Searchers without
+     * a fuzzy index just do an exact search.
+     */
+    default List<String> searchFuzzy(String query) {
+        return search(query);
+    }
+
     void onShutdown();
 }
@@ -1,21 +1,182 @@
 package com.mjuarez.pandora;
 
+import com.mjuarez.pandora.utils.Utils;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Segment holding the file reference for the disk index.
+ *
+ * Writes go through a channel that is opened on the first append and kept open until
+ * the Segment is closed, instead of opening the file again for every record.  All the
+ * writes to a Segment come from its SegmentWriter, but appends are still synchronized
+ * with close(), which flush() calls from other threads.
+ *
+ * Reads can go through a read-only memory mapping of the file instead, see map().
+ *
+ * The checksum of the file for the catalog manifest is kept along with the length it was
+ * computed for, so flushing a catalog only reads the segments that were appended to since.
  */
 public class Segment {
     private final File file;
+    private FileChannel appendChannel;
+    // Kept up to date by append(), so map() doesn't have to ask the file system.
+    private volatile long length;
+    private volatile MappedByteBuffer mapping;
+    private final Object mapLock = new Object();
+    private long checksum;
+    private long checksumLength = -1;
+    private final Object checksumLock = new Object();
 
     public Segment(File file) {
         this.file = file;
+        this.length = file.length();
     }
 
     public File getFile() {
         return file;
     }
 
+    /**
+     * Appends the bytes to the end of the file, and returns the offset they were written at.
+     */
+    public synchronized long append(byte[] bytes, int offset, int length) throws IOException {
+        openForAppend();
+        long position = appendChannel.position();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        while (buffer.hasRemaining()) {
+            appendChannel.write(buffer);
+        }
+        this.length = position + length;
+        return position;
+    }
+
+    /**
+     * Appends all the buffers with a single gathering write, and returns the offset the
+     * first one was written at; the rest follow it back to back.
+     */
+    public synchronized long append(ByteBuffer[] buffers) throws IOException {
+        openForAppend();
+        long position = appendChannel.position();
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        long written = remaining;
+        while (remaining > 0) {
+            remaining -= appendChannel.write(buffers);
+        }
+        this.length = position + written;
+        return position;
+    }
+
+    /**
+     * The whole file, memory-mapped read-only, for reading records in place with absolute
+     * gets (so the buffer can be shared between threads).  It's mapped again, bigger, if
+     * something was appended since; records are only looked up once they're appended, so
+     * they're always in it.  Returns null if the file is too big for a single mapping.
+     *
+     * There's no unmapping: a mapping lives until it's garbage collected, and keeps the file
+     * it was made from, so it stays good to read after a compaction swaps the Segment out.
+     */
+    public ByteBuffer map() throws IOException {
+        long currentLength = length;
+        MappedByteBuffer current = mapping;
+        if (current != null && current.capacity() >= currentLength) {
+            return current;
+        }
+        if (currentLength > Integer.MAX_VALUE) {
+            return null;
+        }
+        synchronized (mapLock) {
+            current = mapping;
+            if (current == null || current.capacity() < currentLength) {
+                RandomAccessFile mapped = new RandomAccessFile(file, "r");
+                try {
+                    current = mapped.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, currentLength);
+                } finally {
+                    mapped.close();
+                }
+                mapping = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Reads the whole file into the page cache ahead of the lookups, through its mapping,
+     * and returns how many bytes that was (0 if it's too big to map).
+     */
+    public long prefetch() throws IOException {
+        ByteBuffer mapped = map();
+        if (mapped == null) {
+            return 0;
+        }
+        ((MappedByteBuffer) mapped).load();
+        return mapped.capacity();
+    }
+
+    /**
+     * The CRC32 of the whole file.  Only read from disk again if something was appended
+     * since it was last computed (or given to setChecksum()), segments are never modified
+     * in place, a rewrite is a new Segment.
+     */
+    public long checksum() throws IOException {
+        synchronized (checksumLock) {
+            long currentLength = length;
+            if (checksumLength != currentLength) {
+                checksum = Utils.crc32(file);
+                // If an append landed while it was being read, it's just read again next time.
+                checksumLength = currentLength;
+            }
+            return checksum;
+        }
+    }
+
+    /**
+     * The checksum the file is known to have at the given length, e.g. from the manifest
+     * it was opened with, so it doesn't have to be read for the next one.
+     */
+    public void setChecksum(long length, long checksum) {
+        synchronized (checksumLock) {
+            this.checksum = checksum;
+            this.checksumLength = length;
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk, keeping the file open.
+     */
+    public synchronized void sync() throws IOException {
+        if (appendChannel != null) {
+            appendChannel.force(false);
+        }
+    }
+
+    /**
+     * Makes sure everything appended so far is on disk, and releases the file handle.
+     * The next append will open the file again.
+     */
+    public synchronized void close() throws IOException {
+        if (appendChannel != null) {
+            appendChannel.force(false);
+            appendChannel.close();
+            appendChannel = null;
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        if (appendChannel == null) {
+            appendChannel = new RandomAccessFile(file, "rw").getChannel();
+            appendChannel.position(appendChannel.size());
+        }
+    }
+
     @Override
     public String toString() {
         return "Segment{" +
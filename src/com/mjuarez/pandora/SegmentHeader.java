@@ -1,8 +1,486 @@
 package com.mjuarez.pandora;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
- * Index for the actual Segment
+ * Index for the actual Segment.
+ *
+ * Holds the 64-bit fingerprint of every key stored in the Segment, sorted, along with
+ * the offset of the record within the .dat file.  A lookup is a binary search over the
+ * fingerprints, and then a direct seek to each of the matching offsets, instead of having
+ * to read the whole Segment.  Since the fingerprints are just hashes, the caller still has
+ * to compare the key stored in the record, but with 64 bits collisions are very rare.
+ *
+ * New entries are buffered unsorted, and only become visible to lookups when the
+ * writer publish()es them, so readers always see whole batches of records, never one
+ * whose bytes may not have been written yet.  The published view is immutable: a stack
+ * of sorted "levels", oldest first, swapped in with a single volatile write, so lookups
+ * never take a lock and never wait for a writer.  Publishing sorts the new entries into
+ * a level of their own, and merges it with the levels below while they're not at least
+ * twice as big, so there are only ever O(log n) levels and each entry is copied O(log n)
+ * times, however small the batches are.
+ *
+ * Segments made of KeyBlocks don't have an entry per record, just one per block: the
+ * block's first key, where it is and how many records it holds, kept sorted, so finding
+ * the only block a key can be in is a binary search over a few strings.  The blocks always
+ * come first in the segment, records appended to it later on are plain records, in the
+ * fingerprint levels as usual.
+ *
+ * On disk (.idx file) the layout is: magic, version, entry count, then all fingerprints,
+ * then all offsets, and then the block count and the blocks (offset, length, record count
+ * and first key).  Keeping the two arrays apart lets us bulk-copy each one out of a
+ * memory-mapped buffer when loading.  Version 1 files (no blocks) are still read.
  */
 public class SegmentHeader {
+    private static final int MAGIC = 0x50494458;  // "PIDX"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 12;
+    private static final long[] NO_OFFSETS = new long[0];
+    private static final Level[] NO_LEVELS = new Level[0];
+
+    private final File file;
+
+    private volatile Level[] levels = NO_LEVELS;
+    private volatile BlockIndex blocks = BlockIndex.NONE;
+
+    // Only touched by the writer (under the header's lock).
+    private long[] pendingFingerprints = new long[16];
+    private long[] pendingOffsets = new long[16];
+    private int pendingCount = 0;
+    private final List<Block> pendingBlocks = new ArrayList<Block>();
+
+    public SegmentHeader(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Adds an entry, which won't be visible to lookups until the next publish().
+     */
+    public synchronized void add(long fingerprint, long offset) {
+        if (pendingCount == pendingFingerprints.length) {
+            pendingFingerprints = Arrays.copyOf(pendingFingerprints, pendingCount * 2);
+            pendingOffsets = Arrays.copyOf(pendingOffsets, pendingCount * 2);
+        }
+        pendingFingerprints[pendingCount] = fingerprint;
+        pendingOffsets[pendingCount] = offset;
+        pendingCount++;
+    }
+
+    /**
+     * Returns the offsets of all records whose key has the given fingerprint, in the
+     * order they were written to the Segment.  Lock-free, and only sees published entries.
+     */
+    public long[] lookup(long fingerprint) {
+        Level[] snapshot = levels;
+        long[] result = NO_OFFSETS;
+        // Levels go oldest first, and offsets only grow, so this keeps the write order.
+        for (Level level : snapshot) {
+            int first = lowerBound(level.fingerprints, level.fingerprints.length, fingerprint);
+            int last = first;
+            while (last < level.fingerprints.length && level.fingerprints[last] == fingerprint) {
+                last++;
+            }
+            if (first == last) {
+                continue;
+            }
+            int previous = result.length;
+            result = Arrays.copyOf(result, previous + last - first);
+            System.arraycopy(level.offsets, first, result, previous, last - first);
+        }
+        return result;
+    }
+
+    /**
+     * Adds a block of records, which won't be visible to lookups until the next publish().
+     * Blocks have to be added in key order, starting at the beginning of the segment, and
+     * before any plain record.
+     */
+    public synchronized void addBlock(String firstKey, long offset, int length, int recordCount) {
+        if (pendingCount > 0 || levels.length > 0) {
+            throw new IllegalStateException("Blocks have to go before any plain record in " + file);
+        }
+        pendingBlocks.add(new Block(firstKey, offset, length, recordCount));
+    }
+
+    /**
+     * The published blocks, which never change: a new block makes a new BlockIndex.
+     */
+    public BlockIndex getBlocks() {
+        return blocks;
+    }
+
+    public synchronized int size() {
+        int size = pendingCount + blocks.recordCount;
+        for (Block block : pendingBlocks) {
+            size += block.recordCount;
+        }
+        for (Level level : levels) {
+            size += level.fingerprints.length;
+        }
+        return size;
+    }
+
+    public synchronized void clear() {
+        levels = NO_LEVELS;
+        blocks = BlockIndex.NONE;
+        pendingCount = 0;
+        pendingBlocks.clear();
+    }
+
+    /**
+     * Makes everything added so far visible to lookups, in one go.
+     */
+    public synchronized void publish() {
+        if (!pendingBlocks.isEmpty()) {
+            blocks = blocks.with(pendingBlocks);
+            pendingBlocks.clear();
+        }
+        if (pendingCount == 0) {
+            return;
+        }
+        long[] newFingerprints = Arrays.copyOf(pendingFingerprints, pendingCount);
+        long[] newOffsets = Arrays.copyOf(pendingOffsets, pendingCount);
+        sortPairs(newFingerprints, newOffsets, 0, pendingCount - 1);
+        Level level = new Level(newFingerprints, newOffsets);
+        pendingCount = 0;
+
+        Level[] current = levels;
+        int count = current.length;
+        while (count > 0 && current[count - 1].fingerprints.length < 2 * level.fingerprints.length) {
+            level = merge(current[count - 1], level);
+            count--;
+        }
+        Level[] published = Arrays.copyOf(current, count + 1);
+        published[count] = level;
+        levels = published;
+    }
+
+    public synchronized void save() throws IOException {
+        publish();
+        Level all = compact();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(all.fingerprints.length);
+            for (long fingerprint : all.fingerprints) {
+                out.writeLong(fingerprint);
+            }
+            for (long offset : all.offsets) {
+                out.writeLong(offset);
+            }
+            Block[] published = blocks.blocks;
+            out.writeInt(published.length);
+            for (Block block : published) {
+                out.writeLong(block.offset);
+                out.writeInt(block.length);
+                out.writeInt(block.recordCount);
+                out.writeUTF(block.firstKey);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Maps the .idx file and copies both arrays out of it.  An empty file is treated as
+     * an empty header, anything else that doesn't look like one of ours is an error.
+     */
+    public synchronized void load() throws IOException {
+        clear();
+        if (file.length() == 0) {
+            return;
+        }
+
+        RandomAccessFile roFile = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = roFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, roFile.length());
+            int version;
+            if (buffer.getInt() != MAGIC || ((version = buffer.getInt()) != 1 && version != VERSION)) {
+                throw new IOException("Not a valid segment header: " + file);
+            }
+            int count = buffer.getInt();
+            long arraysEnd = HEADER_BYTES + 16L * count;
+            if (count < 0 || (version == 1 ? arraysEnd != roFile.length() : arraysEnd + 4 > roFile.length())) {
+                throw new IOException("Truncated segment header: " + file);
+            }
+
+            long[] loadedFingerprints = new long[count];
+            long[] loadedOffsets = new long[count];
+            buffer.asLongBuffer().get(loadedFingerprints);
+            ((ByteBuffer) buffer.position(HEADER_BYTES + 8 * count)).asLongBuffer().get(loadedOffsets);
+
+            if (version > 1) {
+                buffer.position((int) arraysEnd);
+                DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+                int blockCount = in.readInt();
+                List<Block> loadedBlocks = new ArrayList<Block>(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    int recordCount = in.readInt();
+                    loadedBlocks.add(new Block(in.readUTF(), offset, length, recordCount));
+                }
+                blocks = BlockIndex.NONE.with(loadedBlocks);
+            }
+            levels = count == 0 ? NO_LEVELS : new Level[]{new Level(loadedFingerprints, loadedOffsets)};
+        } finally {
+            roFile.close();
+        }
+    }
+
+    /**
+     * Merges all the levels into one, and publishes that.
+     */
+    private Level compact() {
+        Level[] current = levels;
+        if (current.length == 0) {
+            return new Level(NO_OFFSETS, NO_OFFSETS);
+        }
+        Level all = current[current.length - 1];
+        for (int i = current.length - 2; i >= 0; i--) {
+            all = merge(current[i], all);
+        }
+        levels = new Level[]{all};
+        return all;
+    }
+
+    /**
+     * Merges two sorted levels.  Entries with the same fingerprint keep their write order
+     * (older level first), so multiple IDs for a band come back in the order they were added.
+     */
+    private static Level merge(Level older, Level newer) {
+        long[] fingerprints = older.fingerprints;
+        long[] offsets = older.offsets;
+        long[] newFingerprints = newer.fingerprints;
+        long[] newOffsets = newer.offsets;
+
+        int total = fingerprints.length + newFingerprints.length;
+        long[] mergedFingerprints = new long[total];
+        long[] mergedOffsets = new long[total];
+        int i = 0, j = 0, k = 0;
+        while (i < fingerprints.length && j < newFingerprints.length) {
+            if (fingerprints[i] < newFingerprints[j]
+                    || (fingerprints[i] == newFingerprints[j] && offsets[i] <= newOffsets[j])) {
+                mergedFingerprints[k] = fingerprints[i];
+                mergedOffsets[k++] = offsets[i++];
+            } else {
+                mergedFingerprints[k] = newFingerprints[j];
+                mergedOffsets[k++] = newOffsets[j++];
+            }
+        }
+        while (i < fingerprints.length) {
+            mergedFingerprints[k] = fingerprints[i];
+            mergedOffsets[k++] = offsets[i++];
+        }
+        while (j < newFingerprints.length) {
+            mergedFingerprints[k] = newFingerprints[j];
+            mergedOffsets[k++] = newOffsets[j++];
+        }
+        return new Level(mergedFingerprints, mergedOffsets);
+    }
+
+    private static int lowerBound(long[] values, int length, long value) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Quicksort over two parallel arrays, ordered by (key, value).  Avoids boxing every
+     * entry just to be able to use Arrays.sort with a comparator.
+     */
+    private static void sortPairs(long[] keys, long[] values, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            long pivotKey = keys[mid];
+            long pivotValue = values[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(keys[i], values[i], pivotKey, pivotValue) < 0) {
+                    i++;
+                }
+                while (compare(keys[j], values[j], pivotKey, pivotValue) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // Recurse into the smaller half, loop on the larger one to bound the stack.
+            if (j - low < high - i) {
+                sortPairs(keys, values, low, j);
+                low = i;
+            } else {
+                sortPairs(keys, values, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(keys[j - 1], values[j - 1], keys[j], values[j]) > 0; j--) {
+                swap(keys, values, j, j - 1);
+            }
+        }
+    }
+
+    private static int compare(long key1, long value1, long key2, long value2) {
+        if (key1 != key2) {
+            return key1 < key2 ? -1 : 1;
+        }
+        return Long.compare(value1, value2);
+    }
+
+    private static void swap(long[] keys, long[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * Immutable, sorted by (fingerprint, offset).
+     */
+    private static final class Level {
+        final long[] fingerprints;
+        final long[] offsets;
+
+        Level(long[] fingerprints, long[] offsets) {
+            this.fingerprints = fingerprints;
+            this.offsets = offsets;
+        }
+    }
+
+    /**
+     * Immutable, sorted by first key.  The blocks are back to back from the start of the
+     * segment, so the end of the last one is where the plain records start.
+     */
+    static final class BlockIndex {
+        static final BlockIndex NONE = new BlockIndex(new Block[0]);
+
+        final Block[] blocks;
+        final int recordCount;
+
+        private BlockIndex(Block[] blocks) {
+            this.blocks = blocks;
+            int total = 0;
+            for (Block block : blocks) {
+                total += block.recordCount;
+            }
+            this.recordCount = total;
+        }
+
+        BlockIndex with(List<Block> added) {
+            Block[] newBlocks = Arrays.copyOf(blocks, blocks.length + added.size());
+            for (int i = 0; i < added.size(); i++) {
+                newBlocks[blocks.length + i] = added.get(i);
+            }
+            return new BlockIndex(newBlocks);
+        }
+
+        boolean isEmpty() {
+            return blocks.length == 0;
+        }
+
+        /**
+         * The only block the key can be in (the last one starting at or before it), or null.
+         */
+        Block find(String key) {
+            int low = 0;
+            int high = blocks.length - 1;
+            Block found = null;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (blocks[mid].firstKey.compareTo(key) <= 0) {
+                    found = blocks[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Where the plain records start.
+         */
+        long end() {
+            return blocks.length == 0 ? 0 : blocks[blocks.length - 1].offset + blocks[blocks.length - 1].length;
+        }
+    }
+
+    static final class Block {
+        final String firstKey;
+        final long offset;
+        final int length;
+        final int recordCount;
+
+        Block(String firstKey, long offset, int length, int recordCount) {
+            this.firstKey = firstKey;
+            this.offset = offset;
+            this.length = length;
+            this.recordCount = recordCount;
+        }
+    }
+
+    /**
+     * Reads the rest of a (mapped) buffer as a stream, for the variable-length part of the file.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
 
+    @Override
+    public String toString() {
+        return "SegmentHeader{" +
+                "file=" + file +
+                '}';
+    }
 }
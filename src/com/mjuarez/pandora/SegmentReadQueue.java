@@ -0,0 +1,72 @@
+package com.mjuarez.pandora;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounds the asynchronous reads of one segment, see DiskIndex.searchAsync().
+ *
+ * Reads are queued here and run on a pool shared by all the segments, like the writes in
+ * SegmentWriter, but up to maxInFlight at a time per segment instead of one: enough to keep
+ * the device's queues busy, without a burst of misses on a single (hot, or slow) segment
+ * taking every thread of the pool while reads for the rest of the segments wait.  Nothing
+ * blocks while waiting for its turn, the read just stays queued until another one finishes.
+ */
+public class SegmentReadQueue {
+    private final Executor executor;
+    private final int maxInFlight;
+
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    private int inFlight = 0;
+
+    public SegmentReadQueue(Executor executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Runs the read on the pool as soon as the segment has room for it.
+     */
+    public void submit(Runnable read) {
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                waiting.add(read);
+                return;
+            }
+            inFlight++;
+        }
+        start(read);
+    }
+
+    private void start(final Runnable read) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.run();
+                } finally {
+                    finished();
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, whoever is waiting for the read still gets it.
+            task.run();
+        }
+    }
+
+    private void finished() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        start(next);
+    }
+}
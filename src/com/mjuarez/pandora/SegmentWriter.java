@@ -0,0 +1,111 @@
+package com.mjuarez.pandora;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The single writer of one segment.
+ *
+ * Writers don't touch the segment themselves, they queue their RecordBlock here and get a
+ * future back.  At most one drain task per segment runs at a time, on a pool shared by all
+ * the segments, so each segment sees one write at a time without needing a thread of its
+ * own, and different segments are written in parallel.  A drain takes everything queued so
+ * far and hands it to the sink as one batch: one gathering write, and at most one fsync
+ * for all of it (group commit), no matter how many writers were waiting.
+ *
+ * The sink only publishes the new records to readers once the whole batch is written.
+ */
+public class SegmentWriter {
+    // Don't let a single drain hog a pool thread forever under constant load.
+    private static final int MAX_BATCH_BYTES = 4 << 20;
+
+    public interface Sink {
+        void write(int segmentNumber, List<RecordBlock> blocks, boolean sync) throws IOException;
+    }
+
+    private final int segmentNumber;
+    private final Executor executor;
+    private final Sink sink;
+
+    private final ConcurrentLinkedQueue<PendingWrite> queue = new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public SegmentWriter(int segmentNumber, Executor executor, Sink sink) {
+        this.segmentNumber = segmentNumber;
+        this.executor = executor;
+        this.sink = sink;
+    }
+
+    /**
+     * Queues the block for writing.  The block belongs to the writer until the future
+     * completes, which is once it's written (and synced, if asked to) and visible to readers.
+     */
+    public CompletableFuture<Void> submit(RecordBlock block, boolean sync) {
+        PendingWrite write = new PendingWrite(block, sync);
+        queue.add(write);
+        schedule();
+        return write.done;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        List<RecordBlock> blocks = new ArrayList<RecordBlock>();
+        boolean sync = false;
+        int bytes = 0;
+        PendingWrite write;
+        while (bytes < MAX_BATCH_BYTES && (write = queue.poll()) != null) {
+            batch.add(write);
+            blocks.add(write.block);
+            sync |= write.sync;
+            bytes += write.block.getByteCount();
+        }
+
+        if (!batch.isEmpty()) {
+            try {
+                sink.write(segmentNumber, blocks, sync);
+                for (PendingWrite done : batch) {
+                    done.done.complete(null);
+                }
+            } catch (Throwable e) {
+                for (PendingWrite failed : batch) {
+                    failed.done.completeExceptionally(e);
+                }
+            }
+        }
+
+        // Something may have been queued after the last poll but before this.
+        scheduled.set(false);
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private static class PendingWrite {
+        final RecordBlock block;
+        final boolean sync;
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        PendingWrite(RecordBlock block, boolean sync) {
+            this.block = block;
+            this.sync = sync;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.Utils;
+
+/**
+ * Which part of the bands a searcher process holds, when the catalog is split across
+ * several of them behind a ShardRouter: shard "i/n" is the i-th (from 0) of n.  Set with
+ * -Dpandora.shard=i/n, the whole catalog (0/1) by default.
+ *
+ * Bands are assigned by jump consistent hashing of the 64-bit FNV hash of the name, so
+ * adding a shard only takes bands away from the others, it never moves them between the
+ * existing ones.  The DiskIndex picks its segments from a differently seeded hash, so every
+ * shard still spreads its bands over all of its segments.
+ */
+public final class Shard {
+    public static final Shard ALL = new Shard(0, 1);
+
+    private final int number;
+    private final int count;
+
+    public Shard(int number, int count) {
+        if (count < 1 || number < 0 || number >= count) {
+            throw new IllegalArgumentException("Invalid shard " + number + "/" + count);
+        }
+        this.number = number;
+        this.count = count;
+    }
+
+    /**
+     * Parses "i/n".
+     */
+    public static Shard parse(String spec) {
+        int slash = spec.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Invalid shard [" + spec + "], expected <number>/<count>");
+        }
+        try {
+            return new Shard(Integer.parseInt(spec.substring(0, slash).trim()),
+                    Integer.parseInt(spec.substring(slash + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shard [" + spec + "], expected <number>/<count>");
+        }
+    }
+
+    public static Shard fromSystemProperties() {
+        String spec = System.getProperty("pandora.shard");
+        return spec != null ? parse(spec) : ALL;
+    }
+
+    /**
+     * The shard (from 0) the band goes to, out of count.
+     */
+    public static int shardOf(String key, int count) {
+        return count == 1 ? 0 : Utils.jumpHash(Utils.hash64(key), count);
+    }
+
+    public boolean owns(String key) {
+        return shardOf(key, count) == number;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Shard && ((Shard) other).number == number && ((Shard) other).count == count;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * number + count;
+    }
+
+    @Override
+    public String toString() {
+        return number + "/" + count;
+    }
+}
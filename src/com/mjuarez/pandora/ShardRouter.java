@@ -0,0 +1,675 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.LatencyHistogram;
+import com.mjuarez.pandora.utils.Metrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Router tier for a catalog split across several searcher processes.  Each of them is a
+ * DiskIndexSearcher started with -Dpandora.shard=i/n (and its own -Dpandora.indexDir, when
+ * they share a machine) serving the TCP line protocol of the QueryServer, and the router
+ * sends every query to the processes of the shard its band belongs to (see Shard).  It's a
+ * Searcher like any other, so it's served by a QueryServer (or the console) itself, and
+ * capacity grows by adding shards, availability by adding replicas to them.
+ *
+ * The shard map is a text file with one line per shard, in order, listing the host:port of
+ * each of its replicas separated by spaces.  Blank lines and lines starting with # are
+ * skipped.
+ *
+ * Batches are split by shard and sent to all the shards at once, pipelined on a single
+ * connection each, so a batch takes about as long as its slowest shard, not the sum of them.
+ * Only a window of queries is written ahead of their answers, small enough to always fit in
+ * the socket buffers: a whole big batch at once would fill them up both ways, and leave the
+ * router and the searcher each blocked writing to the other.
+ *
+ * The replicas of a shard take turns.  When the one asked doesn't answer within the hedge
+ * delay, the same request goes to the next one as well (a "hedged" request), and whichever
+ * answers first wins, so a single slow process (GC pause, cold cache) doesn't show up in the
+ * tail latency, for the price of a few percent more requests.  The delay is the 95th
+ * percentile of the replicas' answers over the last second or so, unless
+ * -Dpandora.hedgeDelayMs is set.  A replica that can't be reached is skipped for
+ * -Dpandora.replicaRetryMs, and the request goes to the next one right away.  If no replica
+ * of the shard answers within -Dpandora.routerTimeoutMs, the query fails with a
+ * ShardUnavailableException.
+ *
+ * Only exact searches are routed, the line protocol doesn't do prefix or fuzzy ones.
+ *
+ * Request counts and latencies are registered over JMX as com.mjuarez.pandora:type=ShardRouter.
+ */
+public class ShardRouter implements Searcher {
+    private static final int SOCKET_BUFFER_BYTES = 1 << 16;
+    // Queries written on a connection before reading their answers, see Replica.search().
+    private static final int PIPELINE_QUERIES = 128;
+    private static final int PIPELINE_CHARS = 8 << 10;
+
+    private static final long DEFAULT_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long HEDGE_DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_HEDGE_SAMPLES = 100;
+    private static final double HEDGE_PERCENTILE = 95;
+
+    private final List<List<Replica>> shards;
+    private final long timeoutMillis;
+    private final long fixedHedgeDelayNanos;
+    private final long replicaRetryNanos;
+    private final int maxIdleConnections;
+    private final ExecutorService executor;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final Metrics metrics = new Metrics("ShardRouter");
+    private final LongAdder requests = metrics.counter("requests");
+    private final LongAdder hedges = metrics.counter("hedges");
+    private final LongAdder hedgeWins = metrics.counter("hedgeWins");
+    private final LongAdder replicaFailures = metrics.counter("replicaFailures");
+    private final LongAdder shardFailures = metrics.counter("shardFailures");
+    private final LatencyHistogram requestLatency = metrics.histogram("requestLatency");
+
+    // What single replicas take, only since the last refresh of the hedge delay.
+    private final LatencyHistogram recentLatency = new LatencyHistogram();
+    private volatile long hedgeDelayNanos = DEFAULT_HEDGE_DELAY_NANOS;
+    private volatile long hedgeDelayRefreshed = System.nanoTime();
+
+    /**
+     * The addresses of the replicas of each shard, in shard order.  A negative hedge delay
+     * means it's worked out from the latencies.
+     */
+    public ShardRouter(List<List<InetSocketAddress>> shardMap, long timeoutMillis, long hedgeDelayMillis,
+                       long replicaRetryMillis, int maxIdleConnections) {
+        if (shardMap.isEmpty()) {
+            throw new IllegalArgumentException("The shard map has no shards");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.fixedHedgeDelayNanos = hedgeDelayMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis);
+        this.replicaRetryNanos = TimeUnit.MILLISECONDS.toNanos(replicaRetryMillis);
+        this.maxIdleConnections = maxIdleConnections;
+
+        this.shards = new ArrayList<List<Replica>>(shardMap.size());
+        for (int i = 0; i < shardMap.size(); i++) {
+            if (shardMap.get(i).isEmpty()) {
+                throw new IllegalArgumentException("Shard " + i + " has no replicas");
+            }
+            List<Replica> replicas = new ArrayList<Replica>();
+            for (InetSocketAddress address : shardMap.get(i)) {
+                replicas.add(new Replica(address));
+            }
+            shards.add(replicas);
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pandora-router-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        metrics.register();
+        metrics.startDumping(Long.getLong("pandora.metricsDumpSeconds", 0));
+        log("ShardRouter routing to " + shards.size() + " shards: " + shards);
+    }
+
+    /**
+     * A router for the shard map file, configured from -Dpandora.routerTimeoutMs,
+     * -Dpandora.hedgeDelayMs, -Dpandora.replicaRetryMs and -Dpandora.routerIdleConnections.
+     */
+    public static ShardRouter fromSystemProperties(File shardMapFile) throws IOException {
+        return new ShardRouter(readShardMap(shardMapFile),
+                Long.getLong("pandora.routerTimeoutMs", 1_000L),
+                Long.getLong("pandora.hedgeDelayMs", -1L),
+                Long.getLong("pandora.replicaRetryMs", 5_000L),
+                Integer.getInteger("pandora.routerIdleConnections", 16));
+    }
+
+    public static List<List<InetSocketAddress>> readShardMap(File file) throws IOException {
+        List<List<InetSocketAddress>> shardMap = new ArrayList<List<InetSocketAddress>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<InetSocketAddress> replicas = new ArrayList<InetSocketAddress>();
+                for (String replica : line.split("\\s+")) {
+                    int colon = replica.lastIndexOf(':');
+                    try {
+                        replicas.add(InetSocketAddress.createUnresolved(replica.substring(0, colon),
+                                Integer.parseInt(replica.substring(colon + 1))));
+                    } catch (RuntimeException e) {
+                        throw new IOException("Invalid replica address [" + replica + "] in " + file
+                                + ", expected host:port");
+                    }
+                }
+                shardMap.add(replicas);
+            }
+        } finally {
+            reader.close();
+        }
+        return shardMap;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public List<String> search(String query) {
+        if (!isRoutable(query)) {
+            return Collections.emptyList();
+        }
+        int shard = Shard.shardOf(query, shards.size());
+        return searchShard(shard, Collections.singletonList(query)).get(0);
+    }
+
+    /**
+     * Splits the queries by shard, and asks all the shards at once.
+     */
+    @Override
+    public Map<String, List<String>> searchBatch(Collection<String> queries) {
+        Map<String, List<String>> results = new LinkedHashMap<String, List<String>>();
+        final List<List<String>> queriesByShard = new ArrayList<List<String>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            queriesByShard.add(new ArrayList<String>());
+        }
+        for (String query : queries) {
+            if (results.containsKey(query)) {
+                continue;
+            }
+            // Placeholder, so the results keep the order of the queries.
+            results.put(query, Collections.<String>emptyList());
+            if (isRoutable(query)) {
+                queriesByShard.get(Shard.shardOf(query, shards.size())).add(query);
+            }
+        }
+
+        Map<Integer, Future<List<List<String>>>> answers = new LinkedHashMap<Integer, Future<List<List<String>>>>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (queriesByShard.get(i).isEmpty()) {
+                continue;
+            }
+            final int shard = i;
+            answers.put(shard, executor.submit(new Callable<List<List<String>>>() {
+                @Override
+                public List<List<String>> call() {
+                    return searchShard(shard, queriesByShard.get(shard));
+                }
+            }));
+        }
+        for (Map.Entry<Integer, Future<List<List<String>>>> entry : answers.entrySet()) {
+            List<String> shardQueries = queriesByShard.get(entry.getKey());
+            List<List<String>> shardResults = getAnswer(entry.getValue());
+            for (int i = 0; i < shardQueries.size(); i++) {
+                results.put(shardQueries.get(i), shardResults.get(i));
+            }
+        }
+        return results;
+    }
+
+    private static List<List<String>> getAnswer(Future<List<List<String>>> answer) {
+        try {
+            return answer.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ShardUnavailableException("Batch failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ShardUnavailableException("Interrupted while waiting for the shards", e);
+        }
+    }
+
+    /**
+     * Sends the queries to the replicas of the shard, hedging and failing over as needed, and
+     * returns the first complete answer, one list of IDs per query.
+     */
+    private List<List<String>> searchShard(int shard, final List<String> queries) {
+        requests.increment();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Replica> replicas = getReplicaOrder(shard);
+
+        CompletionService<List<List<String>>> completion = new ExecutorCompletionService<List<List<String>>>(executor);
+        Map<Future<List<List<String>>>, Request> pending = new HashMap<Future<List<List<String>>>, Request>();
+        Set<Future<List<List<String>>>> hedged = new HashSet<Future<List<List<String>>>>();
+        submit(completion, pending, new Request(replicas.get(0), queries));
+        int next = 1;
+        Throwable failure = null;
+
+        try {
+            while (!pending.isEmpty()) {
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    break;
+                }
+                long wait = deadline - now;
+                if (next < replicas.size()) {
+                    wait = Math.min(wait, getHedgeDelay());
+                }
+
+                Future<List<List<String>>> done = completion.poll(wait, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (next < replicas.size() && System.nanoTime() - deadline < 0) {
+                        // Taking too long, ask another replica as well.
+                        hedges.increment();
+                        hedged.add(submit(completion, pending, new Request(replicas.get(next), queries)));
+                        next++;
+                    }
+                    continue;
+                }
+
+                Replica replica = pending.remove(done).replica;
+                try {
+                    List<List<String>> answer = done.get();
+                    if (hedged.contains(done)) {
+                        hedgeWins.increment();
+                    }
+                    requestLatency.record(System.nanoTime() - start);
+                    return answer;
+                } catch (ExecutionException e) {
+                    replicaFailures.increment();
+                    failure = e.getCause();
+                    log("Replica " + replica + " of shard " + shard + " failed", e);
+                    if (next < replicas.size()) {
+                        submit(completion, pending, new Request(replicas.get(next), queries));
+                        next++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+        // Whatever is still pending is given up on too, and closing its connection stops it
+        // right away, instead of leaving it stuck on a replica that may never answer.
+        for (Request request : pending.values()) {
+            request.cancel();
+        }
+        shardFailures.increment();
+        throw new ShardUnavailableException("No replica of shard " + shard + " answered"
+                + (pending.isEmpty() ? "" : " within " + timeoutMillis + "ms"), failure);
+    }
+
+    private static Future<List<List<String>>> submit(CompletionService<List<List<String>>> completion,
+                                                     Map<Future<List<List<String>>>, Request> pending,
+                                                     Request request) {
+        Future<List<List<String>>> future = completion.submit(request);
+        pending.put(future, request);
+        return future;
+    }
+
+    /**
+     * The replicas of the shard, starting from a different one every time, and with the
+     * ones that recently failed last.
+     */
+    private List<Replica> getReplicaOrder(int shard) {
+        List<Replica> replicas = shards.get(shard);
+        int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        long now = System.nanoTime();
+        List<Replica> order = new ArrayList<Replica>(replicas.size());
+        List<Replica> failed = new ArrayList<Replica>();
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((first + i) % replicas.size());
+            (replica.isAvailable(now) ? order : failed).add(replica);
+        }
+        order.addAll(failed);
+        return order;
+    }
+
+    private long getHedgeDelay() {
+        if (fixedHedgeDelayNanos >= 0) {
+            return fixedHedgeDelayNanos;
+        }
+        long now = System.nanoTime();
+        if (now - hedgeDelayRefreshed >= HEDGE_DELAY_REFRESH_NANOS) {
+            synchronized (recentLatency) {
+                if (now - hedgeDelayRefreshed >= HEDGE_DELAY_REFRESH_NANOS) {
+                    LatencyHistogram.Snapshot snapshot = recentLatency.snapshot();
+                    // Keep the old delay until there's enough to go by.
+                    if (snapshot.getCount() >= MIN_HEDGE_SAMPLES) {
+                        hedgeDelayNanos = Math.max(MIN_HEDGE_DELAY_NANOS, snapshot.getPercentile(HEDGE_PERCENTILE));
+                        recentLatency.reset();
+                    }
+                    hedgeDelayRefreshed = now;
+                }
+            }
+        }
+        return hedgeDelayNanos;
+    }
+
+    /**
+     * Queries are sent one per line, so they can't have line breaks (no band name does), and
+     * the QueryServer refuses the ones that are too long.
+     */
+    private static boolean isRoutable(String query) {
+        return query.length() <= QueryServer.MAX_QUERY_CHARS && query.indexOf('\n') < 0 && query.indexOf('\r') < 0;
+    }
+
+    @Override
+    public void onShutdown() {
+        log("Shutting down ShardRouter...");
+        executor.shutdownNow();
+        for (List<Replica> replicas : shards) {
+            for (Replica replica : replicas) {
+                replica.closeIdleConnections();
+            }
+        }
+        log(metrics.dump());
+        metrics.close();
+    }
+
+    /**
+     * No replica of a shard answered in time.
+     */
+    public static class ShardUnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ShardUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * The replica answered, but with an ERR line (busy, say), so it's up and the connection
+     * is still good.
+     */
+    private static class ErrorAnswerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ErrorAnswerException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The queries of a shard sent to one of its replicas.  It can be cancelled from another
+     * thread, which closes the connection it's using, if any, so a read or write that's
+     * blocked on it fails right away.
+     */
+    private class Request implements Callable<List<List<String>>> {
+        final Replica replica;
+        private final List<String> queries;
+        private Connection connection;
+        private boolean cancelled = false;
+
+        Request(Replica replica, List<String> queries) {
+            this.replica = replica;
+            this.queries = queries;
+        }
+
+        @Override
+        public List<List<String>> call() throws IOException {
+            long start = System.nanoTime();
+            List<List<String>> answer = replica.search(queries, this);
+            recentLatency.record(System.nanoTime() - start);
+            return answer;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Takes the connection for the request.  False if it was cancelled already, and then
+         * the connection is closed.
+         */
+        synchronized boolean attach(Connection connection) {
+            if (cancelled) {
+                connection.close();
+                return false;
+            }
+            this.connection = connection;
+            return true;
+        }
+
+        /**
+         * Done with the connection, so cancelling doesn't close it once it's back in the
+         * pool.  False if it was cancelled (and closed) in the meantime.
+         */
+        synchronized boolean detach() {
+            connection = null;
+            return !cancelled;
+        }
+    }
+
+    /**
+     * One searcher process, with a pool of idle connections to it.
+     */
+    private class Replica {
+        private final InetSocketAddress address;
+        private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<Connection>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private volatile boolean failed = false;
+        private volatile long retryAt;
+
+        Replica(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isAvailable(long now) {
+            return !failed || now - retryAt >= 0;
+        }
+
+        List<List<String>> search(List<String> queries, Request request) throws IOException {
+            Connection connection = idleConnections.poll();
+            if (connection != null) {
+                idleCount.decrementAndGet();
+                try {
+                    return search(connection, queries, request);
+                } catch (ErrorAnswerException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (request.isCancelled()) {
+                        throw e;
+                    }
+                    // Most likely closed on the other end while it sat in the pool, try a new one.
+                }
+            }
+            try {
+                return search(connect(), queries, request);
+            } catch (ErrorAnswerException e) {
+                throw e;
+            } catch (IOException e) {
+                if (request.isCancelled()) {
+                    // Given up on by the router, the replica did nothing wrong.
+                    throw e;
+                }
+                failed = true;
+                retryAt = System.nanoTime() + replicaRetryNanos;
+                closeIdleConnections();
+                throw e;
+            }
+        }
+
+        /**
+         * Pipelines the queries on the connection, and reads the answers back, a window of
+         * PIPELINE_QUERIES (or PIPELINE_CHARS) at a time, so the queries written ahead always
+         * fit in the socket buffers, however big the batch.  The connection goes back to the
+         * pool unless something went wrong with it.
+         */
+        private List<List<String>> search(Connection connection, List<String> queries, Request request)
+                throws IOException {
+            if (!request.attach(connection)) {
+                throw new IOException("Request to " + address + " was cancelled");
+            }
+            List<List<String>> answers = new ArrayList<List<String>>(queries.size());
+            String error = null;
+            boolean reusable = false;
+            try {
+                int answered = 0;
+                while (answered < queries.size()) {
+                    int sent = answered;
+                    int chars = 0;
+                    while (sent < queries.size() && sent - answered < PIPELINE_QUERIES
+                            && (sent == answered || chars + queries.get(sent).length() < PIPELINE_CHARS)) {
+                        String query = queries.get(sent++);
+                        connection.out.write(query);
+                        connection.out.write('\n');
+                        chars += query.length() + 1;
+                    }
+                    connection.out.flush();
+
+                    for (; answered < sent; answered++) {
+                        String line = connection.in.readLine();
+                        if (line == null) {
+                            throw new EOFException("Connection closed by " + address);
+                        }
+                        if (line.startsWith("OK ")) {
+                            answers.add(parseIds(line));
+                        } else if (error == null) {
+                            error = line;
+                        }
+                    }
+                }
+                reusable = true;
+            } finally {
+                if (request.detach() && reusable) {
+                    release(connection);
+                } else {
+                    connection.close();
+                }
+            }
+            if (error != null) {
+                throw new ErrorAnswerException(address + " answered " + error);
+            }
+            failed = false;
+            return answers;
+        }
+
+        private List<String> parseIds(String line) throws IOException {
+            String[] fields = line.split("\t");
+            try {
+                int count = Integer.parseInt(fields[0].substring(3));
+                if (count == fields.length - 1) {
+                    return count == 0 ? Collections.<String>emptyList()
+                            : new ArrayList<String>(Arrays.asList(fields).subList(1, fields.length));
+                }
+            } catch (NumberFormatException e) {
+                // Same as a wrong count.
+            }
+            throw new IOException("Malformed answer from " + address + ": " + line);
+        }
+
+        private Connection connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) timeoutMillis);
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), (int) timeoutMillis);
+                return new Connection(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        private void release(Connection connection) {
+            if (idleCount.incrementAndGet() <= maxIdleConnections) {
+                idleConnections.offer(connection);
+            } else {
+                idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+
+        void closeIdleConnections() {
+            Connection connection;
+            while ((connection = idleConnections.poll()) != null) {
+                idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), SOCKET_BUFFER_BYTES);
+            this.out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), SOCKET_BUFFER_BYTES);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do with it.
+            }
+        }
+    }
+
+    /**
+     * Runs the router with the shard map file given, in server mode if -Dpandora.tcpPort or
+     * -Dpandora.httpPort are set, from the console otherwise.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args == null || args.length != 1) {
+            System.err.println("Invalid input arguments: " + (args == null ? args : Arrays.asList(args))
+                    + ", expected the shard map file");
+            System.exit(1);
+        }
+
+        QueryServer.serve(ShardRouter.fromSystemProperties(new File(args[0])));
+    }
+}
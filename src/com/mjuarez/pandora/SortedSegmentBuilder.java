@@ -0,0 +1,380 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Builds the DiskIndex as sorted, immutable segments (SSTable style), with an external
+ * merge sort, so the build works in a fixed amount of memory no matter how big the input is.
+ *
+ * Phase 1 reads the input and collects (band name, ID) pairs until the memory budget is
+ * used up, sorts them, and spills them to a "run" file in the temp directory.  Phase 2
+ * does a k-way merge of all the runs (in several passes if there are too many of them to
+ * keep open at once), groups all the IDs of each band into a single record, and hands the
+ * records to their segments.  Pairs carry their position in the input, so a band's IDs come
+ * out in input order, duplicates included, the same as with the other build modes.  Since the merged stream is sorted, every segment receives
+ * its keys in sorted order, so all segments end up sorted too.
+ *
+ * All the I/O on the run files and segments is sequential.  The segments are written as
+ * KeyBlocks (front-coded, see DiskIndex.usesBlockSegments()), or else through one
+ * RecordBlock per segment, same as the BulkLoader.
+ *
+ * The merged records can also go somewhere else than a DiskIndex, see merge(), which is
+ * how the StaticCatalog gets them.
+ */
+public class SortedSegmentBuilder {
+    private static final int CHUNK_BYTES = 16 << 20;
+    private static final int MAX_FAN_IN = 64;
+    private static final int RUN_BUFFER_BYTES = 1 << 16;
+    private static final int SEGMENT_BLOCK_BYTES = 16 << 10;
+
+    // Rough per-pair overhead of the two Strings, their arrays and the Pair itself.
+    private static final int PAIR_OVERHEAD_BYTES = 128;
+
+    private final DiskIndex index;
+    private final Shard shard;
+    private final File inputFile;
+    private final long memoryBudget;
+    private final File tempDirectory;
+
+    private final List<File> runs = new ArrayList<File>();
+    private int runsCreated = 0;
+
+    /**
+     * Gets every band, with all of its IDs, once, in key order.
+     */
+    public interface RecordSink {
+        void add(String key, BandIds ids) throws IOException;
+    }
+
+    public SortedSegmentBuilder(DiskIndex index, File inputFile, long memoryBudget, File tempDirectory) {
+        this(index, index.getShard(), inputFile, memoryBudget, tempDirectory);
+    }
+
+    /**
+     * Only for merge(), without a DiskIndex to build.
+     */
+    public SortedSegmentBuilder(Shard shard, File inputFile, long memoryBudget, File tempDirectory) {
+        this(null, shard, inputFile, memoryBudget, tempDirectory);
+    }
+
+    private SortedSegmentBuilder(DiskIndex index, Shard shard, File inputFile, long memoryBudget, File tempDirectory) {
+        this.index = index;
+        this.shard = shard;
+        this.inputFile = inputFile;
+        this.memoryBudget = memoryBudget;
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Builds all the segments, and returns the number of distinct bands written.
+     */
+    public long build() throws IOException {
+        long start = System.currentTimeMillis();
+        final RecordBlock[] blocks = new RecordBlock[index.getSegmentCount()];
+        final KeyBlock[] keyBlocks = index.usesBlockSegments() ? new KeyBlock[index.getSegmentCount()] : null;
+        long bands = merge(new RecordSink() {
+            @Override
+            public void add(String key, BandIds ids) throws IOException {
+                addRecord(key, ids, blocks, keyBlocks);
+            }
+        });
+
+        for (int segment = 0; segment < blocks.length; segment++) {
+            if (blocks[segment] != null && blocks[segment].getRecordCount() > 0) {
+                index.addRecords(segment, blocks[segment]);
+            }
+            if (keyBlocks != null && keyBlocks[segment] != null && keyBlocks[segment].getRecordCount() > 0) {
+                index.addBlock(segment, keyBlocks[segment]);
+            }
+        }
+        index.markSegmentsSorted();
+        log("Built " + bands + " sorted band records in " + (System.currentTimeMillis() - start) + "ms");
+        return bands;
+    }
+
+    /**
+     * Sorts the input, and hands every band over to the sink, in key order.  Returns the
+     * number of distinct bands.
+     */
+    public long merge(RecordSink sink) throws IOException {
+        long start = System.currentTimeMillis();
+        if (!tempDirectory.exists()) {
+            tempDirectory.mkdirs();
+        }
+
+        try {
+            long pairs = spillSortedRuns();
+            log("Spilled " + pairs + " pairs into " + runs.size() + " sorted runs in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+            while (runs.size() > MAX_FAN_IN) {
+                List<File> batch = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+                runs.subList(0, MAX_FAN_IN).clear();
+                runs.add(mergeIntoRun(batch));
+            }
+
+            return mergeRecords(runs, sink);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    private long spillSortedRuns() throws IOException {
+        final List<Pair> pairs = new ArrayList<Pair>();
+        final long[] pairCount = new long[1];
+        final long[] bufferedBytes = new long[1];
+
+        TsvParser parser = new TsvParser(inputFile, shard);
+        TsvParser.RecordHandler handler = new TsvParser.RecordHandler() {
+            @Override
+            public void onRecord(String key, String value) throws IOException {
+                pairs.add(new Pair(key, value, pairCount[0]));
+                pairCount[0]++;
+                bufferedBytes[0] += 2L * (key.length() + value.length()) + PAIR_OVERHEAD_BYTES;
+                if (bufferedBytes[0] >= memoryBudget) {
+                    runs.add(spill(pairs));
+                    bufferedBytes[0] = 0;
+                }
+            }
+        };
+
+        FileChannel channel = new RandomAccessFile(inputFile, "r").getChannel();
+        try {
+            byte[] buffer = null;
+            for (long[] chunk : parser.splitIntoChunks(CHUNK_BYTES)) {
+                buffer = TsvParser.readChunk(channel, chunk, buffer);
+                parser.parse(buffer, (int) (chunk[1] - chunk[0]), chunk[0], handler);
+            }
+        } finally {
+            channel.close();
+        }
+        if (!pairs.isEmpty()) {
+            runs.add(spill(pairs));
+        }
+        return pairCount[0];
+    }
+
+    private File spill(List<Pair> pairs) throws IOException {
+        Collections.sort(pairs);
+        File run = newRunFile();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_BYTES));
+        try {
+            out.writeLong(pairs.size());
+            for (Pair pair : pairs) {
+                out.writeUTF(pair.key);
+                out.writeUTF(pair.id);
+                out.writeLong(pair.sequence);
+            }
+        } finally {
+            out.close();
+        }
+        pairs.clear();
+        return run;
+    }
+
+    /**
+     * Intermediate merge pass, for when there are more runs than we want to keep open.
+     */
+    private File mergeIntoRun(List<File> batch) throws IOException {
+        File run = newRunFile();
+        PriorityQueue<RunReader> queue = openRuns(batch);
+        long count = 0;
+        // The pair count goes first, same as in the spilled runs, so it's patched in at the end.
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_BYTES));
+        try {
+            out.writeLong(0);
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                out.writeUTF(reader.current.key);
+                out.writeUTF(reader.current.id);
+                out.writeLong(reader.current.sequence);
+                count++;
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            out.close();
+            closeRuns(queue);
+        }
+
+        RandomAccessFile header = new RandomAccessFile(run, "rw");
+        try {
+            header.writeLong(count);
+        } finally {
+            header.close();
+        }
+        for (File file : batch) {
+            file.delete();
+        }
+        return run;
+    }
+
+    /**
+     * Final merge pass.  Consecutive pairs with the same key become a single record with
+     * all of its IDs, in the order they were in the input.
+     */
+    private long mergeRecords(List<File> batch, RecordSink sink) throws IOException {
+        PriorityQueue<RunReader> queue = openRuns(batch);
+        long bands = 0;
+        try {
+            String key = null;
+            BandIds ids = BandIds.EMPTY;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                Pair pair = reader.current;
+                if (!pair.key.equals(key)) {
+                    if (key != null) {
+                        sink.add(key, ids);
+                        bands++;
+                    }
+                    key = pair.key;
+                    ids = BandIds.of(pair.id);
+                } else {
+                    ids = ids.with(pair.id);
+                }
+
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+            if (key != null) {
+                sink.add(key, ids);
+                bands++;
+            }
+        } finally {
+            closeRuns(queue);
+        }
+        return bands;
+    }
+
+    private void addRecord(String key, BandIds ids, RecordBlock[] blocks, KeyBlock[] keyBlocks) throws IOException {
+        int segment = index.getSegmentNumber(key);
+        if (keyBlocks != null) {
+            KeyBlock keyBlock = keyBlocks[segment];
+            if (keyBlock == null) {
+                keyBlock = new KeyBlock(index.getBlockBytes() + (index.getBlockBytes() >> 2));
+                keyBlocks[segment] = keyBlock;
+            }
+            keyBlock.add(key, ids);
+            if (keyBlock.getByteCount() >= index.getBlockBytes()) {
+                index.addBlock(segment, keyBlock);
+                keyBlock.reset();
+            }
+            return;
+        }
+
+        RecordBlock block = blocks[segment];
+        if (block == null) {
+            block = new RecordBlock(1 << 10);
+            blocks[segment] = block;
+        }
+        block.add(key, ids);
+        if (block.getByteCount() >= SEGMENT_BLOCK_BYTES) {
+            index.addRecords(segment, block);
+            block.reset();
+        }
+    }
+
+    private PriorityQueue<RunReader> openRuns(List<File> batch) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, batch.size()));
+        for (File run : batch) {
+            RunReader reader = new RunReader(run);
+            if (reader.advance()) {
+                queue.add(reader);
+            } else {
+                reader.close();
+            }
+        }
+        return queue;
+    }
+
+    private void closeRuns(PriorityQueue<RunReader> queue) {
+        for (RunReader reader : queue) {
+            reader.close();
+        }
+        queue.clear();
+    }
+
+    private File newRunFile() {
+        return new File(tempDirectory, String.format("run%06d.tmp", runsCreated++));
+    }
+
+    private static class Pair implements Comparable<Pair> {
+        final String key;
+        final String id;
+        // Position in the input, so equal keys keep their input order through the sort.
+        final long sequence;
+
+        Pair(String key, String id, long sequence) {
+            this.key = key;
+            this.id = id;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Pair other) {
+            int result = key.compareTo(other.key);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Sequential reader over a run file, ordered by its current pair so it can sit in the
+     * merge queue.  Closes itself once it runs out of pairs.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private long remaining;
+        Pair current;
+
+        RunReader(File run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_BYTES));
+            this.remaining = in.readLong();
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                close();
+                current = null;
+                return false;
+            }
+            remaining--;
+            current = new Pair(in.readUTF(), in.readUTF(), in.readLong());
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log("Error while closing run file", e);
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
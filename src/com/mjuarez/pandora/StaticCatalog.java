@@ -0,0 +1,399 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.MinimalPerfectHash;
+import com.mjuarez.pandora.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Read-only catalog, for inputs that are rebuilt from a full snapshot and never change after
+ * that.  No segments to pick from, bloom filter or cache: a MinimalPerfectHash over all the
+ * band names gives every band its own slot, the slot has where its record is, and all of it
+ * is memory mapped.
+ *
+ * The files, in the catalog directory:
+ *   static.dat, every band's record, the same as in the segments (the key with writeUTF, and
+ *   then its IDs), in key order.
+ *   static.slots, a long per band, in perfect hash order: a 24-bit fingerprint of the key,
+ *   and the offset of its record in the 40 bits below it.
+ *   static.mph, what the catalog was built from, and the perfect hash.  Written last, so
+ *   the other two are complete if it's there.
+ *
+ * A lookup encodes the key once (see RecordBlock.encodeKey()), hashes it to its slot, and
+ * if the fingerprint there matches, compares the key with the record in place and decodes
+ * the IDs: a single random read in the data file, besides the 8 bytes of the slot.  Keys
+ * that aren't in the catalog are turned away by the fingerprint, all but 1 in 16M of them.
+ *
+ * In RAM that's the perfect hash, around 4 bits per band, and whatever pages of the other
+ * two files the OS keeps cached.  Building it takes around 20 bytes per band of heap, for
+ * the hashes of all the keys; the input is sorted with the SortedSegmentBuilder.
+ */
+public final class StaticCatalog {
+    private static final int MAGIC = 0x534d5048;  // "SMPH"
+    private static final int VERSION = 1;
+    private static final int FINGERPRINT_SHIFT = 40;
+    private static final long OFFSET_MASK = (1L << FINGERPRINT_SHIFT) - 1;
+    private static final long FINGERPRINT_SEED = 0x2545f4914f6cdd1dL;
+
+    // A record can't be longer than this, so it's always whole in one of the mapped chunks.
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final int MAX_SEEDS = 16;
+
+    private final File directory;
+    private final long size;
+    private final long seed;
+    private final MinimalPerfectHash hash;
+    private final MappedChunks slots;
+    private final MappedChunks records;
+
+    private StaticCatalog(File directory, long size, long seed, MinimalPerfectHash hash, MappedChunks slots,
+                          MappedChunks records) {
+        this.directory = directory;
+        this.size = size;
+        this.seed = seed;
+        this.hash = hash;
+        this.slots = slots;
+        this.records = records;
+    }
+
+    /**
+     * Opens the catalog in the directory, or returns null (and logs why) if there isn't one,
+     * or it was built from a different input or shard.
+     */
+    public static StaticCatalog open(File directory, File source, Shard shard) throws IOException {
+        File mphFile = new File(directory, "static.mph");
+        if (!mphFile.exists()) {
+            log("No static catalog in " + directory + ", building it");
+            return null;
+        }
+        ByteBuffer buffer = MappedChunks.map(mphFile, FileChannel.MapMode.READ_ONLY, mphFile.length(), 0).chunk(0);
+        if (buffer.limit() < 8 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            log("Static catalog in " + directory + " has an unknown format, rebuilding it");
+            return null;
+        }
+        byte[] header = new byte[buffer.getInt(8)];
+        buffer.get(12, header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        String sourcePath = in.readUTF();
+        long sourceLength = in.readLong();
+        long sourceLastModified = in.readLong();
+        String builtShard = in.readUTF();
+        long seed = in.readLong();
+        long size = in.readLong();
+        long recordBytes = in.readLong();
+        if (!sourcePath.equals(source.getAbsolutePath()) || sourceLength != source.length()
+                || sourceLastModified != source.lastModified() || !builtShard.equals(shard.toString())) {
+            log("Static catalog in " + directory + " was built from a different input than shard " + shard
+                    + " of " + source + ", rebuilding it");
+            return null;
+        }
+
+        File slotsFile = new File(directory, "static.slots");
+        File recordsFile = new File(directory, "static.dat");
+        if (slotsFile.length() != 8 * size || recordsFile.length() != recordBytes) {
+            log("Static catalog in " + directory + " is incomplete, rebuilding it");
+            return null;
+        }
+        MinimalPerfectHash hash = MinimalPerfectHash.read(buffer, 12 + header.length);
+        return new StaticCatalog(directory, size, seed, hash,
+                MappedChunks.map(slotsFile, FileChannel.MapMode.READ_ONLY, slotsFile.length(), 0),
+                MappedChunks.map(recordsFile, FileChannel.MapMode.READ_ONLY, recordBytes, MAX_RECORD_BYTES));
+    }
+
+    /**
+     * Builds the catalog for the shard of the input in the directory, replacing whatever was
+     * there, and opens it.
+     */
+    public static StaticCatalog build(File directory, File source, Shard shard, long sortMemoryBytes,
+                                      File sortTempDirectory) throws IOException {
+        long start = System.currentTimeMillis();
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        final File mphFile = new File(directory, "static.mph");
+        File slotsFile = new File(directory, "static.slots");
+        File recordsFile = new File(directory, "static.dat");
+        File valuesFile = new File(directory, "static.values.tmp");
+        mphFile.delete();
+
+        // The records, and each band's slot value, in key order.  The slot can only be worked
+        // out once the perfect hash is built, so the values wait in a temp file.
+        final RecordBlock record = new RecordBlock(256);
+        final long[] recordBytes = new long[1];
+        final long[][] hashes = {new long[1 << 16]};
+        final int[] count = new int[1];
+        FileOutputStream recordsOut = new FileOutputStream(recordsFile);
+        final OutputStream recordsStream = new BufferedOutputStream(recordsOut, 1 << 16);
+        final DataOutputStream valuesOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(valuesFile), 1 << 16));
+        try {
+            new SortedSegmentBuilder(shard, source, sortMemoryBytes, sortTempDirectory).merge(
+                    new SortedSegmentBuilder.RecordSink() {
+                        @Override
+                        public void add(String key, BandIds ids) throws IOException {
+                            record.reset();
+                            record.add(key, ids);
+                            if (record.getByteCount() > MAX_RECORD_BYTES) {
+                                throw new IOException("Band " + key + " has too many IDs for a static catalog");
+                            }
+                            if (recordBytes[0] + record.getByteCount() > OFFSET_MASK) {
+                                throw new IOException("Too much data for a single static catalog, shard it");
+                            }
+                            if (count[0] == hashes[0].length) {
+                                if (count[0] == Integer.MAX_VALUE - 8) {
+                                    throw new IOException("Too many bands for a single static catalog, shard it");
+                                }
+                                hashes[0] = Arrays.copyOf(hashes[0],
+                                        (int) Math.min(Integer.MAX_VALUE - 8, 2L * count[0]));
+                            }
+                            byte[] encodedKey = RecordBlock.encodeKey(key);
+                            long keyHash = keyHash(encodedKey, 0);
+                            hashes[0][count[0]++] = keyHash;
+                            valuesOut.writeLong(((long) fingerprint(keyHash) << FINGERPRINT_SHIFT) | recordBytes[0]);
+
+                            recordsStream.write(record.getBytes(), 0, record.getByteCount());
+                            recordBytes[0] += record.getByteCount();
+                        }
+                    });
+            recordsStream.flush();
+            recordsOut.getFD().sync();
+        } finally {
+            recordsStream.close();
+            valuesOut.close();
+        }
+
+        MinimalPerfectHash[] built = new MinimalPerfectHash[1];
+        long seed = buildPerfectHash(recordsFile, hashes[0], count[0], built);
+        MinimalPerfectHash hash = built[0];
+
+        RandomAccessFile slotsOut = new RandomAccessFile(slotsFile, "rw");
+        try {
+            slotsOut.setLength(0);
+            slotsOut.setLength(8L * count[0]);
+        } finally {
+            slotsOut.close();
+        }
+        MappedChunks slots = MappedChunks.map(slotsFile, FileChannel.MapMode.READ_WRITE, 8L * count[0], 0);
+        DataInputStream valuesIn = new DataInputStream(new BufferedInputStream(new FileInputStream(valuesFile), 1 << 16));
+        try {
+            for (int i = 0; i < count[0]; i++) {
+                long slot = 8 * hash.slot(hashes[0][i]);
+                slots.chunk(slot).putLong(MappedChunks.position(slot), valuesIn.readLong());
+            }
+        } finally {
+            valuesIn.close();
+            valuesFile.delete();
+        }
+        slots.force();
+        hashes[0] = null;
+
+        File temporary = new File(directory, "static.mph.tmp");
+        FileOutputStream fileOut = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeUTF(source.getAbsolutePath());
+            headerOut.writeLong(source.length());
+            headerOut.writeLong(source.lastModified());
+            headerOut.writeUTF(shard.toString());
+            headerOut.writeLong(seed);
+            headerOut.writeLong(count[0]);
+            headerOut.writeLong(recordBytes[0]);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(header.size());
+            header.writeTo(out);
+            hash.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), mphFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        log("Built a static catalog of " + count[0] + " bands in " + (System.currentTimeMillis() - start)
+                + "ms, the perfect hash takes " + (count[0] == 0 ? 0 : 8L * hash.getByteCount() / count[0])
+                + " bits per band");
+        StaticCatalog catalog = open(directory, source, shard);
+        if (catalog == null) {
+            throw new IOException("Unable to open the static catalog just built in " + directory);
+        }
+        return catalog;
+    }
+
+    /**
+     * Builds the perfect hash over the hashes of the keys in the records file, taken with
+     * seed 0, into hash[0].  Two keys with the same hash would never get slots of their
+     * own, so in the (very unlikely) case there are any, the keys are read back and hashed
+     * again with the next seed, until they all differ.  Returns the seed they ended up with.
+     */
+    static long buildPerfectHash(File recordsFile, long[] hashes, int count, MinimalPerfectHash[] hash)
+            throws IOException {
+        long seed = 0;
+        hash[0] = MinimalPerfectHash.build(hashes, count);
+        while (hash[0] == null) {
+            if (++seed == MAX_SEEDS) {
+                throw new IOException("Unable to build a perfect hash over " + recordsFile
+                        + ", are there duplicate keys?");
+            }
+            log("Two band names had the same hash, hashing them again");
+            rehash(recordsFile, hashes, count, seed);
+            hash[0] = MinimalPerfectHash.build(hashes, count);
+        }
+        return seed;
+    }
+
+    private static void rehash(File recordsFile, long[] hashes, int count, long seed) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(recordsFile), 1 << 16));
+        try {
+            for (int i = 0; i < count; i++) {
+                hashes[i] = keyHash(RecordBlock.encodeKey(in.readUTF()), seed);
+                BandIds.readFrom(in);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Bytes of the perfect hash, the only part that really has to stay in RAM.
+     */
+    public long getHashBytes() {
+        return hash.getByteCount();
+    }
+
+    /**
+     * The IDs of the band, or null if it's not in the catalog.
+     */
+    public BandIds get(String key) throws IOException {
+        byte[] encodedKey = RecordBlock.encodeKey(key);
+        long offset = find(encodedKey);
+        if (offset < 0) {
+            return null;
+        }
+        return RecordBlock.readIds(records.chunk(offset), MappedChunks.position(offset), encodedKey);
+    }
+
+    /**
+     * Adds the IDs of the band to the results, decoded straight from the mapped record.
+     * Returns false if it's not in the catalog.
+     */
+    public boolean get(String key, BandIdBuffer results) throws IOException {
+        byte[] encodedKey = RecordBlock.encodeKey(key);
+        long offset = find(encodedKey);
+        if (offset < 0) {
+            return false;
+        }
+        BandIds.readFrom(records.chunk(offset), MappedChunks.position(offset) + encodedKey.length, results);
+        return true;
+    }
+
+    // Offset of the record with the key, or -1.
+    private long find(byte[] encodedKey) {
+        if (size == 0 || encodedKey == null) {
+            return -1;
+        }
+        long keyHash = keyHash(encodedKey, 0);
+        long slot = 8 * hash.slot(seed == 0 ? keyHash : keyHash(encodedKey, seed));
+        long value = slots.chunk(slot).getLong(MappedChunks.position(slot));
+        if ((int) (value >>> FINGERPRINT_SHIFT) != fingerprint(keyHash)) {
+            return -1;
+        }
+        long offset = value & OFFSET_MASK;
+        return RecordBlock.keyMatches(records.chunk(offset), MappedChunks.position(offset), encodedKey) ? offset : -1;
+    }
+
+    /**
+     * FNV-1a over the encoded key, like Utils.hash64(), but starting from the seed, so two
+     * keys that have the same hash with one seed don't with another.
+     */
+    static long keyHash(byte[] encodedKey, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (byte b : encodedKey) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return Utils.mix64(hash);
+    }
+
+    // Mixed again, the perfect hash already used up the bits of the hash to pick the slot.
+    private static int fingerprint(long keyHash) {
+        return (int) (Utils.mix64(keyHash ^ FINGERPRINT_SEED) >>> FINGERPRINT_SHIFT);
+    }
+
+    /**
+     * A file mapped in chunks of 1GB, since a single mapping can't go over 2GB.  Each chunk
+     * maps overlap bytes past its end as well, so anything that starts in a chunk and isn't
+     * longer than that can be read from it whole.
+     */
+    private static class MappedChunks {
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+        private final MappedByteBuffer[] chunks;
+
+        private MappedChunks(MappedByteBuffer[] chunks) {
+            this.chunks = chunks;
+        }
+
+        static MappedChunks map(File file, FileChannel.MapMode mode, long length, int overlap) throws IOException {
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) Math.max(1, (length + CHUNK_MASK) >>> CHUNK_BITS)];
+            RandomAccessFile mapped = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+            try {
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long) i << CHUNK_BITS;
+                    long end = Math.min(length, start + CHUNK_MASK + 1 + overlap);
+                    chunks[i] = mapped.getChannel().map(mode, start, Math.max(0, end - start));
+                }
+            } finally {
+                mapped.close();
+            }
+            return new MappedChunks(chunks);
+        }
+
+        ByteBuffer chunk(long offset) {
+            return chunks[(int) (offset >>> CHUNK_BITS)];
+        }
+
+        static int position(long offset) {
+            return (int) (offset & CHUNK_MASK);
+        }
+
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Searcher for catalogs that don't change between full rebuilds, backed by a StaticCatalog:
+ * no adds, but a single disk read per search and only a few bits per band of RAM, however
+ * big the catalog gets.
+ *
+ * The catalog goes in -Dpandora.staticDir, and is built from the input (with the same
+ * -Dpandora.sortMemoryMb and -Dpandora.sortTempDir as a sorted DiskIndex build) unless
+ * there's already one built from it.  There's no sorted dictionary of the names to go with
+ * the hash, so prefix searches don't find anything.
+ */
+public class StaticCatalogSearcher implements Searcher {
+    private final File directory = new File(System.getProperty("pandora.staticDir",
+            System.getProperty("java.io.tmpdir") + File.separator + "static-catalog"));
+    private final long sortMemoryBytes = Long.getLong("pandora.sortMemoryMb", 256) << 20;
+    private final File sortTempDirectory = new File(System.getProperty("pandora.sortTempDir",
+            System.getProperty("java.io.tmpdir") + File.separator + "pandora-sort"));
+
+    private final String filePath;
+    private final StaticCatalog catalog;
+
+    public StaticCatalogSearcher(String filePath) {
+        this.filePath = filePath;
+        this.catalog = openOrBuild();
+    }
+
+    public List<String> search(String query) {
+        if (catalog == null) {
+            return Collections.emptyList();
+        }
+        try {
+            BandIds ids = catalog.get(query);
+            if (ids != null) {
+                return ids.asList();
+            }
+        } catch (IOException e) {
+            log("Exception while searching for " + query + " in " + catalog.getDirectory(), e);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int search(String query, BandIdBuffer results) {
+        results.clear();
+        if (catalog != null) {
+            try {
+                catalog.get(query, results);
+            } catch (IOException e) {
+                results.clear();
+                log("Exception while searching for " + query + " in " + catalog.getDirectory(), e);
+            }
+        }
+        return results.size();
+    }
+
+    @Override
+    public void onShutdown() {
+        log("Shutting down StaticCatalogSearcher...");
+    }
+
+    private StaticCatalog openOrBuild() {
+        File source = new File(filePath);
+        Shard shard = Shard.fromSystemProperties();
+        try {
+            StaticCatalog opened = StaticCatalog.open(directory, source, shard);
+            if (opened == null) {
+                opened = StaticCatalog.build(directory, source, shard, sortMemoryBytes, sortTempDirectory);
+            }
+            log("Static catalog of " + opened.size() + " bands, " + (opened.getHashBytes() >> 10)
+                    + "KB of perfect hash");
+            return opened;
+        } catch (IOException e) {
+            log("Exception while building static catalog from file " + filePath, e);
+            return null;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args == null || args.length != 1) {
+            System.err.println("Invalid input arguments: " + (args == null ? args : Arrays.asList(args)));
+            System.exit(1);
+        }
+
+        // Server mode if -Dpandora.tcpPort or -Dpandora.httpPort are set, console otherwise.
+        QueryServer.serve(new StaticCatalogSearcher(args[0]));
+    }
+}
@@ -0,0 +1,162 @@
+package com.mjuarez.pandora;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mjuarez.pandora.utils.Utils.log;
+
+/**
+ * Byte-level parser for the band name/ID input files.
+ *
+ * Works directly on chunks of the file read as bytes, looking for '\t' and '\n', instead
+ * of going through a Reader and a regex split for every line.  The file can be split into
+ * chunks that end on a line boundary, so that several threads can parse it at once; the
+ * parser itself is thread-safe.
+ *
+ * When the catalog is sharded, only the records of the given Shard are handed over, the
+ * rest are just counted.
+ */
+public class TsvParser {
+    private static final byte TAB = '\t';
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final File inputFile;
+    private final Shard shard;
+    private final AtomicLong invalidLines = new AtomicLong();
+    private final AtomicLong otherShardRecords = new AtomicLong();
+
+    public interface RecordHandler {
+        void onRecord(String key, String value) throws IOException;
+    }
+
+    public TsvParser(File inputFile) {
+        this(inputFile, Shard.ALL);
+    }
+
+    public TsvParser(File inputFile, Shard shard) {
+        this.inputFile = inputFile;
+        this.shard = shard;
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    public long getInvalidLines() {
+        return invalidLines.get();
+    }
+
+    /**
+     * Records skipped because they belong to some other shard.
+     */
+    public long getOtherShardRecords() {
+        return otherShardRecords.get();
+    }
+
+    /**
+     * Returns [start, end) byte ranges of roughly chunkBytes each, where every range ends
+     * right after a newline (or at the end of the file).
+     */
+    public List<long[]> splitIntoChunks(int chunkBytes) throws IOException {
+        List<long[]> chunks = new ArrayList<long[]>();
+        RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+        try {
+            long length = file.length();
+            byte[] probe = new byte[4096];
+            long start = 0;
+            while (start < length) {
+                long end = Math.min(start + chunkBytes, length);
+                // Move the end forward to just past the next newline.
+                while (end < length) {
+                    file.seek(end);
+                    int read = file.read(probe);
+                    int newline = indexOf(probe, 0, read, NEWLINE);
+                    if (newline >= 0) {
+                        end += newline + 1;
+                        break;
+                    }
+                    end += read;
+                }
+                chunks.add(new long[]{start, end});
+                start = end;
+            }
+        } finally {
+            file.close();
+        }
+        return chunks;
+    }
+
+    /**
+     * Reads the whole [start, end) chunk into the buffer, growing it if needed, and
+     * returns the buffer that was used.
+     */
+    public static byte[] readChunk(FileChannel channel, long[] chunk, byte[] buffer) throws IOException {
+        int length = (int) (chunk[1] - chunk[0]);
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, chunk[0] + target.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Parses the lines in the first length bytes of the buffer.  Lines have to have exactly
+     * one tab, with a non-empty band name before it and a non-empty ID after it, anything
+     * else is logged and skipped.  The chunk offset is only used for the log message.
+     */
+    public void parse(byte[] buffer, int length, long chunkOffset, RecordHandler handler) throws IOException {
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = indexOf(buffer, lineStart, length, NEWLINE);
+            int next = lineEnd + 1;
+            if (lineEnd < 0) {
+                lineEnd = length;
+                next = length;
+            }
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && buffer[contentEnd - 1] == CARRIAGE_RETURN) {
+                contentEnd--;
+            }
+
+            if (contentEnd > lineStart) {
+                int tab = indexOf(buffer, lineStart, contentEnd, TAB);
+                if (tab <= lineStart || tab == contentEnd - 1 || indexOf(buffer, tab + 1, contentEnd, TAB) >= 0) {
+                    invalidLines.incrementAndGet();
+                    log("Invalid line [" + new String(buffer, lineStart, contentEnd - lineStart, StandardCharsets.UTF_8)
+                            + "] in file " + inputFile + " at byte offset " + (chunkOffset + lineStart) + ". Skipping.");
+                } else {
+                    String key = new String(buffer, lineStart, tab - lineStart, StandardCharsets.UTF_8);
+                    if (shard.owns(key)) {
+                        String value = new String(buffer, tab + 1, contentEnd - tab - 1, StandardCharsets.UTF_8);
+                        handler.onRecord(key, value);
+                    } else {
+                        otherShardRecords.incrementAndGet();
+                    }
+                }
+            }
+            lineStart = next;
+        }
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,161 @@
+package com.mjuarez.pandora.utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What's behind Utils.log: callers only format their message and drop it in a bounded
+ * queue, and a daemon thread timestamps and prints it.  So logging never blocks on stdout,
+ * and a flood of messages (an input file full of invalid lines, say) can't slow down
+ * whatever is logging them: past -Dpandora.logRatePerSecond messages a second (with bursts
+ * of up to that many), or with the queue full, messages are dropped and counted, and the
+ * count is printed once things calm down.
+ *
+ * A shutdown hook prints whatever is still queued, and from then on messages are printed
+ * right away, so the ones logged by other shutdown hooks aren't lost.
+ * -Dpandora.asyncLog=false prints everything synchronously, as it used to.
+ */
+final class AsyncLogger {
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final AsyncLogger INSTANCE = new AsyncLogger(
+            Boolean.parseBoolean(System.getProperty("pandora.asyncLog", "true")),
+            Integer.getInteger("pandora.logQueueSize", 8192),
+            Double.parseDouble(System.getProperty("pandora.logRatePerSecond", "100")));
+
+    private final PrintStream out = System.out;
+    private final BlockingQueue<Entry> queue;
+    private final double ratePerSecond;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object writeLock = new Object();
+    private volatile boolean synchronous;
+
+    // Token bucket, under its own lock, which is only held for a few instructions.
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private AsyncLogger(boolean async, int queueSize, double ratePerSecond) {
+        this.queue = new ArrayBlockingQueue<Entry>(Math.max(1, queueSize));
+        this.ratePerSecond = ratePerSecond;
+        this.tokens = Math.max(1, ratePerSecond);
+        this.synchronous = !async;
+        if (async) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "pandora-log");
+            writer.setDaemon(true);
+            writer.start();
+
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (writeLock) {
+                            synchronous = true;
+                            drain();
+                        }
+                    }
+                }, "pandora-log-flush"));
+            } catch (IllegalStateException e) {
+                // First used from another shutdown hook, too late for ours: print right away.
+                synchronous = true;
+            }
+        }
+    }
+
+    static void log(String message) {
+        INSTANCE.submit(message);
+    }
+
+    private void submit(String message) {
+        long now = System.currentTimeMillis();
+        if (!acquire()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (synchronous) {
+            synchronized (writeLock) {
+                drain();
+                write(now, message);
+            }
+            return;
+        }
+        if (!queue.offer(new Entry(now, message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private synchronized boolean acquire() {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, ratePerSecond), tokens + (now - lastRefill) * ratePerSecond / 1e9);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                Entry entry = queue.poll(1, TimeUnit.SECONDS);
+                synchronized (writeLock) {
+                    if (entry != null) {
+                        write(entry.time, entry.message);
+                    }
+                    // Only once the backlog is out, so the count doesn't interrupt it.
+                    if (queue.isEmpty()) {
+                        reportDropped();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Callers hold the writeLock.
+    private void drain() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            write(entry.time, entry.message);
+        }
+        reportDropped();
+    }
+
+    private void reportDropped() {
+        long count = dropped.getAndSet(0);
+        if (count > 0) {
+            write(System.currentTimeMillis(), "Dropped " + count + " log messages (over "
+                    + ratePerSecond + "/s, or the log queue was full)");
+        }
+    }
+
+    private void write(long time, String message) {
+        out.println(DATE_FORMAT.format(Instant.ofEpochMilli(time)) + " - " + message);
+    }
+
+    private static final class Entry {
+        final long time;
+        final String message;
+
+        Entry(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+}
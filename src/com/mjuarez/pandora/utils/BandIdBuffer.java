@@ -0,0 +1,130 @@
+package com.mjuarez.pandora.utils;
+
+import java.util.Arrays;
+
+/**
+ * Reusable holder for the IDs of a single result, for callers that do lots of lookups and
+ * don't want a List of Strings (or even a BandIds) for every one of them, see
+ * Searcher.search(String, BandIdBuffer).  Once it has grown to fit the biggest result, a
+ * lookup into it doesn't allocate anything.
+ *
+ * IDs are kept packed, the same way as in BandIds: a packed ID (non-negative), or for the odd
+ * one that can't be packed, -(i + 1) where i is its position among the escaped Strings.
+ * They can be decoded one at a time with get(), or appended straight to a StringBuilder
+ * with appendTo(), e.g. to write them out to a socket.
+ *
+ * Not thread-safe, each thread (or connection) keeps its own.
+ */
+public final class BandIdBuffer {
+    private int[] ids;
+    private String[] escaped;
+    private int size = 0;
+    private int escapedCount = 0;
+
+    public BandIdBuffer() {
+        this(8);
+    }
+
+    public BandIdBuffer(int initialCapacity) {
+        this.ids = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void clear() {
+        size = 0;
+        if (escapedCount > 0) {
+            // Don't hold on to the Strings of some old result.
+            Arrays.fill(escaped, 0, escapedCount, null);
+            escapedCount = 0;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds an ID already packed with the BandIdCodec.
+     */
+    public void addPacked(int packed) {
+        if (packed < 0) {
+            throw new IllegalArgumentException("Escaped IDs need their original value: " + packed);
+        }
+        append(packed);
+    }
+
+    public void add(String id) {
+        int packed = BandIdCodec.encode(id);
+        append(packed != BandIdCodec.NOT_PACKABLE ? packed : escape(id));
+    }
+
+    public void addAll(BandIds bandIds) {
+        for (int i = 0; i < bandIds.size(); i++) {
+            int packed = bandIds.getPacked(i);
+            append(packed >= 0 ? packed : escape(bandIds.get(i)));
+        }
+    }
+
+    /**
+     * The packed value of the i-th ID, negative if it's an escaped one.
+     */
+    public int getPacked(int i) {
+        checkIndex(i);
+        return ids[i];
+    }
+
+    public String get(int i) {
+        int packed = getPacked(i);
+        return packed >= 0 ? BandIdCodec.decode(packed) : escaped[-packed - 1];
+    }
+
+    /**
+     * Appends the i-th ID to the builder, without decoding it into a String first.
+     */
+    public void appendTo(StringBuilder builder, int i) {
+        int packed = getPacked(i);
+        if (packed >= 0) {
+            BandIdCodec.appendTo(builder, packed);
+        } else {
+            builder.append(escaped[-packed - 1]);
+        }
+    }
+
+    private int escape(String id) {
+        if (escaped == null) {
+            escaped = new String[4];
+        } else if (escapedCount == escaped.length) {
+            escaped = Arrays.copyOf(escaped, 2 * escapedCount);
+        }
+        escaped[escapedCount++] = id;
+        return -escapedCount;
+    }
+
+    private void append(int packed) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+        }
+        ids[size++] = packed;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("ID " + i + " of " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            appendTo(builder, i);
+        }
+        return builder.append(']').toString();
+    }
+}
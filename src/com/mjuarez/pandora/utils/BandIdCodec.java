@@ -0,0 +1,93 @@
+package com.mjuarez.pandora.utils;
+
+/**
+ * Packs band IDs into an int.
+ *
+ * Every ID in the dataset is "/m/0" followed by up to 6 characters out of a 32 symbol
+ * alphabet (digits, lower case consonants and '_'), so the suffix fits in 5 bits per
+ * character.  The suffix is encoded as a bijective base-32 number (digits 1 to 32, no
+ * zero digit), which keeps IDs of different lengths distinct without having to store the
+ * length: 6 characters need at most 32 + 32^2 + ... + 32^6 (about 1.1 billion), which
+ * still fits in a non-negative int.
+ *
+ * IDs that don't follow that shape can't be packed; encode() returns NOT_PACKABLE for
+ * them, and callers have to keep those as Strings (see BandIds).
+ */
+public class BandIdCodec {
+    public static final int NOT_PACKABLE = -1;
+
+    public static final String PREFIX = "/m/0";
+    public static final int MAX_SUFFIX_LENGTH = 6;
+
+    private static final char[] ALPHABET = "0123456789bcdfghjklmnpqrstvwxyz_".toCharArray();
+    private static final byte[] DIGITS = new byte[128];
+
+    static {
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGITS[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DIGITS[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private BandIdCodec() {
+    }
+
+    /**
+     * Returns the packed (non-negative) value for the ID, or NOT_PACKABLE.
+     */
+    public static int encode(String id) {
+        int length = id.length() - PREFIX.length();
+        if (length < 0 || length > MAX_SUFFIX_LENGTH || !id.startsWith(PREFIX)) {
+            return NOT_PACKABLE;
+        }
+        int value = 0;
+        for (int i = PREFIX.length(); i < id.length(); i++) {
+            char c = id.charAt(i);
+            int digit = c < DIGITS.length ? DIGITS[c] : -1;
+            if (digit < 0) {
+                return NOT_PACKABLE;
+            }
+            value = value * ALPHABET.length + digit + 1;
+        }
+        return value;
+    }
+
+    public static String decode(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a packed band ID: " + value);
+        }
+        char[] id = new char[PREFIX.length() + MAX_SUFFIX_LENGTH];
+        int position = id.length;
+        while (value > 0) {
+            value--;
+            id[--position] = ALPHABET[value % ALPHABET.length];
+            value /= ALPHABET.length;
+        }
+        int suffixLength = id.length - position;
+        PREFIX.getChars(0, PREFIX.length(), id, position - PREFIX.length());
+        return new String(id, position - PREFIX.length(), PREFIX.length() + suffixLength);
+    }
+
+    /**
+     * Appends the decoded ID to the builder, without creating an intermediate String.
+     */
+    public static void appendTo(StringBuilder builder, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a packed band ID: " + value);
+        }
+        builder.append(PREFIX);
+        int length = 0;
+        for (int remaining = value; remaining > 0; remaining = (remaining - 1) / ALPHABET.length) {
+            length++;
+        }
+        int position = builder.length() + length;
+        builder.setLength(position);
+        while (value > 0) {
+            value--;
+            builder.setCharAt(--position, ALPHABET[value % ALPHABET.length]);
+            value /= ALPHABET.length;
+        }
+    }
+}
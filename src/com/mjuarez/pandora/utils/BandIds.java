@@ -0,0 +1,352 @@
+package com.mjuarez.pandora.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable list of the IDs of a band, packed with the BandIdCodec.
+ *
+ * Each entry of the int array is either a packed ID (non-negative), or, for the odd ID
+ * that can't be packed, -(i + 1) where i is its position in the escaped String array.
+ * Since almost every ID can be packed, the escaped array is nearly always null, and a
+ * band costs one small int array instead of a (joined) String.
+ *
+ * IDs are only decoded back into Strings when they're handed out to the caller.
+ */
+public final class BandIds {
+    public static final BandIds EMPTY = new BandIds(new int[0], null);
+
+    private final int[] ids;
+    private final String[] escaped;
+
+    private BandIds(int[] ids, String[] escaped) {
+        this.ids = ids;
+        this.escaped = escaped;
+    }
+
+    public static BandIds of(String id) {
+        return EMPTY.with(id);
+    }
+
+    /**
+     * Wraps IDs that are all already packed (no escaped ones).  The array is not copied.
+     */
+    public static BandIds ofPacked(int[] ids) {
+        for (int id : ids) {
+            if (id < 0) {
+                throw new IllegalArgumentException("Escaped IDs need their original value: " + id);
+            }
+        }
+        return ids.length == 0 ? EMPTY : new BandIds(ids, null);
+    }
+
+    /**
+     * A copy of the IDs in the buffer, e.g. to cache a result that was read into it.
+     */
+    public static BandIds copyOf(BandIdBuffer results) {
+        if (results.isEmpty()) {
+            return EMPTY;
+        }
+        int[] ids = new int[results.size()];
+        int escapedCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = results.getPacked(i);
+            if (ids[i] < 0) {
+                escapedCount++;
+            }
+        }
+        String[] escaped = null;
+        if (escapedCount > 0) {
+            // Both number the escaped ones in the order they were added.
+            escaped = new String[escapedCount];
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] < 0) {
+                    escaped[-ids[i] - 1] = results.get(i);
+                }
+            }
+        }
+        return new BandIds(ids, escaped);
+    }
+
+    /**
+     * Returns a new BandIds with the ID appended.
+     */
+    public BandIds with(String id) {
+        int[] newIds = Arrays.copyOf(ids, ids.length + 1);
+        String[] newEscaped = escaped;
+        int packed = BandIdCodec.encode(id);
+        if (packed == BandIdCodec.NOT_PACKABLE) {
+            int escapedCount = escaped == null ? 0 : escaped.length;
+            newEscaped = escaped == null ? new String[1] : Arrays.copyOf(escaped, escapedCount + 1);
+            newEscaped[escapedCount] = id;
+            packed = -(escapedCount + 1);
+        }
+        newIds[ids.length] = packed;
+        return new BandIds(newIds, newEscaped);
+    }
+
+    /**
+     * Returns a new BandIds with all the IDs of this one followed by all of the other one.
+     */
+    public BandIds with(BandIds other) {
+        if (isEmpty()) {
+            return other;
+        }
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (escaped == null && other.escaped == null) {
+            int[] newIds = Arrays.copyOf(ids, ids.length + other.ids.length);
+            System.arraycopy(other.ids, 0, newIds, ids.length, other.ids.length);
+            return new BandIds(newIds, null);
+        }
+        BandIds result = this;
+        for (int i = 0; i < other.size(); i++) {
+            result = result.with(other.get(i));
+        }
+        return result;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    /**
+     * The packed value of the i-th ID, negative if it's an escaped one.
+     */
+    public int getPacked(int i) {
+        return ids[i];
+    }
+
+    public String get(int i) {
+        int packed = ids[i];
+        return packed >= 0 ? BandIdCodec.decode(packed) : escaped[-packed - 1];
+    }
+
+    /**
+     * List view that decodes each ID as it's accessed.
+     */
+    public List<String> asList() {
+        if (isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return BandIds.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+    }
+
+    /**
+     * Rough heap footprint, for caches that are bounded by size.
+     */
+    public int estimateBytes() {
+        int bytes = 32 + 16 + 4 * ids.length;
+        if (escaped != null) {
+            for (String id : escaped) {
+                bytes += 56 + 2 * id.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Serialized as a varint count, the packed ints, and then the escaped IDs (if any) with writeUTF.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeVarInt(out, ids.length);
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+        if (escaped != null) {
+            for (String id : escaped) {
+                out.writeUTF(id);
+            }
+        }
+    }
+
+    public static BandIds readFrom(DataInput in) throws IOException {
+        int count = readVarInt(in);
+        if (count == 0) {
+            return EMPTY;
+        }
+        int[] ids = new int[count];
+        int escapedCount = 0;
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.readInt();
+            if (ids[i] < 0) {
+                escapedCount++;
+            }
+        }
+        String[] escaped = null;
+        if (escapedCount > 0) {
+            escaped = new String[escapedCount];
+            for (int i = 0; i < escapedCount; i++) {
+                escaped[i] = in.readUTF();
+            }
+        }
+        return new BandIds(ids, escaped);
+    }
+
+    /**
+     * Same as above, straight from the buffer at the given offset (with absolute gets, the
+     * buffer's position is left alone), e.g. a memory-mapped segment.
+     */
+    public static BandIds readFrom(ByteBuffer buffer, int offset) throws IOException {
+        try {
+            int count = readVarInt(buffer, offset);
+            if (count == 0) {
+                return EMPTY;
+            }
+            int position = offset + varIntLength(count);
+            int[] ids = new int[count];
+            int escapedCount = 0;
+            for (int i = 0; i < count; i++) {
+                ids[i] = buffer.getInt(position);
+                position += 4;
+                if (ids[i] < 0) {
+                    escapedCount++;
+                }
+            }
+            String[] escaped = null;
+            if (escapedCount > 0) {
+                escaped = new String[escapedCount];
+                for (int i = 0; i < escapedCount; i++) {
+                    escaped[i] = readUTF(buffer, position);
+                    position += 2 + (buffer.getShort(position) & 0xffff);
+                }
+            }
+            return new BandIds(ids, escaped);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated IDs at offset " + offset, e);
+        }
+    }
+
+    /**
+     * Same again, but adds the IDs to the buffer instead of allocating a BandIds for them,
+     * and returns how many there were.
+     */
+    public static int readFrom(ByteBuffer buffer, int offset, BandIdBuffer results) throws IOException {
+        try {
+            int count = readVarInt(buffer, offset);
+            int position = offset + varIntLength(count);
+            int escapedPosition = position + 4 * count;
+            for (int i = 0; i < count; i++) {
+                int packed = buffer.getInt(position + 4 * i);
+                if (packed >= 0) {
+                    results.addPacked(packed);
+                } else {
+                    // Escaped ones are in the same order as their ints.
+                    results.add(readUTF(buffer, escapedPosition));
+                    escapedPosition += 2 + (buffer.getShort(escapedPosition) & 0xffff);
+                }
+            }
+            return count;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated IDs at offset " + offset, e);
+        }
+    }
+
+    /**
+     * How many bytes the IDs serialized at the offset take, to skip over them.
+     */
+    public static int length(ByteBuffer buffer, int offset) throws IOException {
+        int count = readVarInt(buffer, offset);
+        int position = offset + varIntLength(count);
+        int end = position + 4 * count;
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(position + 4 * i) < 0) {
+                end += 2 + (buffer.getShort(end) & 0xffff);
+            }
+        }
+        return end - offset;
+    }
+
+    private static int readVarInt(ByteBuffer buffer, int offset) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get(offset++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    // Hardly ever needed, so these just go through readUTF.
+    private static String readUTF(ByteBuffer buffer, int position) throws IOException {
+        byte[] bytes = new byte[2 + (buffer.getShort(position) & 0xffff)];
+        buffer.get(position, bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BandIds)) {
+            return false;
+        }
+        BandIds other = (BandIds) o;
+        return Arrays.equals(ids, other.ids) && Arrays.equals(escaped, other.escaped);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(ids) + Arrays.hashCode(escaped);
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+}
@@ -1,44 +1,159 @@
 package com.mjuarez.pandora.utils;
 
-import java.util.BitSet;
-
-import static com.mjuarez.pandora.utils.Utils.crc32MultiHash;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
- * Basic implementation of a bloom filter for caching results
- * Uses modified CRC32 multiple-hashing to get the job done.
- * For a production environment, I'd probably use an FNV or Murmur variant
+ * Blocked bloom filter for caching results.
+ *
+ * The bits are split into 512-bit blocks, the size of a cache line, and all the bits for a
+ * key are set in the same block, so a lookup costs a single cache miss instead of one per
+ * hash.  The block and the bit positions all come from one 64-bit hash of the key's chars
+ * (no getBytes() per probe), using double hashing for the k bit positions.
+ *
+ * The filter is sized from the number of keys it's expected to hold and the target false
+ * positive rate.  Blocking costs some accuracy compared to a plain bloom filter, more so
+ * at low rates, so it gets extra bits on top of the textbook formula (see blockingOverhead).
+ *
+ * Bits live in a long[], which is saved as-is and loaded back by memory-mapping the file
+ * and bulk-copying it, so there is no per-key work on startup.
  */
-public class BloomFilter <K> {
-    private final BitSet bitSet;
+public class BloomFilter {
+    private static final int MAGIC = 0x50424c4d;  // "PBLM"
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * 64;
+    private static final int MAX_HASHES = 16;
+    private static final int HEADER_BYTES = 16;
+
+    private final long[] words;
+    private final int blocks;
     private final int hashes;
-    private final int sizeBits;
 
-    public BloomFilter(int sizeBits, int hashes) {
-        this.bitSet = new BitSet(sizeBits);
-        this.sizeBits = sizeBits;
-        this.hashes = hashes;
-        if (hashes < 1) {
-            throw new IllegalArgumentException("Number of hashes has to be positive");
+    public BloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate has to be between 0 and 1");
+        }
+        expectedKeys = Math.max(1, expectedKeys);
+        double overhead = blockingOverhead(falsePositiveRate);
+        double bitsPerKey = overhead * -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long bits = (long) Math.ceil(bitsPerKey * expectedKeys);
+        long blockCount = (bits + BLOCK_BITS - 1) / BLOCK_BITS;
+        if (blockCount > Integer.MAX_VALUE / BLOCK_WORDS) {
+            throw new IllegalArgumentException("Bloom filter for " + expectedKeys + " keys is too large");
         }
+
+        this.blocks = (int) blockCount;
+        this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey / overhead * Math.log(2))));
+        this.words = new long[blocks * BLOCK_WORDS];
     }
 
-    public void add(K key) {
+    private BloomFilter(long[] words, int blocks, int hashes) {
+        this.words = words;
+        this.blocks = blocks;
+        this.hashes = hashes;
+    }
+
+    public void add(String key) {
+        long hash = Utils.charHash64(key);
+        int base = block(hash) * BLOCK_WORDS;
+        long bitHash = Utils.mix64(hash);
+        int h1 = (int) bitHash;
+        int h2 = (int) (bitHash >>> 32) | 1;
         for (int i = 0; i < hashes; i++) {
-            bitSet.set(getBit(crc32MultiHash(key.toString(), i)));
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            words[base + (bit >>> 6)] |= 1L << bit;
         }
     }
 
-    public boolean maybeContains(K key) {
+    public boolean maybeContains(String key) {
+        long hash = Utils.charHash64(key);
+        int base = block(hash) * BLOCK_WORDS;
+        long bitHash = Utils.mix64(hash);
+        int h1 = (int) bitHash;
+        int h2 = (int) (bitHash >>> 32) | 1;
         for (int i = 0; i < hashes; i++) {
-            if (!bitSet.get(getBit(crc32MultiHash(key.toString(), i)))) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
                 return false;
             }
         }
         return true;
     }
 
-    private int getBit(long hashValue) {
-        return (int) (hashValue % sizeBits);
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+
+    public long getSizeBytes() {
+        return 8L * words.length;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Writes the filter parameters and bits to the given file.
+     */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(blocks);
+            out.writeInt(hashes);
+            out.writeInt(0);  // padding, so the bits start 8-byte aligned
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads a filter saved with save(), by memory-mapping the file and bulk-copying the bits.
+     */
+    public static BloomFilter load(File file) throws IOException {
+        RandomAccessFile roFile = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = roFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, roFile.length());
+            if (roFile.length() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a bloom filter file: " + file);
+            }
+            int blocks = buffer.getInt();
+            int hashes = buffer.getInt();
+            if (blocks <= 0 || hashes <= 0 || hashes > MAX_HASHES
+                    || roFile.length() != HEADER_BYTES + 8L * BLOCK_WORDS * blocks) {
+                throw new IOException("Bloom filter file " + file + " is corrupt");
+            }
+            long[] words = new long[blocks * BLOCK_WORDS];
+            ((ByteBuffer) buffer.position(HEADER_BYTES)).asLongBuffer().get(words);
+            return new BloomFilter(words, blocks, hashes);
+        } finally {
+            roFile.close();
+        }
+    }
+
+    /**
+     * Extra bits needed to make up for the uneven load of the blocks, measured at 1M keys:
+     * ~10% at a 1% false positive rate, ~40% at 0.1%.
+     */
+    private static double blockingOverhead(double falsePositiveRate) {
+        return 1.1 + 0.3 * Math.max(0, Math.log10(0.01 / falsePositiveRate));
+    }
+
+    /**
+     * Multiply-shift range reduction of the high 32 bits of the hash, cheaper than a modulo.
+     */
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32);
     }
 }
@@ -0,0 +1,22 @@
+package com.mjuarez.pandora.utils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounded cache fronting the disk index.  Implementations have to be thread-safe.
+ */
+public interface Cache<K, V> {
+    V get(K key);
+    boolean put(K key, V value);
+    void remove(K key);
+    void clear();
+
+    /**
+     * Up to limit of the keys in the cache, the ones it would keep longest first, to save
+     * the hot set across restarts.  Caches without an order to go by don't have any.
+     */
+    default List<K> hottest(int limit) {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,67 @@
+package com.mjuarez.pandora.utils;
+
+/**
+ * Edit distance for typos: insertions, deletions and substitutions of single chars, and
+ * swaps of two adjacent ones ("teh"), all counting as one edit (the "optimal string
+ * alignment" variant of Damerau-Levenshtein).  Bounded: only the diagonal band of the
+ * matrix within the bound is computed, and it gives up as soon as a whole row is over it,
+ * so checking a candidate that's way off is cheap.
+ */
+public final class EditDistance {
+    private EditDistance() {
+    }
+
+    /**
+     * The distance between the two strings, or max + 1 if it's more than max.
+     */
+    public static int bounded(CharSequence left, CharSequence right, int max) {
+        if (left.length() > right.length()) {
+            CharSequence swap = left;
+            left = right;
+            right = swap;
+        }
+        int m = left.length();
+        int n = right.length();
+        if (n - m > max) {
+            return max + 1;
+        }
+
+        int outside = max + 1;
+        int[] beforePrevious = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int i = 0; i <= m; i++) {
+            previous[i] = i <= max ? i : outside;
+        }
+        for (int j = 1; j <= n; j++) {
+            int from = Math.max(1, j - max);
+            int to = Math.min(m, j + max);
+            current[0] = j <= max ? j : outside;
+            if (from > 1) {
+                current[from - 1] = outside;
+            }
+            int rowMin = current[0];
+            char c = right.charAt(j - 1);
+            for (int i = from; i <= to; i++) {
+                int cost = left.charAt(i - 1) == c ? 0 : 1;
+                int value = Math.min(previous[i - 1] + cost, Math.min(previous[i], current[i - 1]) + 1);
+                if (i > 1 && j > 1 && left.charAt(i - 1) == right.charAt(j - 2) && left.charAt(i - 2) == c) {
+                    value = Math.min(value, beforePrevious[i - 2] + 1);
+                }
+                current[i] = Math.min(value, outside);
+                rowMin = Math.min(rowMin, current[i]);
+            }
+            if (to < m) {
+                current[to + 1] = outside;
+            }
+            if (rowMin > max) {
+                return outside;
+            }
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[m], outside);
+    }
+}
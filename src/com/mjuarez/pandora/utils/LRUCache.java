@@ -1,7 +1,12 @@
 package com.mjuarez.pandora.utils;
 
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -11,7 +16,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Basic implementation of an LRU cache for fronting heavily requested queries
  * Made thread-safe by using ReentrantReadWriteLock.
  */
-public class LRUCache<K, V> {
+public class LRUCache<K, V> implements Cache<K, V> {
     private final Map<K, V> cache;
     private final Deque<K> list;
     private final int maxSize;
@@ -26,6 +31,7 @@ public class LRUCache<K, V> {
         this.maxSize = maxSize;
     }
 
+    @Override
     public V get(K key) {
         V result = null;
         try {
@@ -52,6 +58,7 @@ public class LRUCache<K, V> {
         return result;
     }
 
+    @Override
     public boolean put(K key, V value) {
         boolean result = false;
         lock.writeLock().lock();
@@ -71,4 +78,48 @@ public class LRUCache<K, V> {
         }
         return result;
     }
+
+    @Override
+    public void remove(K key) {
+        lock.writeLock().lock();
+        try {
+            cache.remove(key);
+            list.remove(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Most recently used first.
+     */
+    @Override
+    public List<K> hottest(int limit) {
+        Set<K> keys = new LinkedHashSet<K>();
+        lock.readLock().lock();
+        try {
+            // The list can have the same key more than once, its last one is what counts.
+            Iterator<K> iterator = list.descendingIterator();
+            while (iterator.hasNext() && keys.size() < limit) {
+                K key = iterator.next();
+                if (cache.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<K>(keys);
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            cache.clear();
+            list.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 }
@@ -0,0 +1,242 @@
+package com.mjuarez.pandora.utils;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A named set of counters (LongAdders, striped, so the hot path never contends on them)
+ * and LatencyHistograms, exposed as a JMX MBean and as a text dump.
+ *
+ * Counters and histograms are created up front by their owner, which keeps the references
+ * and records into them directly, so there are no map lookups when recording.  Over JMX
+ * each counter is an attribute, and each histogram is a set of them (count, mean, p50,
+ * p99, p99.9 and max, in microseconds), plus "reset" and "dump" operations.
+ */
+public class Metrics implements DynamicMBean {
+    private static final String[] HISTOGRAM_STATS = {"Count", "MeanMicros", "P50Micros", "P99Micros", "P999Micros", "MaxMicros"};
+
+    private final String name;
+    private final Map<String, LongAdder> counters = new LinkedHashMap<String, LongAdder>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+    private ObjectName objectName;
+    private ScheduledExecutorService dumper;
+
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public synchronized LongAdder counter(String counterName) {
+        LongAdder counter = counters.get(counterName);
+        if (counter == null) {
+            counter = new LongAdder();
+            counters.put(counterName, counter);
+        }
+        return counter;
+    }
+
+    public synchronized LatencyHistogram histogram(String histogramName) {
+        LatencyHistogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(histogramName, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers the MBean as com.mjuarez.pandora:type=[name], replacing any previous one
+     * with the same name (an index that was opened again, say).
+     */
+    public synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName newName = new ObjectName("com.mjuarez.pandora:type=" + name);
+            if (server.isRegistered(newName)) {
+                server.unregisterMBean(newName);
+            }
+            server.registerMBean(this, newName);
+            objectName = newName;
+        } catch (Exception e) {
+            Utils.log("Unable to register the " + name + " metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Logs a dump of all the metrics every so many seconds, from a daemon thread.
+     */
+    public synchronized void startDumping(long periodSeconds) {
+        if (periodSeconds <= 0 || dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pandora-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Utils.log(dump());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                Utils.log("Unable to unregister the " + name + " metrics", e);
+            }
+            objectName = null;
+        }
+    }
+
+    public synchronized void reset() {
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * All the metrics on one line per histogram, e.g.
+     * "DiskIndex metrics: bloomRejects=10 cacheHits=3 ... | diskLatency: count=5 mean=12.3us p50=10.2us ..."
+     */
+    public synchronized String dump() {
+        StringBuilder dump = new StringBuilder(name).append(" metrics:");
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            dump.append(' ').append(counter.getKey()).append('=').append(counter.getValue().sum());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = histogram.getValue().snapshot();
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            dump.append(" | ").append(histogram.getKey())
+                    .append(": count=").append(snapshot.getCount())
+                    .append(String.format(" mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                            snapshot.getMean() / 1000, snapshot.getPercentile(50) / 1000.0,
+                            snapshot.getPercentile(99) / 1000.0, snapshot.getPercentile(99.9) / 1000.0,
+                            snapshot.getMax() / 1000.0));
+        }
+        return dump.toString();
+    }
+
+    @Override
+    public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongAdder counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.sum();
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            if (!attribute.startsWith(histogram.getKey())) {
+                continue;
+            }
+            String stat = attribute.substring(histogram.getKey().length());
+            LatencyHistogram.Snapshot snapshot = histogram.getValue().snapshot();
+            if ("Count".equals(stat)) {
+                return snapshot.getCount();
+            } else if ("MeanMicros".equals(stat)) {
+                return snapshot.getMean() / 1000;
+            } else if ("P50Micros".equals(stat)) {
+                return snapshot.getPercentile(50) / 1000.0;
+            } else if ("P99Micros".equals(stat)) {
+                return snapshot.getPercentile(99) / 1000.0;
+            } else if ("P999Micros".equals(stat)) {
+                return snapshot.getPercentile(99.9) / 1000.0;
+            } else if ("MaxMicros".equals(stat)) {
+                return snapshot.getMax() / 1000.0;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the interface says.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        if ("dump".equals(actionName)) {
+            return dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public synchronized MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String counter : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+        }
+        for (String histogram : histograms.keySet()) {
+            for (String stat : HISTOGRAM_STATS) {
+                String type = "Count".equals(stat) ? "long" : "double";
+                attributes.add(new MBeanAttributeInfo(histogram + stat, type, histogram + " " + stat, true, false, false));
+            }
+        }
+        MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("reset", "Resets all the counters and histograms",
+                        new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+                new MBeanOperationInfo("dump", "All the metrics as text",
+                        new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+        };
+        return new MBeanInfo(getClass().getName(), name + " metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, new MBeanNotificationInfo[0]);
+    }
+}
@@ -0,0 +1,264 @@
+package com.mjuarez.pandora.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Minimal perfect hash over a fixed set of 64-bit key hashes: maps each of the n keys to
+ * its own slot in [0, n), with no collisions and nothing stored per key, in about 4 bits
+ * per key.  Keys that aren't in the set map to some slot too, so the caller has to check
+ * what it finds there.
+ *
+ * Built the PTHash way (a cousin of CHD, hash and displace): the keys are split into buckets
+ * of LAMBDA keys on average, and the buckets, biggest first, each get the smallest "pilot"
+ * that sends all their keys to free positions, out of a table a bit bigger than n (load
+ * ALPHA), which leaves only a small search for the last buckets.  Positions past n are then
+ * moved to the free ones before n, through a small remap table, so it's minimal.  A lookup is
+ * the bucket's pilot, one hash, and the remap for the few that need it.
+ *
+ * Pilots are stored in 16 bits, with the odd bigger one in a sorted table of exceptions.
+ * Everything is read straight from a ByteBuffer, see read(), so it can be memory mapped.
+ *
+ * Layout: key count (long), table size (long), bucket count (int), exception count (int),
+ * the pilots (shorts), the exceptions (bucket and pilot ints), and the remap table (ints,
+ * one per position past the key count).
+ */
+public class MinimalPerfectHash {
+    private static final int LAMBDA = 5;
+    private static final double ALPHA = 0.98;
+    private static final int HEADER_BYTES = 24;
+    private static final int ESCAPED_PILOT = 0xffff;
+    private static final long PILOT_SEED = 0x5bd1e9955bd1e995L;
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final long keyCount;
+    private final long tableSize;
+    private final int bucketCount;
+    private final int exceptionCount;
+    private final int exceptionsOffset;
+    private final int remapOffset;
+
+    private MinimalPerfectHash(ByteBuffer buffer, int offset) throws IOException {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.keyCount = buffer.getLong(offset);
+        this.tableSize = buffer.getLong(offset + 8);
+        this.bucketCount = buffer.getInt(offset + 16);
+        this.exceptionCount = buffer.getInt(offset + 20);
+        this.exceptionsOffset = offset + HEADER_BYTES + 2 * bucketCount;
+        this.remapOffset = exceptionsOffset + 8 * exceptionCount;
+        if (keyCount < 0 || tableSize < keyCount || bucketCount < 0 || exceptionCount < 0
+                || (long) remapOffset + 4 * (tableSize - keyCount) > buffer.limit()) {
+            throw new IOException("Corrupt perfect hash");
+        }
+    }
+
+    /**
+     * The perfect hash stored at the offset of the buffer, as written by writeTo().
+     */
+    public static MinimalPerfectHash read(ByteBuffer buffer, int offset) throws IOException {
+        return new MinimalPerfectHash(buffer, offset);
+    }
+
+    /**
+     * Builds it over the first count hashes (which are left alone).  Returns null if two of
+     * them are the same, so the caller can try again with differently seeded hashes.
+     */
+    public static MinimalPerfectHash build(long[] hashes, int count) {
+        long tableSize = count == 0 ? 0 : Math.max(count, (long) Math.ceil(count / ALPHA));
+        int bucketCount = Math.max(1, (count + LAMBDA - 1) / LAMBDA);
+
+        // Counting sort of the hashes by bucket.
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (int i = 0; i < count; i++) {
+            bucketStarts[bucketOf(hashes[i], bucketCount) + 1]++;
+        }
+        int maxBucketSize = 0;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStarts[bucket + 1]);
+            bucketStarts[bucket + 1] += bucketStarts[bucket];
+        }
+        long[] sorted = new long[count];
+        int[] filled = Arrays.copyOf(bucketStarts, bucketCount);
+        for (int i = 0; i < count; i++) {
+            sorted[filled[bucketOf(hashes[i], bucketCount)]++] = hashes[i];
+        }
+        filled = null;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            Arrays.sort(sorted, bucketStarts[bucket], bucketStarts[bucket + 1]);
+            for (int i = bucketStarts[bucket] + 1; i < bucketStarts[bucket + 1]; i++) {
+                if (sorted[i] == sorted[i - 1]) {
+                    return null;
+                }
+            }
+        }
+
+        // Biggest buckets first, while there's still lots of room.
+        int[] sizeStarts = new int[maxBucketSize + 2];
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            sizeStarts[maxBucketSize - (bucketStarts[bucket + 1] - bucketStarts[bucket]) + 1]++;
+        }
+        for (int size = 0; size <= maxBucketSize; size++) {
+            sizeStarts[size + 1] += sizeStarts[size];
+        }
+        int[] order = new int[bucketCount];
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            order[sizeStarts[maxBucketSize - (bucketStarts[bucket + 1] - bucketStarts[bucket])]++] = bucket;
+        }
+
+        long[] taken = new long[(int) ((tableSize + 63) >>> 6)];
+        int[] pilots = new int[bucketCount];
+        long[] positions = new long[maxBucketSize];
+        List<int[]> exceptions = new ArrayList<int[]>();
+        for (int bucket : order) {
+            int start = bucketStarts[bucket];
+            int size = bucketStarts[bucket + 1] - start;
+            if (size == 0) {
+                break;
+            }
+            for (int pilot = 0; ; pilot++) {
+                long pilotHash = pilotHash(pilot);
+                boolean fits = true;
+                for (int i = 0; i < size && fits; i++) {
+                    long position = position(sorted[start + i], pilotHash, tableSize);
+                    fits = (taken[(int) (position >>> 6)] & (1L << position)) == 0;
+                    for (int j = 0; j < i && fits; j++) {
+                        fits = positions[j] != position;
+                    }
+                    positions[i] = position;
+                }
+                if (fits) {
+                    for (int i = 0; i < size; i++) {
+                        taken[(int) (positions[i] >>> 6)] |= 1L << positions[i];
+                    }
+                    pilots[bucket] = pilot;
+                    if (pilot >= ESCAPED_PILOT) {
+                        exceptions.add(new int[] {bucket, pilot});
+                    }
+                    break;
+                }
+            }
+        }
+        sorted = null;
+
+        // Every position taken past the key count goes to one of the free ones before it.
+        int[] remap = new int[(int) (tableSize - count)];
+        long free = 0;
+        for (long position = count; position < tableSize; position++) {
+            if ((taken[(int) (position >>> 6)] & (1L << position)) != 0) {
+                while ((taken[(int) (free >>> 6)] & (1L << free)) != 0) {
+                    free++;
+                }
+                remap[(int) (position - count)] = (int) free++;
+            }
+        }
+
+        int[][] sortedExceptions = exceptions.toArray(new int[exceptions.size()][]);
+        Arrays.sort(sortedExceptions, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] left, int[] right) {
+                return Integer.compare(left[0], right[0]);
+            }
+        });
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 2 * bucketCount + 8 * sortedExceptions.length
+                + 4 * remap.length);
+        buffer.putLong(count);
+        buffer.putLong(tableSize);
+        buffer.putInt(bucketCount);
+        buffer.putInt(sortedExceptions.length);
+        for (int pilot : pilots) {
+            buffer.putShort((short) Math.min(pilot, ESCAPED_PILOT));
+        }
+        for (int[] exception : sortedExceptions) {
+            buffer.putInt(exception[0]);
+            buffer.putInt(exception[1]);
+        }
+        for (int position : remap) {
+            buffer.putInt(position);
+        }
+        buffer.flip();
+        try {
+            return new MinimalPerfectHash(buffer, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Built a corrupt perfect hash", e);
+        }
+    }
+
+    public long size() {
+        return keyCount;
+    }
+
+    /**
+     * Bytes it takes, wherever it's stored.
+     */
+    public int getByteCount() {
+        return remapOffset + 4 * (int) (tableSize - keyCount) - offset;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        byte[] chunk = new byte[64 << 10];
+        int byteCount = getByteCount();
+        for (int written = 0; written < byteCount; written += chunk.length) {
+            int length = Math.min(chunk.length, byteCount - written);
+            buffer.get(offset + written, chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    /**
+     * The slot of a key in the set, in [0, size()), or -1 if the set is empty.  A key that
+     * isn't in it gets some slot anyway.
+     */
+    public long slot(long hash) {
+        if (keyCount == 0) {
+            return -1;
+        }
+        int bucket = bucketOf(hash, bucketCount);
+        int pilot = buffer.getShort(offset + HEADER_BYTES + 2 * bucket) & 0xffff;
+        if (pilot == ESCAPED_PILOT) {
+            pilot = findException(bucket);
+        }
+        long position = position(hash, pilotHash(pilot), tableSize);
+        if (position >= keyCount) {
+            position = buffer.getInt(remapOffset + 4 * (int) (position - keyCount)) & 0xffffffffL;
+        }
+        return position;
+    }
+
+    private int findException(int bucket) {
+        int low = 0;
+        int high = exceptionCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int found = buffer.getInt(exceptionsOffset + 8 * middle);
+            if (found < bucket) {
+                low = middle + 1;
+            } else if (found > bucket) {
+                high = middle - 1;
+            } else {
+                return buffer.getInt(exceptionsOffset + 8 * middle + 4);
+            }
+        }
+        throw new IllegalStateException("Corrupt perfect hash, no pilot for bucket " + bucket);
+    }
+
+    // Both scale 32 random bits to the range, instead of taking a remainder.
+    private static int bucketOf(long hash, int bucketCount) {
+        return (int) (((hash >>> 32) * bucketCount) >>> 32);
+    }
+
+    private static long position(long hash, long pilotHash, long tableSize) {
+        return ((Utils.mix64(hash ^ pilotHash) >>> 32) * tableSize) >>> 32;
+    }
+
+    private static long pilotHash(int pilot) {
+        return Utils.mix64(pilot + PILOT_SEED);
+    }
+}
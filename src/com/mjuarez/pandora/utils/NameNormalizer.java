@@ -0,0 +1,62 @@
+package com.mjuarez.pandora.utils;
+
+import java.text.Normalizer;
+
+/**
+ * Reduces a band name to the form people don't care about getting right: compatibility
+ * decomposition (NFKD, so ligatures and full-width letters become plain letters), without
+ * accents (the combining marks NFKD splits off), case folded, without punctuation, and
+ * with the whitespace collapsed to single spaces.  So "The Beatles", "the  beatles" and
+ * "THE BEATLES!" are all "the beatles", and Motorhead with or without its umlaut is
+ * "motorhead".
+ */
+public final class NameNormalizer {
+    private NameNormalizer() {
+    }
+
+    public static String normalize(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFKD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < decomposed.length(); ) {
+            int codePoint = decomposed.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (Character.isWhitespace(codePoint) || Character.isSpaceChar(codePoint)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (isMark(codePoint) || isPunctuation(codePoint)) {
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            // Upper and then lower case, so letters with several lower case forms end up the same.
+            normalized.appendCodePoint(Character.toLowerCase(Character.toUpperCase(codePoint)));
+        }
+        return normalized.toString();
+    }
+
+    private static boolean isMark(int codePoint) {
+        int type = Character.getType(codePoint);
+        return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isPunctuation(int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package com.mjuarez.pandora.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache with a W-TinyLFU admission/eviction policy, meant to replace the
+ * LRUCache on the hot path.
+ *
+ * Reads never take a lock: the value comes straight out of a ConcurrentHashMap, and the
+ * access is only recorded in a small striped ring buffer (one per group of threads).
+ * Those buffers are lossy, if one is full the access is simply dropped, which only makes
+ * the policy slightly less accurate.  Whoever fills a buffer past a threshold tries to
+ * take the eviction lock and replays the buffered accesses; if someone else is already
+ * doing it, it just moves on.  Writes are queued too, and applied under the same lock.
+ * Every policy operation is O(1), on intrusive doubly linked lists.
+ *
+ * The policy itself:
+ * - New entries go into a small LRU "window" (1% of the capacity), so bursts of new keys
+ *   get a chance to build up some frequency.
+ * - Entries leaving the window become candidates for the main area, which is a segmented
+ *   LRU (probation and protected, 80% of it protected).  A candidate is only admitted if
+ *   it's been seen more often than the probation entry it would evict, according to a
+ *   CountMin sketch of recent access frequencies (with periodic aging).
+ * So a scan of one-hit-wonder queries can't flush the popular bands out of the cache.
+ *
+ * The capacity is in "weight": with no Weigher every entry weighs 1, so it's a maximum
+ * number of entries, or a Weigher can return the approximate size in bytes.
+ */
+public class TinyLfuCache<K, V> implements Cache<K, V> {
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+    private static final int WRITE_DRAIN_THRESHOLD = 16;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int NONE = -1;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final Weigher<K, V> weigher;
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final ConcurrentLinkedQueue<Node<K, V>> writeBuffer = new ConcurrentLinkedQueue<Node<K, V>>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // Everything below is only touched while holding the eviction lock.
+    private final FrequencySketch sketch;
+    private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+
+    public TinyLfuCache(int maximumEntries) {
+        this(maximumEntries, null, maximumEntries);
+    }
+
+    /**
+     * @param maximumWeight   bound on the total weight of the entries
+     * @param weigher         weight of each entry, null to count entries
+     * @param expectedEntries rough number of entries that fit, to size the frequency sketch
+     */
+    @SuppressWarnings("unchecked")
+    public TinyLfuCache(long maximumWeight, Weigher<K, V> weigher, int expectedEntries) {
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException("Maximum weight has to be positive");
+        }
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+        this.weigher = weigher;
+        this.data = new ConcurrentHashMap<K, Node<K, V>>(Math.max(16, expectedEntries));
+        this.sketch = new FrequencySketch(Math.max(16, expectedEntries));
+
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2) - 1) << 1;
+        this.readBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer<K, V>();
+        }
+    }
+
+    @Override
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        int weight = weigher == null ? 1 : Math.max(1, weigher.weigh(key, value));
+        Node<K, V> node = new Node<K, V>(key, value, weight);
+        Node<K, V> prior = data.putIfAbsent(key, node);
+        if (prior != null) {
+            // Update in place, the policy picks up the new weight when it replays the write.
+            synchronized (prior) {
+                prior.value = value;
+                prior.weight = weight;
+            }
+            node = prior;
+        }
+        writeBuffer.add(node);
+        drain();
+        return true;
+    }
+
+    @Override
+    public void remove(K key) {
+        Node<K, V> node = data.remove(key);
+        if (node != null) {
+            node.removed = true;
+            writeBuffer.add(node);
+            drain();
+        }
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (K key : data.keySet()) {
+                remove(key);
+            }
+            drainBuffers();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * The protected entries first, then the window and then probation, the most recently
+     * used first within each.
+     */
+    @Override
+    public List<K> hottest(int limit) {
+        List<K> keys = new ArrayList<K>();
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            addMostRecent(protectedQueue, keys, limit);
+            addMostRecent(window, keys, limit);
+            addMostRecent(probation, keys, limit);
+        } finally {
+            evictionLock.unlock();
+        }
+        return keys;
+    }
+
+    // Callers hold the eviction lock.
+    private static <K, V> void addMostRecent(AccessQueue<K, V> queue, List<K> keys, int limit) {
+        for (Node<K, V> node = queue.peekLast(); node != null && keys.size() < limit; node = node.previous) {
+            keys.add(node.key);
+        }
+    }
+
+    /**
+     * Total weight of the entries, as seen by the policy (pending writes not included).
+     */
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) mixThread() & (readBuffers.length - 1)];
+        long tail = buffer.writeCounter.get();
+        long pending = tail - buffer.readCounter;
+        if (pending >= READ_BUFFER_SIZE) {
+            tryDrain();
+            return;
+        }
+        if (buffer.writeCounter.compareAndSet(tail, tail + 1)) {
+            buffer.nodes.lazySet((int) tail & READ_BUFFER_MASK, node);
+            if (pending + 1 >= DRAIN_THRESHOLD) {
+                tryDrain();
+            }
+        }
+    }
+
+    private static long mixThread() {
+        return Utils.mix64(Thread.currentThread().getId());
+    }
+
+    private void tryDrain() {
+        if (evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes have to be applied for the cache to stay bounded, so they wait for the lock,
+     * unless there are only a few queued and someone else is already draining.
+     */
+    private void drain() {
+        if (evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        } else if (writeBuffer.size() > WRITE_DRAIN_THRESHOLD) {
+            evictionLock.lock();
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            drainReadBuffer(buffer);
+        }
+        Node<K, V> node;
+        while ((node = writeBuffer.poll()) != null) {
+            onWrite(node);
+        }
+        evict();
+    }
+
+    private void drainReadBuffer(ReadBuffer<K, V> buffer) {
+        long head = buffer.readCounter;
+        long tail = buffer.writeCounter.get();
+        for (; head < tail; head++) {
+            int index = (int) head & READ_BUFFER_MASK;
+            Node<K, V> node = buffer.nodes.get(index);
+            if (node == null) {
+                // Slot claimed but not written yet, pick it up on the next drain.
+                break;
+            }
+            buffer.nodes.lazySet(index, null);
+            onRead(node);
+        }
+        buffer.readCounter = head;
+    }
+
+    private void onRead(Node<K, V> node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedQueue.add(node);
+                protectedWeight += node.policyWeight;
+                // Make room in protected by demoting its least recently used entries.
+                while (protectedWeight > protectedMaximum) {
+                    Node<K, V> demoted = protectedQueue.poll();
+                    protectedWeight -= demoted.policyWeight;
+                    demoted.queue = PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedQueue.moveToBack(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onWrite(Node<K, V> node) {
+        if (node.removed) {
+            unlink(node);
+            return;
+        }
+        if (node.queue == NONE) {
+            if (data.get(node.key) != node) {
+                // Replaced or removed before its write got here.
+                return;
+            }
+            sketch.increment(node.key);
+            node.policyWeight = node.weight;
+            node.queue = WINDOW;
+            window.add(node);
+            windowWeight += node.policyWeight;
+            totalWeight += node.policyWeight;
+            return;
+        }
+
+        int delta = node.weight - node.policyWeight;
+        node.policyWeight = node.weight;
+        totalWeight += delta;
+        if (node.queue == WINDOW) {
+            windowWeight += delta;
+            window.moveToBack(node);
+        } else if (node.queue == PROTECTED) {
+            protectedWeight += delta;
+            protectedQueue.moveToBack(node);
+        } else {
+            probation.moveToBack(node);
+        }
+    }
+
+    /**
+     * Moves the overflow of the window into probation as candidates, and then evicts until
+     * the cache fits, each time keeping whichever of the newest candidate and the oldest
+     * probation entry is used more often.
+     */
+    private void evict() {
+        Node<K, V> candidate = null;
+        while (windowWeight > windowMaximum && window.peek() != null) {
+            candidate = window.poll();
+            windowWeight -= candidate.policyWeight;
+            candidate.queue = PROBATION;
+            probation.add(candidate);
+        }
+
+        while (totalWeight > maximumWeight) {
+            Node<K, V> victim = probation.peek();
+            if (victim == null) {
+                victim = protectedQueue.peek() != null ? protectedQueue.peek() : window.peek();
+                evictNode(victim);
+                continue;
+            }
+            if (candidate == null || candidate.queue != PROBATION || candidate == victim) {
+                evictNode(victim);
+                continue;
+            }
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evictNode(victim);
+            } else {
+                Node<K, V> rejected = candidate;
+                candidate = candidate.previous;
+                evictNode(rejected);
+            }
+        }
+    }
+
+    private void evictNode(Node<K, V> node) {
+        unlink(node);
+        data.remove(node.key, node);
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                windowWeight -= node.policyWeight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedQueue.remove(node);
+                protectedWeight -= node.policyWeight;
+                break;
+            default:
+                return;
+        }
+        totalWeight -= node.policyWeight;
+        node.queue = NONE;
+        node.removed = true;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        volatile int weight;
+        volatile boolean removed;
+
+        // Guarded by the eviction lock.
+        int policyWeight;
+        int queue = NONE;
+        Node<K, V> previous;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list, least recently used first.
+     */
+    private static final class AccessQueue<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+
+        Node<K, V> peek() {
+            return first;
+        }
+
+        Node<K, V> peekLast() {
+            return last;
+        }
+
+        Node<K, V> poll() {
+            Node<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void add(Node<K, V> node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    private static final class ReadBuffer<K, V> {
+        final AtomicReferenceArray<Node<K, V>> nodes = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        // Only written while holding the eviction lock.
+        volatile long readCounter;
+    }
+
+    /**
+     * CountMin sketch with 4 rows of 4-bit counters (stored one per byte for simplicity).
+     * Once the number of increments reaches 10x the width, all counters are halved, so
+     * old popularity fades out.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(expectedEntries - 1) << 1;
+            this.counters = new byte[ROWS][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(Object key) {
+            long hash = Utils.mix64(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            long hash = Utils.mix64(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(long hash, int row) {
+            return (int) (Utils.mix64(hash + row * 0x9e3779b97f4a7c15L)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >>> 1);
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
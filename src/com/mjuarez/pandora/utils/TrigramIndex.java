@@ -0,0 +1,277 @@
+package com.mjuarez.pandora.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fuzzy matching of names: an in-memory inverted index from the trigrams of the normalized
+ * names (see NameNormalizer) to the names that have them, by their ordinal in some list of
+ * names that's kept elsewhere (see Names), so this only holds the posting lists.
+ *
+ * A query is normalized and split into trigrams the same way, and the names that share
+ * enough of them are the candidates: every edit changes at most 3 trigrams (4 for a swap
+ * of two chars), so a name within distance k of the query shares at least (trigrams - 4k)
+ * of them.  Candidates are then checked with a bounded edit distance on the normalized
+ * forms, most shared trigrams first, until the time budget runs out.  Distance 0 is a name
+ * that's the same once normalized ("the beatles" for "The Beatles").
+ *
+ * Trigrams so common that they'd make most names candidates (more than 1 in
+ * COMMON_TRIGRAM_RATIO of them) are skipped when the rest are enough to go by, and the
+ * threshold is lowered to match.
+ */
+public class TrigramIndex {
+    private static final int COMMON_TRIGRAM_RATIO = 16;
+    private static final int[] NO_POSTINGS = new int[0];
+
+    // Checked even past the deadline, the best candidates are too likely to be the answer.
+    private static final int MIN_CANDIDATES = 16;
+
+    /**
+     * Random access to the names, by ordinal, and iterating them in ordinal order.
+     */
+    public interface Names extends Iterable<String> {
+        int size();
+
+        String get(int ordinal);
+    }
+
+    /**
+     * A name within the distance, with how many trigrams it shares with the query.  Sorted
+     * best first: closest, then most shared trigrams, then by name.
+     */
+    public static class Match implements Comparable<Match> {
+        private final String name;
+        private final int distance;
+        private final int sharedTrigrams;
+
+        Match(String name, int distance, int sharedTrigrams) {
+            this.name = name;
+            this.distance = distance;
+            this.sharedTrigrams = sharedTrigrams;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDistance() {
+            return distance;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            if (distance != other.distance) {
+                return distance - other.distance;
+            }
+            if (sharedTrigrams != other.sharedTrigrams) {
+                return other.sharedTrigrams - sharedTrigrams;
+            }
+            return name.compareTo(other.name);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + distance + ")";
+        }
+    }
+
+    private final Names names;
+    private final Map<Long, int[]> postings;
+
+    private TrigramIndex(Names names, Map<Long, int[]> postings) {
+        this.names = names;
+        this.postings = postings;
+    }
+
+    public static TrigramIndex build(Names names) {
+        Map<Long, Postings> building = new HashMap<Long, Postings>();
+        int ordinal = 0;
+        for (String name : names) {
+            for (long trigram : trigrams(NameNormalizer.normalize(name))) {
+                Postings list = building.get(trigram);
+                if (list == null) {
+                    list = new Postings();
+                    building.put(trigram, list);
+                }
+                list.add(ordinal);
+            }
+            ordinal++;
+        }
+
+        Map<Long, int[]> postings = new HashMap<Long, int[]>(building.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, Postings> entry : building.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return new TrigramIndex(names, postings);
+    }
+
+    public Names getNames() {
+        return names;
+    }
+
+    /**
+     * Edits allowed for a (normalized) query: up to the given maximum, but no more than one
+     * per 3 characters, otherwise short names would match almost anything.
+     */
+    public static int maxDistance(String normalized, int max) {
+        return Math.min(max, normalized.length() / 3);
+    }
+
+    /**
+     * Up to limit names within maxDistance edits of the query (once both are normalized),
+     * best first.  See maxDistance() for a sensible one.  Stops checking candidates at the
+     * deadline (a System.nanoTime() value), and returns the best ones found by then.
+     */
+    public List<Match> find(String query, int limit, int maxDistance, long deadline) {
+        String normalized = NameNormalizer.normalize(query);
+        Set<Long> queryTrigrams = trigrams(normalized);
+        if (queryTrigrams.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<int[]> lists = new ArrayList<int[]>(queryTrigrams.size());
+        for (long trigram : queryTrigrams) {
+            int[] list = postings.get(trigram);
+            lists.add(list != null ? list : NO_POSTINGS);
+        }
+        Collections.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] left, int[] right) {
+                return left.length - right.length;
+            }
+        });
+
+        int threshold = Math.max(1, queryTrigrams.size() - 4 * maxDistance);
+        int common = Math.max(1, names.size() / COMMON_TRIGRAM_RATIO);
+        int used = lists.size();
+        while (used > 1 && lists.get(used - 1).length > common && threshold - 1 >= 1) {
+            used--;
+            threshold--;
+        }
+        int skipped = lists.size() - used;
+
+        // Count, for each candidate, how many of the (used) trigrams it has.
+        int total = 0;
+        for (int i = 0; i < used; i++) {
+            total += lists.get(i).length;
+        }
+        int[] all = new int[total];
+        int position = 0;
+        for (int i = 0; i < used; i++) {
+            System.arraycopy(lists.get(i), 0, all, position, lists.get(i).length);
+            position += lists.get(i).length;
+        }
+        Arrays.sort(all);
+
+        List<long[]> candidates = new ArrayList<long[]>();
+        for (int i = 0; i < all.length; ) {
+            int j = i;
+            while (j < all.length && all[j] == all[i]) {
+                j++;
+            }
+            if (j - i >= threshold) {
+                candidates.add(new long[] {j - i, all[i]});
+            }
+            i = j;
+        }
+        Collections.sort(candidates, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] left, long[] right) {
+                return Long.compare(right[0], left[0]);
+            }
+        });
+
+        List<Match> matches = new ArrayList<Match>();
+        int[] matchesByDistance = new int[maxDistance + 1];
+        int checked = 0;
+        for (long[] candidate : candidates) {
+            if (checked++ >= MIN_CANDIDATES && System.nanoTime() > deadline) {
+                break;
+            }
+            // Candidates come with fewer and fewer shared trigrams, so the least distance
+            // they can be at only goes up, and they'd lose a tie: stop once there are enough
+            // matches at least that close.
+            int missing = queryTrigrams.size() - (int) candidate[0] - skipped;
+            int closest = Math.max(0, (missing + 3) / 4);
+            int asClose = 0;
+            for (int distance = 0; distance <= Math.min(closest, maxDistance); distance++) {
+                asClose += matchesByDistance[distance];
+            }
+            if (asClose >= limit) {
+                break;
+            }
+
+            Match match = match(normalized, names.get((int) candidate[1]), maxDistance, (int) candidate[0]);
+            if (match != null) {
+                matches.add(match);
+                matchesByDistance[match.distance]++;
+            }
+        }
+        Collections.sort(matches);
+        return matches.size() > limit ? new ArrayList<Match>(matches.subList(0, limit)) : matches;
+    }
+
+    /**
+     * Checks a single name against an already normalized query, for names that aren't in
+     * the index (yet).  Returns null if it's further than maxDistance.
+     */
+    public static Match match(String normalizedQuery, String name, int maxDistance) {
+        return match(normalizedQuery, name, maxDistance, -1);
+    }
+
+    private static Match match(String normalizedQuery, String name, int maxDistance, int sharedTrigrams) {
+        String normalizedName = NameNormalizer.normalize(name);
+        int distance = EditDistance.bounded(normalizedQuery, normalizedName, maxDistance);
+        if (distance > maxDistance) {
+            return null;
+        }
+        if (sharedTrigrams < 0) {
+            Set<Long> shared = trigrams(normalizedQuery);
+            shared.retainAll(trigrams(normalizedName));
+            sharedTrigrams = shared.size();
+        }
+        return new Match(name, distance, sharedTrigrams);
+    }
+
+    /**
+     * The distinct trigrams of the string, padded with a space at each end so the first
+     * and last characters count as much as the others.  Three 21-bit code points per long.
+     */
+    static Set<Long> trigrams(String normalized) {
+        Set<Long> trigrams = new LinkedHashSet<Long>();
+        if (normalized.isEmpty()) {
+            return trigrams;
+        }
+        int[] codePoints = (" " + normalized + " ").codePoints().toArray();
+        for (int i = 0; i + 2 < codePoints.length; i++) {
+            trigrams.add(((long) codePoints[i] << 42) | ((long) codePoints[i + 1] << 21) | codePoints[i + 2]);
+        }
+        return trigrams;
+    }
+
+    /**
+     * Growable list of ordinals.  Names are added in ordinal order, so it stays sorted.
+     */
+    private static class Postings {
+        private int[] ordinals = new int[4];
+        private int size = 0;
+
+        void add(int ordinal) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ordinals, size);
+        }
+    }
+}
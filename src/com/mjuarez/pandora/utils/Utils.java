@@ -1,8 +1,11 @@
 package com.mjuarez.pandora.utils;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.zip.CRC32;
 
@@ -15,24 +18,86 @@ public class Utils {
         log(logMessage, null);
     }
 
+    /**
+     * Asynchronous and rate limited, see AsyncLogger.
+     */
     public static void log(String logMessage, Exception exception) {
         String exceptionMessage = (exception != null ? " - Exception: " + exception.getLocalizedMessage() : "");
-
-        // SimpleDateFormat is not thread safe, so need to instantiate one every time we use it.
-        String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(System.currentTimeMillis()));
-        System.out.println(date + " - " + logMessage + exceptionMessage);
+        AsyncLogger.log(logMessage + exceptionMessage);
     }
 
-    public static long crc32Hash(String string, int modNumber) {
+    public static long crc32(File file) throws IOException {
         CRC32 crc32 = new CRC32();
-        crc32.update(string.getBytes());
-        return crc32.getValue() % modNumber;
+        byte[] buffer = new byte[1 << 16];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc32.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc32.getValue();
     }
 
-    public static long crc32MultiHash(String string, int hashes) {
-        CRC32 crc32 = new CRC32();
-        crc32.update(string.getBytes());
-        crc32.update(hashes * 31);
-        return crc32.getValue();
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes of the string, with a final avalanche step
+     * so the high bits are usable too.  Used as the key "fingerprint" in the segment
+     * headers, where 32 bits of CRC would give way too many collisions.
+     */
+    public static long hash64(String string) {
+        return hash64(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static long hash64(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return mix64(hash);
+    }
+
+    /**
+     * Same as hash64, but over the UTF-16 chars of the string, so it doesn't need to encode
+     * it first.  Only for hashes that never need to match one computed from bytes, like the
+     * bloom filter's.
+     */
+    public static long charHash64(String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix64(hash);
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach): the bucket, out of the given number, for a
+     * 64-bit key hash.  Going from n to m buckets only moves the keys that end up in the new
+     * buckets n to m-1, the minimum there is, and no key ever moves between old buckets.
+     */
+    public static int jumpHash(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    /**
+     * MurmurHash3 fmix64 finalizer.
+     */
+    public static long mix64(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
     }
 }
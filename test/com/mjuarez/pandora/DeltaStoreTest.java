@@ -0,0 +1,122 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DeltaStoreTest {
+    // Big enough that nothing is flushed into a run unless the test asks for it.
+    private static final long MEMTABLE_BYTES = 1 << 20;
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void replaysTheLogAfterACrash() throws IOException {
+        DeltaStore deltas = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        deltas.put("Metallica", BandIds.of("/m/04rcr"));
+        deltas.put("Megadeth", BandIds.of("/m/04rcl"));
+        deltas.put("Megadeth", BandIds.EMPTY);
+        // No close(), the process just died.
+
+        DeltaStore recovered = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        assertEquals(Arrays.asList("/m/04rcr"), recovered.get("Metallica").asList());
+        assertTrue(recovered.get("Megadeth").isEmpty());
+        assertNull(recovered.get("Slayer"));
+        recovered.close();
+    }
+
+    @Test
+    public void dropsATornRecordAtTheEndOfTheLog() throws IOException {
+        DeltaStore deltas = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        deltas.put("Metallica", BandIds.of("/m/04rcr"));
+        deltas.put("Megadeth", BandIds.of("/m/04rcl"));
+        deltas.put("Slayer", BandIds.of("/m/07mvp"));
+        File wal = singleWal();
+
+        // The last record only made it halfway to the disk.
+        RandomAccessFile file = new RandomAccessFile(wal, "rw");
+        try {
+            file.setLength(file.length() - 5);
+        } finally {
+            file.close();
+        }
+
+        DeltaStore recovered = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        assertEquals(Arrays.asList("/m/04rcr"), recovered.get("Metallica").asList());
+        assertEquals(Arrays.asList("/m/04rcl"), recovered.get("Megadeth").asList());
+        assertNull(recovered.get("Slayer"));
+
+        // Whatever was replayed is in a run now, and new changes go on top of it.
+        recovered.put("Slayer", BandIds.of("/m/07mvp"));
+        recovered.close();
+        DeltaStore reopened = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        assertEquals(Arrays.asList("/m/04rcl"), reopened.get("Megadeth").asList());
+        assertEquals(Arrays.asList("/m/07mvp"), reopened.get("Slayer").asList());
+        reopened.close();
+    }
+
+    @Test
+    public void ignoresGarbageAfterTheLastRecord() throws IOException {
+        DeltaStore deltas = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        deltas.put("Metallica", BandIds.of("/m/04rcr"));
+        deltas.put("Metallica", BandIds.of("/m/04rcs"));
+
+        // A length and checksum, but the payload never got there.
+        FileOutputStream out = new FileOutputStream(singleWal(), true);
+        try {
+            out.write(new byte[] {0, 0, 0, 42, 1, 2, 3, 4, 'M', 'e'});
+        } finally {
+            out.close();
+        }
+
+        DeltaStore recovered = new DeltaStore(directory, MEMTABLE_BYTES, true);
+        assertEquals(Arrays.asList("/m/04rcs"), recovered.get("Metallica").asList());
+        assertFalse(recovered.isEmpty());
+        recovered.close();
+    }
+
+    @Test
+    public void mergesWithThePendingChange() throws IOException {
+        DeltaStore deltas = new DeltaStore(directory, MEMTABLE_BYTES, false);
+        Function<BandIds, BandIds> addId = new Function<BandIds, BandIds>() {
+            @Override
+            public BandIds apply(BandIds pending) {
+                return pending != null ? pending.with("/m/04rcs") : null;
+            }
+        };
+        deltas.merge("Metallica", addId);
+        assertNull(deltas.get("Metallica"));
+
+        deltas.put("Metallica", BandIds.of("/m/04rcr"));
+        deltas.merge("Metallica", addId);
+        assertEquals(Arrays.asList("/m/04rcr", "/m/04rcs"), deltas.get("Metallica").asList());
+        deltas.close();
+    }
+
+    private File singleWal() {
+        File[] wals = directory.listFiles();
+        File found = null;
+        for (File file : wals) {
+            if (file.getName().startsWith("wal")) {
+                assertNull(found, "more than one write-ahead log");
+                found = file;
+            }
+        }
+        assertNotNull(found, "no write-ahead log");
+        return found;
+    }
+}
@@ -0,0 +1,176 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.Cache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DiskIndexTest {
+    private static final int BANDS = 2_000;
+
+    // Everything the tests set, so it's all put back afterwards.
+    private static final String[] PROPERTIES = {"pandora.indexDir", "pandora.segments", "pandora.walSync",
+            "pandora.warmup", "pandora.hotSetSaveSeconds"};
+
+    @TempDir
+    File directory;
+
+    private File input;
+    private DiskIndex index;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        System.setProperty("pandora.indexDir", new File(directory, "index").getPath());
+        System.setProperty("pandora.segments", "8");
+        System.setProperty("pandora.walSync", "false");
+        System.setProperty("pandora.warmup", "false");
+        System.setProperty("pandora.hotSetSaveSeconds", "0");
+
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < BANDS; i++) {
+            lines.add(band(i) + "\t" + id(i));
+        }
+        input = new File(directory, "bands.tsv");
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+
+        index = new DiskIndex(input);
+        for (int i = 0; i < BANDS; i++) {
+            index.add(band(i), id(i));
+        }
+        index.flush();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (index != null) {
+            index.onShutdown();
+        }
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void deletedBandsStayDeletedThroughACompaction() {
+        List<String> deleted = new ArrayList<String>();
+        for (int i = 0; i < BANDS; i += 10) {
+            index.delete(band(i));
+            deleted.add(band(i));
+        }
+        index.update(band(1), "/m/0upd");
+        for (String band : deleted) {
+            assertTrue(index.search(band).isEmpty(), band);
+        }
+
+        index.compact();
+        for (String band : deleted) {
+            assertTrue(index.search(band).isEmpty(), band);
+        }
+        assertEquals(Arrays.asList("/m/0upd"), index.search(band(1)).asList());
+        assertEquals(Arrays.asList(id(2)), index.search(band(2)).asList());
+
+        // The bloom filter was built again without them, so hardly any get past it anymore.
+        long rejectedBefore = index.getMetrics().counter("bloomRejects").sum();
+        for (String band : deleted) {
+            index.search(band);
+        }
+        long rejected = index.getMetrics().counter("bloomRejects").sum() - rejectedBefore;
+        assertTrue(rejected >= deleted.size() * 9 / 10, rejected + " of " + deleted.size() + " rejected");
+
+        // And it all holds after a restart, with the changes merged into the segments.
+        index.onShutdown();
+        index = new DiskIndex(input);
+        assertTrue(index.isCatalogLoaded());
+        for (String band : deleted) {
+            assertEquals(Collections.emptyList(), index.search(band).asList(), band);
+        }
+        assertEquals(Arrays.asList("/m/0upd"), index.search(band(1)).asList());
+        assertEquals(Arrays.asList(id(BANDS - 1)), index.search(band(BANDS - 1)).asList());
+    }
+
+    @Test
+    public void searchesKeepFindingEveryBandDuringASplit() throws InterruptedException {
+        // Without a result cache, so every search reads its segment while they're moved around.
+        index.onShutdown();
+        index = new DiskIndex(input, new NoCache());
+        assertTrue(index.isCatalogLoaded());
+
+        final AtomicBoolean splitting = new AtomicBoolean(true);
+        final AtomicInteger wrong = new AtomicInteger();
+        final AtomicInteger searches = new AtomicInteger();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int first = t;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = first;
+                    do {
+                        if (!Arrays.asList(id(i)).equals(index.search(band(i)).asList())) {
+                            wrong.incrementAndGet();
+                        }
+                        searches.incrementAndGet();
+                        i = (i + 7) % BANDS;
+                    } while (splitting.get() || searches.get() < BANDS);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        index.split(32);
+        splitting.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, wrong.get(), "wrong answers out of " + searches.get());
+        assertEquals(32, index.getSegmentCount());
+        for (int i = 0; i < BANDS; i++) {
+            assertEquals(Arrays.asList(id(i)), index.search(band(i)).asList(), band(i));
+        }
+    }
+
+    private static class NoCache implements Cache<String, BandIds> {
+        @Override
+        public BandIds get(String key) {
+            return null;
+        }
+
+        @Override
+        public boolean put(String key, BandIds value) {
+            return false;
+        }
+
+        @Override
+        public void remove(String key) {
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+
+    static String band(int i) {
+        return "Band number " + i;
+    }
+
+    static String id(int i) {
+        return "/m/0" + Integer.toString(i, 36);
+    }
+}
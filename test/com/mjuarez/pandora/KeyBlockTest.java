@@ -0,0 +1,107 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIdBuffer;
+import com.mjuarez.pandora.utils.BandIds;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeyBlockTest {
+    // Where the block goes in the "segment", so offsets are checked too.
+    private static final int OFFSET = 13;
+
+    @Test
+    public void findsKeysThatShareLongPrefixes() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        StringBuilder key = new StringBuilder("The Band");
+        for (int i = 0; i < 40; i++) {
+            keys.add(key.toString());
+            key.append((char) ('A' + i % 26));
+        }
+        keys.add("The Band of Gypsys");
+        keys.add("The Band, Again");
+        Collections.sort(keys);
+
+        List<String> missing = Arrays.asList("", "A", "The Ban", "The Band ", "The BandA!", "The BandAB ",
+                "The BandABCDEFGHIJKLMNOPQRSTUVWXYZABCDEFGHIJKLMN", "The Band of", "The Band,", "Zappa");
+        checkBlock(keys, missing, false);
+        checkBlock(keys, missing, true);
+    }
+
+    @Test
+    public void findsKeysInStringOrderWithSurrogatePairs() throws IOException {
+        // In UTF-16 (String) order the guitar, a surrogate pair, comes before the fullwidth
+        // letters, while its UTF-8 bytes sort after theirs.
+        String guitar = "\uD83C\uDFB8";
+        String fullwidthA = "\uFF21";
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) {
+            keys.add("Band " + guitar + i);
+            keys.add("Band " + fullwidthA + i);
+            keys.add("Band " + (char) ('a' + i));
+            keys.add("Band \u00E9" + i);
+            keys.add("Band \u00E9" + guitar + i);
+        }
+        Collections.sort(keys);
+
+        List<String> missing = Arrays.asList("Band " + guitar, "Band " + fullwidthA, "Band \uD83C\uDFB9",
+                "Band \uD83C\uDFB8x", "Band \uFF22", "Band \u00E9" + guitar, "Band \u00E9" + fullwidthA + "0",
+                "Band \uFFFF", "Band " + guitar + "99");
+        checkBlock(keys, missing, false);
+        checkBlock(keys, missing, true);
+    }
+
+    private static void checkBlock(List<String> keys, List<String> missing, boolean compress) throws IOException {
+        KeyBlock block = new KeyBlock(256);
+        for (int i = 0; i < keys.size(); i++) {
+            block.add(keys.get(i), ids(i));
+        }
+        byte[] finished = block.finish(compress);
+        assertEquals(compress ? KeyBlock.DEFLATE : KeyBlock.RAW, finished[0]);
+        byte[] segment = new byte[OFFSET + finished.length + 7];
+        System.arraycopy(finished, 0, segment, OFFSET, finished.length);
+        ByteBuffer mapped = ByteBuffer.wrap(segment).asReadOnlyBuffer();
+
+        BandIdBuffer results = new BandIdBuffer();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            assertEquals(ids(i).asList(), KeyBlock.find(segment, OFFSET, finished.length, key).asList(), key);
+
+            results.clear();
+            assertTrue(KeyBlock.find(mapped, OFFSET, finished.length, key, utf8(key), results), key);
+            assertEquals(ids(i).asList(), asList(results), key);
+        }
+        for (String key : missing) {
+            assertNull(KeyBlock.find(segment, OFFSET, finished.length, key), key);
+            assertFalse(KeyBlock.find(mapped, OFFSET, finished.length, key, utf8(key), results), key);
+        }
+    }
+
+    private static BandIds ids(int i) {
+        BandIds ids = BandIds.of("/m/0" + Integer.toString(i, 36));
+        return i % 3 == 0 ? ids.with("/m/0x" + i) : ids;
+    }
+
+    private static byte[] utf8(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> asList(BandIdBuffer results) {
+        List<String> ids = new ArrayList<String>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            ids.add(results.get(i));
+        }
+        return ids;
+    }
+}
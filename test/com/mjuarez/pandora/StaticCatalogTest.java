@@ -0,0 +1,112 @@
+package com.mjuarez.pandora;
+
+import com.mjuarez.pandora.utils.BandIds;
+import com.mjuarez.pandora.utils.MinimalPerfectHash;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StaticCatalogTest {
+    private static final int BANDS = 3_000;
+    private static final long SORT_MEMORY_BYTES = 16 << 20;
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void findsEveryBandAndNothingElse() throws IOException {
+        File input = writeInput();
+        File catalogDirectory = new File(directory, "static");
+        StaticCatalog catalog = StaticCatalog.build(catalogDirectory, input, Shard.ALL, SORT_MEMORY_BYTES,
+                new File(directory, "sort"));
+        assertEquals(BANDS, catalog.size());
+        checkCatalog(catalog);
+
+        // And the same once it's opened again, instead of built.
+        StaticCatalog reopened = StaticCatalog.open(catalogDirectory, input, Shard.ALL);
+        assertNotNull(reopened);
+        checkCatalog(reopened);
+    }
+
+    @Test
+    public void hashesTheKeysAgainWhenTwoOfThemCollide() throws IOException {
+        File input = writeInput();
+        File catalogDirectory = new File(directory, "static");
+        StaticCatalog.build(catalogDirectory, input, Shard.ALL, SORT_MEMORY_BYTES, new File(directory, "sort"));
+
+        // The records are in key order, hash them like build() does, and pretend the last
+        // two keys got the same hash with seed 0.
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < BANDS; i++) {
+            keys.add(band(i));
+        }
+        Collections.sort(keys);
+        long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = StaticCatalog.keyHash(RecordBlock.encodeKey(keys.get(i)), 0);
+        }
+        hashes[hashes.length - 1] = hashes[hashes.length - 2];
+        assertNull(MinimalPerfectHash.build(hashes.clone(), hashes.length));
+
+        MinimalPerfectHash[] built = new MinimalPerfectHash[1];
+        long seed = StaticCatalog.buildPerfectHash(new File(catalogDirectory, "static.dat"), hashes,
+                hashes.length, built);
+        assertEquals(1, seed);
+
+        // Every key gets a slot of its own with the new seed.
+        boolean[] taken = new boolean[keys.size()];
+        for (String key : keys) {
+            long slot = built[0].slot(StaticCatalog.keyHash(RecordBlock.encodeKey(key), seed));
+            assertTrue(slot >= 0 && slot < taken.length, key + " got slot " + slot);
+            assertFalse(taken[(int) slot], key + " got a slot that was taken");
+            taken[(int) slot] = true;
+        }
+    }
+
+    private static void checkCatalog(StaticCatalog catalog) throws IOException {
+        for (int i = 0; i < BANDS; i++) {
+            BandIds ids = catalog.get(band(i));
+            assertNotNull(ids, band(i));
+            assertEquals(ids(i), ids.asList(), band(i));
+        }
+        for (int i = BANDS; i < 2 * BANDS; i++) {
+            assertNull(catalog.get(band(i)), band(i));
+        }
+        assertNull(catalog.get(""));
+    }
+
+    private File writeInput() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < BANDS; i++) {
+            for (String id : ids(i)) {
+                lines.add(band(i) + "\t" + id);
+            }
+        }
+        File input = new File(directory, "bands.tsv");
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        return input;
+    }
+
+    private static String band(int i) {
+        return i % 5 == 0 ? "Bandas n\u00FAmero " + i : "Band number " + i;
+    }
+
+    private static List<String> ids(int i) {
+        String id = "/m/0" + Integer.toString(i, 36);
+        return i % 7 == 0 ? Arrays.asList(id, id + "x") : Arrays.asList(id);
+    }
+}